@@ -36,18 +36,26 @@ import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.font.TextAttribute;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.text.AttributedString;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -58,9 +66,6 @@ import javax.xml.parsers.ParserConfigurationException;
 
 /** Command line tool to generate the localized image for recovery mode. */
 public class ImageGenerator {
-    // Initial height of the image to draw.
-    private static final int INITIAL_HEIGHT = 20000;
-
     private static final float DEFAULT_FONT_SIZE = 40;
 
     private static final Logger LOGGER = Logger.getLogger(ImageGenerator.class.getName());
@@ -72,7 +77,11 @@ public class ImageGenerator {
     // maximum width to fit the wrapped text strings.
     private int mImageWidth;
 
-    // The current height in pixels of our image. We will adjust the value when drawing more texts.
+    // The width in pixels every image starts with.
+    private final int mInitialImageWidth;
+
+    // The height in pixels of our image. It's computed from the wrapped text strings before the
+    // canvas is allocated.
     private int mImageHeight;
 
     // The current vertical offset in pixels to draw the top edge of new text strings.
@@ -82,7 +91,7 @@ public class ImageGenerator {
     private final float mFontSize;
 
     // The name description of the text to localize. It's used to find the translated strings in the
-    // resource file.
+    // resource file. It's null if the generator draws several texts, see main().
     private final String mTextName;
 
     // The directory that contains all the needed font files (e.g. ttf, otf, ttc files).
@@ -91,6 +100,16 @@ public class ImageGenerator {
     // Align the text in the center of the image.
     private final boolean mCenterAlignment;
 
+    // Draw the texts of different locales in parallel, see drawTextsInParallel().
+    private boolean mParallel = true;
+
+    // The wrapped lines of the texts by the font to draw them with, see getWrappedText().
+    private final Map<Font, Map<String, WrappedTextInfo>> mWrappedTextCache =
+            new ConcurrentHashMap<>();
+
+    // The widths in pixels of the tokens of the texts by font, see getTokenWidth().
+    private final Map<Font, Map<String, Integer>> mTokenWidthCache = new ConcurrentHashMap<>();
+
     // Some localized font cannot draw the word "Android" and some PUNCTUATIONS; we need to fall
     // back to use our default latin font instead.
     private static final char[] PUNCTUATIONS = {',', ';', '.', '!', '?'};
@@ -102,15 +121,16 @@ public class ImageGenerator {
 
     // The default Font to draw latin characters. It's loaded from DEFAULT_FONT_NAME.
     private Font mDefaultFont;
-    // Cache of the loaded fonts for all languages.
+    // Cache of the loaded fonts for all languages. It's shared by all the images drawn by this
+    // generator.
     private Map<String, Font> mLoadedFontMap;
 
     // An explicit map from language to the font name to use.
     // The map is extracted from frameworks/base/data/fonts/fonts.xml.
     // And the language-subtag-registry is found in:
     // https://www.iana.org/assignments/language-subtag-registry/language-subtag-registry
-    private static final String DEFAULT_FONT_NAME = "Roboto-Regular";
-    private static final Map<String, String> LANGUAGE_TO_FONT_MAP =
+    static final String DEFAULT_FONT_NAME = "Roboto-Regular";
+    static final Map<String, String> LANGUAGE_TO_FONT_MAP =
             new TreeMap<String, String>() {
                 {
                     put("am", "NotoSansEthiopic-Regular");
@@ -245,12 +265,8 @@ public class ImageGenerator {
             float fontSize,
             String fontDirPath,
             boolean centerAlignment) {
-        mImageWidth = initialImageWidth;
-        mImageHeight = INITIAL_HEIGHT;
-        mVerticalOffset = 0;
-
-        // Initialize the canvas with the default height.
-        mBufferedImage = new BufferedImage(mImageWidth, mImageHeight, BufferedImage.TYPE_BYTE_GRAY);
+        mInitialImageWidth = initialImageWidth;
+        resetCanvas();
 
         mTextName = textName;
         mFontSize = fontSize;
@@ -261,35 +277,72 @@ public class ImageGenerator {
     }
 
     /**
-     * Finds the translated text string for the given textName by parsing the resourceFile. Example
-     * of the xml fields: <resources xmlns:android="http://schemas.android.com/apk/res/android">
-     * <string name="recovery_installing_security" msgid="9184031299717114342"> "Sicherheitsupdate
-     * wird installiert"</string> </resources>
+     * Initializes the generator to draw several texts, one image for each; the fonts are loaded
+     * once for all of them.
+     */
+    public ImageGenerator(
+            int initialImageWidth, float fontSize, String fontDirPath, boolean centerAlignment) {
+        this(initialImageWidth, null, fontSize, fontDirPath, centerAlignment);
+    }
+
+    /**
+     * Starts a new image with the initial width. The canvas is allocated once the size of the
+     * image is known.
+     */
+    private void resetCanvas() {
+        mImageWidth = mInitialImageWidth;
+        mImageHeight = 0;
+        mVerticalOffset = 0;
+        mBufferedImage = null;
+    }
+
+    /**
+     * Reads all the translated text strings in the resourceFile. Example of the xml fields:
+     * <resources xmlns:android="http://schemas.android.com/apk/res/android"> <string
+     * name="recovery_installing_security" msgid="9184031299717114342"> "Sicherheitsupdate wird
+     * installiert"</string> </resources>
      *
      * @param resourceFile the input resource file in xml format.
-     * @param textName the name description of the text.
-     * @return the string representation of the translated text.
+     * @return a map with the name description of the text as key, and the string representation
+     *     of the translated text as value.
      */
-    private String getTextString(File resourceFile, String textName)
-            throws IOException, ParserConfigurationException, org.xml.sax.SAXException,
-                    LocalizedStringNotFoundException {
+    private Map<String, String> getTextStrings(File resourceFile)
+            throws IOException, ParserConfigurationException, org.xml.sax.SAXException {
         DocumentBuilderFactory builder = DocumentBuilderFactory.newInstance();
         DocumentBuilder db = builder.newDocumentBuilder();
 
         Document doc = db.parse(resourceFile);
         doc.getDocumentElement().normalize();
 
+        Map<String, String> result = new HashMap<>();
         NodeList nodeList = doc.getElementsByTagName("string");
         for (int i = 0; i < nodeList.getLength(); i++) {
             Node node = nodeList.item(i);
             String name = node.getAttributes().getNamedItem("name").getNodeValue();
-            if (name.equals(textName)) {
-                return node.getTextContent();
-            }
+            // Keeps the first one if a name is defined twice.
+            result.putIfAbsent(name, node.getTextContent());
         }
 
-        throw new LocalizedStringNotFoundException(
-                textName + " not found in " + resourceFile.getName());
+        return result;
+    }
+
+    /** Returns an empty map from locale to text, sorted in the order recovery expects. */
+    private static Map<Locale, String> newLocaleMap() {
+        // Overrides the string comparator so that sr is sorted behind sr-Latn. And thus
+        // recovery can find the most relevant locale when going down the list.
+        return new TreeMap<>(
+                (Locale l1, Locale l2) -> {
+                    if (l1.toLanguageTag().equals(l2.toLanguageTag())) {
+                        return 0;
+                    }
+                    if (l1.getLanguage().equals(l2.toLanguageTag())) {
+                        return -1;
+                    }
+                    if (l2.getLanguage().equals(l1.toLanguageTag())) {
+                        return 1;
+                    }
+                    return l1.toLanguageTag().compareTo(l2.toLanguageTag());
+                });
     }
 
     /** Constructs the locale from the name of the resource file. */
@@ -325,27 +378,29 @@ public class ImageGenerator {
      */
     public Map<Locale, String> readLocalizedStringFromXmls(String resourcePath,
             Set<String> localesSet) throws IOException, LocalizedStringNotFoundException {
+        return readLocalizedStringsFromXmls(resourcePath, localesSet, Arrays.asList(mTextName))
+                .get(mTextName);
+    }
+
+    /**
+     * Same as {@link #readLocalizedStringFromXmls}, but collects the translations of several
+     * texts; every xml file is parsed only once.
+     *
+     * @param textNames the name descriptions of the texts
+     * @return a map with the text name as key, and its map from locale to translated text as value
+     */
+    public Map<String, Map<Locale, String>> readLocalizedStringsFromXmls(String resourcePath,
+            Set<String> localesSet, List<String> textNames)
+            throws IOException, LocalizedStringNotFoundException {
         File resourceDir = new File(resourcePath);
         if (!resourceDir.isDirectory()) {
             throw new LocalizedStringNotFoundException(resourcePath + " is not a directory.");
         }
 
-        Map<Locale, String> result =
-                // Overrides the string comparator so that sr is sorted behind sr-Latn. And thus
-                // recovery can find the most relevant locale when going down the list.
-                new TreeMap<>(
-                        (Locale l1, Locale l2) -> {
-                            if (l1.toLanguageTag().equals(l2.toLanguageTag())) {
-                                return 0;
-                            }
-                            if (l1.getLanguage().equals(l2.toLanguageTag())) {
-                                return -1;
-                            }
-                            if (l2.getLanguage().equals(l1.toLanguageTag())) {
-                                return 1;
-                            }
-                            return l1.toLanguageTag().compareTo(l2.toLanguageTag());
-                        });
+        Map<String, Map<Locale, String>> result = new HashMap<>();
+        for (String textName : textNames) {
+            result.put(textName, newLocaleMap());
+        }
 
         // Find all the localized resource subdirectories in the format of values-$LOCALE
         String[] nameList =
@@ -358,17 +413,25 @@ public class ImageGenerator {
             }
 
             File textFile = new File(resourcePath, name + "/strings.xml");
-            String localizedText;
+            Map<String, String> localizedTexts;
             try {
-                localizedText = getTextString(textFile, mTextName);
+                localizedTexts = getTextStrings(textFile);
             } catch (IOException | ParserConfigurationException | org.xml.sax.SAXException e) {
                 throw new LocalizedStringNotFoundException(
                         "Failed to read the translated text for locale " + name, e);
             }
 
             Locale locale = getLocaleFromFilename(name);
-            // Removes the double quotation mark from the text.
-            result.put(locale, localizedText.substring(1, localizedText.length() - 1));
+            for (String textName : textNames) {
+                String localizedText = localizedTexts.get(textName);
+                if (localizedText == null) {
+                    throw new LocalizedStringNotFoundException(
+                            textName + " not found in " + textFile.getName());
+                }
+                // Removes the double quotation mark from the text.
+                result.get(textName)
+                        .put(locale, localizedText.substring(1, localizedText.length() - 1));
+            }
         }
 
         return result;
@@ -380,7 +443,8 @@ public class ImageGenerator {
      * @throws IOException if the font file fails to open
      * @throws FontFormatException if the font file doesn't have the expected format
      */
-    private Font loadFontsByLocale(String language) throws IOException, FontFormatException {
+    private synchronized Font loadFontsByLocale(String language)
+            throws IOException, FontFormatException {
         if (mLoadedFontMap.containsKey(language)) {
             return mLoadedFontMap.get(language);
         }
@@ -413,11 +477,12 @@ public class ImageGenerator {
         for (int end = lineBoundary.next(); end != BreakIterator.DONE;
                 start = end, end = lineBoundary.next()) {
             String token = text.substring(start, end);
-            int tokenWidth = metrics.stringWidth(token);
+            int tokenWidth = getTokenWidth(token, metrics);
             // Handles the width mismatch of the word "Android" between different fonts.
             if (token.contains(ANDROID_STRING)
                     && metrics.getFont().canDisplayUpTo(ANDROID_STRING) != -1) {
-                tokenWidth = tokenWidth - metrics.stringWidth(ANDROID_STRING) + mAndroidStringWidth;
+                tokenWidth =
+                        tokenWidth - getTokenWidth(ANDROID_STRING, metrics) + mAndroidStringWidth;
             }
 
             if (lineWidth + tokenWidth > mImageWidth) {
@@ -435,6 +500,27 @@ public class ImageGenerator {
         return info;
     }
 
+    /** Returns the width in pixels of the token; the widths are measured once for each font. */
+    private int getTokenWidth(String token, FontMetrics metrics) {
+        return mTokenWidthCache
+                .computeIfAbsent(metrics.getFont(), font -> new ConcurrentHashMap<>())
+                .computeIfAbsent(token, metrics::stringWidth);
+    }
+
+    /**
+     * Returns the text wrapped by {@link #processAndWrapText}; the text is wrapped once for each
+     * font, and the result is shared by measuring and drawing.
+     *
+     * <p>The texts are measured with the initial width of the image, and drawn with the width of
+     * the widest line. The lines are the same: a line only ends early if the next token doesn't
+     * fit, and it doesn't fit in the narrower width either.</p>
+     */
+    private WrappedTextInfo getWrappedText(String text, FontMetrics metrics) {
+        return mWrappedTextCache
+                .computeIfAbsent(metrics.getFont(), font -> new ConcurrentHashMap<>())
+                .computeIfAbsent(text, key -> processAndWrapText(key, metrics));
+    }
+
     /**
      * Handles the special characters of the raw text embedded in the xml file; and wraps the text
      * with a maximum of mImageWidth pixels per line.
@@ -458,34 +544,86 @@ public class ImageGenerator {
         return result;
     }
 
+    /** The information of a localized text image, encoded in the row above it. */
+    static final class TextInfo {
+        final int mWidth;
+        final int mHeight;
+        final String mLocale;
+
+        TextInfo(int width, int height, String locale) {
+            mWidth = width;
+            mHeight = height;
+            mLocale = locale;
+        }
+    }
+
     /**
      * Encodes the information of the text image for |locale|. According to minui/resources.cpp, the
      * width, height and locale of the image is decoded as: int w = (row[1] << 8) | row[0]; int h =
      * (row[3] << 8) | row[2]; __unused int len = row[4]; char* loc =
      * reinterpret_cast<char*>(&row[5]);
+     *
+     * @return the pixels of the row, from the left; the rest of the row is left black
      */
-    private List<Integer> encodeTextInfo(int width, int height, String locale) {
-        List<Integer> info =
-                new ArrayList<>(
-                        Arrays.asList(
-                                width & 0xff,
-                                width >> 8,
-                                height & 0xff,
-                                height >> 8,
-                                locale.length()));
-
-        byte[] localeBytes = locale.getBytes();
-        for (byte b : localeBytes) {
-            info.add((int) b);
-        }
-        info.add(0);
-
+    static byte[] encodeTextInfo(int width, int height, String locale) {
+        byte[] localeBytes = locale.getBytes(StandardCharsets.US_ASCII);
+        byte[] info = new byte[5 + localeBytes.length + 1];
+        info[0] = (byte) width;
+        info[1] = (byte) (width >> 8);
+        info[2] = (byte) height;
+        info[3] = (byte) (height >> 8);
+        info[4] = (byte) locale.length();
+        System.arraycopy(localeBytes, 0, info, 5, localeBytes.length);
+        // The locale is read as a null-terminated string; the last byte is already 0.
         return info;
     }
 
+    /**
+     * Decodes the information of a text image from the given row, the same way as
+     * res_create_localized_alpha_surface() in minui/resources.cpp does.
+     */
+    static TextInfo decodeTextInfo(BufferedImage image, int row) {
+        int[] pixels = image.getRaster().getPixels(0, row, image.getWidth(), 1, (int[]) null);
+        int width = (pixels[1] << 8) | pixels[0];
+        int height = (pixels[3] << 8) | pixels[2];
+        StringBuilder locale = new StringBuilder();
+        for (int i = 5; i < pixels.length && pixels[i] != 0; i++) {
+            locale.append((char) pixels[i]);
+        }
+        return new TextInfo(width, height, locale.toString());
+    }
+
+    /**
+     * Decodes the information of all the text images in a generated image, skipping from one to
+     * the next as get_locales_in_png() in minui/resources.cpp does.
+     */
+    static List<TextInfo> decodeTextInfos(BufferedImage image) {
+        List<TextInfo> result = new ArrayList<>();
+        for (int row = 0; row < image.getHeight(); row++) {
+            TextInfo info = decodeTextInfo(image, row);
+            result.add(info);
+            row += info.mHeight;
+        }
+        return result;
+    }
+
+    /**
+     * Sets whether the texts of different locales are drawn in parallel. Both ways generate the
+     * same image; drawing one locale after another is only useful to compare with.
+     */
+    void setParallel(boolean parallel) {
+        mParallel = parallel;
+    }
+
     /** Returns Graphics2D object that uses the given locale. */
     private Graphics2D createGraphics(Locale locale) throws IOException, FontFormatException {
-        Graphics2D graphics = mBufferedImage.createGraphics();
+        return createGraphics(mBufferedImage, locale);
+    }
+
+    /** Returns Graphics2D object that draws on the given image and uses the given locale. */
+    private Graphics2D createGraphics(BufferedImage image, Locale locale)
+            throws IOException, FontFormatException {
+        Graphics2D graphics = image.createGraphics();
         graphics.setColor(Color.WHITE);
         graphics.setRenderingHint(
                 RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_GASP);
@@ -494,12 +632,23 @@ public class ImageGenerator {
         return graphics;
     }
 
+    /**
+     * Returns the metrics of the font to draw the given locale with. They don't depend on the size
+     * of the image, so they are taken from a tiny one with the same settings as the canvas.
+     */
+    private FontMetrics getFontMetrics(Locale locale) throws IOException, FontFormatException {
+        Graphics2D graphics =
+                createGraphics(new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY), locale);
+        FontMetrics fontMetrics = graphics.getFontMetrics();
+        graphics.dispose();
+        return fontMetrics;
+    }
+
     /** Returns the maximum screen width needed to fit the given text after wrapping. */
     private int measureTextWidth(String text, Locale locale)
             throws IOException, FontFormatException {
-        Graphics2D graphics = createGraphics(locale);
-        FontMetrics fontMetrics = graphics.getFontMetrics();
-        WrappedTextInfo wrappedTextInfo = processAndWrapText(text, fontMetrics);
+        FontMetrics fontMetrics = getFontMetrics(locale);
+        WrappedTextInfo wrappedTextInfo = getWrappedText(text, fontMetrics);
 
         int textWidth = 0;
         for (WrappedTextInfo.LineInfo lineInfo : wrappedTextInfo.mWrappedLines) {
@@ -534,23 +683,33 @@ public class ImageGenerator {
 
         Graphics2D graphics = createGraphics(locale);
         FontMetrics fontMetrics = graphics.getFontMetrics();
-        WrappedTextInfo wrappedTextInfo = processAndWrapText(text, fontMetrics);
+        WrappedTextInfo wrappedTextInfo = getWrappedText(text, fontMetrics);
 
         // Marks the start y offset for the text image of current locale; and reserves one line to
         // encode the image metadata.
         int currentImageStart = mVerticalOffset;
-        mVerticalOffset += 1;
+        mVerticalOffset = drawLines(graphics, fontMetrics, wrappedTextInfo,
+                currentImageStart + 1, languageTag);
+
+        // Encodes the metadata of the current localized image as pixels.
+        int currentImageHeight = mVerticalOffset - currentImageStart - 1;
+        writeTextInfo(mBufferedImage, currentImageStart, currentImageHeight, languageTag);
+    }
+
+    /**
+     * Draws the wrapped lines one below another.
+     *
+     * @param top the vertical offset in pixels of the top edge of the first line
+     * @return the vertical offset in pixels below the last line
+     */
+    private int drawLines(Graphics2D graphics, FontMetrics fontMetrics,
+            WrappedTextInfo wrappedTextInfo, int top, String languageTag) {
+        int verticalOffset = top;
         for (WrappedTextInfo.LineInfo lineInfo : wrappedTextInfo.mWrappedLines) {
             int lineHeight = fontMetrics.getHeight();
-            // Doubles the height of the image if we are short of space.
-            if (mVerticalOffset + lineHeight >= mImageHeight) {
-                resize(mImageWidth, mImageHeight * 2);
-                // Recreates the graphics since it's attached to the buffered image.
-                graphics = createGraphics(locale);
-            }
 
-            // Draws the text at mVerticalOffset and increments the offset with line space.
-            int baseLine = mVerticalOffset + lineHeight - fontMetrics.getDescent();
+            // Draws the text at verticalOffset and increments the offset with line space.
+            int baseLine = verticalOffset + lineHeight - fontMetrics.getDescent();
 
             // Draws from right if it's an RTL language.
             int x =
@@ -561,33 +720,208 @@ public class ImageGenerator {
                                     : 0;
             graphics.drawString(lineInfo.mLineContent.getIterator(), x, baseLine);
 
-            mVerticalOffset += lineHeight;
+            verticalOffset += lineHeight;
         }
+        return verticalOffset;
+    }
 
-        // Encodes the metadata of the current localized image as pixels.
-        int currentImageHeight = mVerticalOffset - currentImageStart - 1;
-        List<Integer> info = encodeTextInfo(mImageWidth, currentImageHeight, languageTag);
-        for (int i = 0; i < info.size(); i++) {
-            int[] pixel = {info.get(i)};
-            mBufferedImage.getRaster().setPixel(i, currentImageStart, pixel);
+    /**
+     * Encodes the metadata of a localized image as pixels of the given row. The image must be one
+     * of ours, with a byte for each pixel and no padding between the rows.
+     */
+    private void writeTextInfo(BufferedImage image, int row, int height, String languageTag) {
+        byte[] info = encodeTextInfo(mImageWidth, height, languageTag);
+        if (info.length > image.getWidth()) {
+            throw new IllegalStateException(
+                    "Image width " + image.getWidth() + " is too small to encode " + languageTag);
         }
+        byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        System.arraycopy(info, 0, pixels, row * image.getWidth(), info.length);
     }
 
     /**
-     * Redraws the image with the new width and new height.
+     * The text of one locale drawn on its own image: the metadata row, followed by the lines of
+     * text. Glyphs may reach out of their lines; parts that would be drawn over the neighbouring
+     * locales on the canvas are kept in a margin of {@code mMargin} rows above and below.
+     */
+    private class Strip {
+        final Locale mLocale;
+        final String mLanguageTag;
+        final FontMetrics mFontMetrics;
+        final WrappedTextInfo mWrappedTextInfo;
+        // The number of rows of the metadata and the lines of text.
+        final int mHeight;
+        final int mMargin;
+
+        BufferedImage mImage;
+        // The row of mImage with the metadata.
+        int mImageTop;
+        // The number of rows above and below the text that glyphs reach into.
+        int mOverflowTop;
+        int mOverflowBottom;
+
+        Strip(String text, Locale locale, String languageTag)
+                throws IOException, FontFormatException {
+            mLocale = locale;
+            mLanguageTag = languageTag;
+            mFontMetrics = getFontMetrics(locale);
+            mWrappedTextInfo = getWrappedText(text, mFontMetrics);
+            mHeight = 1 + mWrappedTextInfo.mWrappedLines.size() * mFontMetrics.getHeight();
+            mMargin = mFontMetrics.getHeight();
+        }
+
+        /** Draws the text of this locale alone, and finds how far it reaches out of the strip. */
+        void draw() throws IOException, FontFormatException {
+            mImage = new BufferedImage(mImageWidth, mMargin + mHeight + mMargin,
+                    BufferedImage.TYPE_BYTE_GRAY);
+            mImageTop = mMargin;
+            Graphics2D graphics = createGraphics(mImage, mLocale);
+            drawLines(graphics, mFontMetrics, mWrappedTextInfo, mImageTop + 1, mLanguageTag);
+            graphics.dispose();
+            writeTextInfo(mImage, mImageTop, mHeight - 1, mLanguageTag);
+
+            for (int row = 0; row < mMargin && mOverflowTop == 0; row++) {
+                if (isDrawn(row)) {
+                    mOverflowTop = mMargin - row;
+                }
+            }
+            for (int row = mImage.getHeight() - 1; row >= mMargin + mHeight && mOverflowBottom == 0;
+                    row--) {
+                if (isDrawn(row)) {
+                    mOverflowBottom = row - mMargin - mHeight + 1;
+                }
+            }
+        }
+
+        /**
+         * Draws the text of this locale again together with the parts of the neighbouring ones
+         * that reach into it, in the same order as they are drawn on the canvas.
+         */
+        void redraw(Strip previous, Strip next) throws IOException, FontFormatException {
+            mImage = new BufferedImage(mImageWidth, mHeight, BufferedImage.TYPE_BYTE_GRAY);
+            mImageTop = 0;
+            if (previous != null && previous.mOverflowBottom > 0) {
+                Graphics2D graphics = createGraphics(mImage, previous.mLocale);
+                drawLines(graphics, previous.mFontMetrics, previous.mWrappedTextInfo,
+                        1 - previous.mHeight, previous.mLanguageTag);
+                graphics.dispose();
+            }
+            Graphics2D graphics = createGraphics(mImage, mLocale);
+            drawLines(graphics, mFontMetrics, mWrappedTextInfo, 1, mLanguageTag);
+            graphics.dispose();
+            writeTextInfo(mImage, 0, mHeight - 1, mLanguageTag);
+            if (next != null && next.mOverflowTop > 0) {
+                graphics = createGraphics(mImage, next.mLocale);
+                drawLines(graphics, next.mFontMetrics, next.mWrappedTextInfo, mHeight + 1,
+                        next.mLanguageTag);
+                graphics.dispose();
+            }
+        }
+
+        /** Returns whether any pixel was drawn in the given row of the image. */
+        private boolean isDrawn(int row) {
+            byte[] pixels = ((DataBufferByte) mImage.getRaster().getDataBuffer()).getData();
+            int width = mImage.getWidth();
+            for (int i = row * width; i < (row + 1) * width; i++) {
+                if (pixels[i] != 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Draws the texts of all the locales on their own strips on a fork-join pool, and then
+     * stitches the strips in the given order into the final image; the result is the same as
+     * drawing the texts one after another with {@link #drawText}.
+     *
+     * <p>If glyphs of a locale reach out of its strip, the neighbouring strips are drawn again
+     * with these glyphs. Glyphs that reach farther than the neighbouring locales aren't handled;
+     * false is returned then.</p>
      *
-     * @param width the new width of the image in pixels.
-     * @param height the new height of the image in pixels.
+     * @param texts the texts to draw by locale, in the order of the final image
+     * @param languageTags the language tags to encode by locale
+     * @return whether the image was drawn
      */
-    private void resize(int width, int height) {
-        BufferedImage resizedImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
-        Graphics2D graphic = resizedImage.createGraphics();
-        graphic.drawImage(mBufferedImage, 0, 0, null);
-        graphic.dispose();
-
-        mBufferedImage = resizedImage;
-        mImageWidth = width;
+    private boolean drawTextsInParallel(Map<Locale, String> texts,
+            Map<Locale, String> languageTags) throws IOException, FontFormatException {
+        List<Callable<Strip>> tasks = new ArrayList<>();
+        for (Map.Entry<Locale, String> entry : texts.entrySet()) {
+            tasks.add(() -> {
+                Strip strip = new Strip(entry.getValue(), entry.getKey(),
+                        languageTags.get(entry.getKey()));
+                strip.draw();
+                return strip;
+            });
+        }
+        List<Strip> strips = invokeAll(tasks);
+
+        List<Callable<Strip>> redraws = new ArrayList<>();
+        for (int i = 0; i < strips.size(); i++) {
+            Strip strip = strips.get(i);
+            Strip previous = i > 0 ? strips.get(i - 1) : null;
+            Strip next = i < strips.size() - 1 ? strips.get(i + 1) : null;
+            // Nothing is drawn above the first locale; below the last one is cropped.
+            if ((previous != null
+                            && (strip.mOverflowTop >= Math.min(strip.mMargin, previous.mHeight)))
+                    || (next != null
+                            && (strip.mOverflowBottom >= Math.min(strip.mMargin, next.mHeight)))) {
+                LOGGER.info("Text of " + strip.mLocale + " reaches out too far");
+                return false;
+            }
+            if ((previous != null && previous.mOverflowBottom > 0)
+                    || (next != null && next.mOverflowTop > 0)) {
+                redraws.add(() -> {
+                    strip.redraw(previous, next);
+                    return strip;
+                });
+            }
+        }
+        // Strips are redrawn only after all of them found their overflows.
+        invokeAll(redraws);
+
+        int height = 0;
+        for (Strip strip : strips) {
+            height += strip.mHeight;
+        }
+        BufferedImage image =
+                new BufferedImage(mImageWidth, height, BufferedImage.TYPE_BYTE_GRAY);
+        int verticalOffset = 0;
+        for (Strip strip : strips) {
+            image.getRaster().setRect(0, verticalOffset,
+                    strip.mImage.getRaster().createChild(0, strip.mImageTop, mImageWidth,
+                            strip.mHeight, 0, 0, null));
+            verticalOffset += strip.mHeight;
+        }
+
+        mBufferedImage = image;
         mImageHeight = height;
+        mVerticalOffset = height;
+        return true;
+    }
+
+    /** Runs the tasks on the common fork-join pool and returns their results in order. */
+    private static <T> List<T> invokeAll(List<Callable<T>> tasks)
+            throws IOException, FontFormatException {
+        List<T> results = new ArrayList<>();
+        try {
+            for (Future<T> result : ForkJoinPool.commonPool().invokeAll(tasks)) {
+                results.add(result.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while drawing the texts", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof FontFormatException) {
+                throw (FontFormatException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        return results;
     }
 
     /**
@@ -601,8 +935,10 @@ public class ImageGenerator {
      */
     public void generateImage(Map<Locale, String> localizedTextMap, String outputPath)
             throws FontFormatException, IOException {
-        FontMetrics defaultFontMetrics =
-                createGraphics(Locale.forLanguageTag("en")).getFontMetrics();
+        // The generator may have drawn another image already.
+        resetCanvas();
+
+        FontMetrics defaultFontMetrics = getFontMetrics(Locale.forLanguageTag("en"));
         mDefaultFont = defaultFontMetrics.getFont();
         mAndroidStringWidth = defaultFontMetrics.stringWidth(ANDROID_STRING);
 
@@ -618,9 +954,9 @@ public class ImageGenerator {
             textWidth = Math.max(textWidth, measureTextWidth(localizedTextMap.get(locale), locale));
         }
 
-        // Removes the black margins to reduce the size of the image.
-        resize(textWidth, mImageHeight);
-
+        // The texts to draw and the language tags to encode, in the order of the image.
+        Map<Locale, String> texts = new LinkedHashMap<>();
+        Map<Locale, String> languageTags = new HashMap<>();
         for (Locale locale : localizedTextMap.keySet()) {
             // Recovery expects en-US instead of en_US.
             String languageTag = locale.toLanguageTag();
@@ -634,10 +970,35 @@ public class ImageGenerator {
                 continue;
             }
 
-            drawText(localizedTextMap.get(locale), locale, languageTag);
+            texts.put(locale, localizedTextMap.get(locale));
+            languageTags.put(locale, languageTag);
+        }
+
+        // Removes the black margins to reduce the size of the image.
+        mImageWidth = textWidth;
+
+        if (mParallel) {
+            if (drawTextsInParallel(texts, languageTags)) {
+                ImageIO.write(mBufferedImage, "png", new File(outputPath));
+                return;
+            }
+            LOGGER.info("Drawing the texts one after another");
+        }
+
+        // Allocates the canvas once with the exact height: a row to encode the metadata of each
+        // locale, followed by the lines of its text.
+        mImageHeight = 0;
+        for (Map.Entry<Locale, String> entry : texts.entrySet()) {
+            FontMetrics fontMetrics = getFontMetrics(entry.getKey());
+            mImageHeight += 1 + getWrappedText(entry.getValue(), fontMetrics).mWrappedLines.size()
+                    * fontMetrics.getHeight();
+        }
+        mBufferedImage = new BufferedImage(mImageWidth, mImageHeight, BufferedImage.TYPE_BYTE_GRAY);
+
+        for (Map.Entry<Locale, String> entry : texts.entrySet()) {
+            drawText(entry.getValue(), entry.getKey(), languageTags.get(entry.getKey()));
         }
 
-        resize(mImageWidth, mVerticalOffset);
         ImageIO.write(mBufferedImage, "png", new File(outputPath));
     }
 
@@ -661,7 +1022,6 @@ public class ImageGenerator {
                         .withDescription(
                                 "The description of the text string, e.g. recovery_erasing")
                         .hasArgs(1)
-                        .isRequired()
                         .create());
 
         options.addOption(
@@ -687,7 +1047,17 @@ public class ImageGenerator {
                 OptionBuilder.withLongOpt("output_file")
                         .withDescription("Path to the generated image.")
                         .hasArgs(1)
-                        .isRequired()
+                        .create());
+
+        options.addOption(
+                OptionBuilder.withLongOpt("batch")
+                        .withDescription(
+                                "A list of text_name=output_file pairs separated by ',' to"
+                                        + " generate several images in one run, e.g."
+                                        + " 'recovery_erasing=erasing_text.png,"
+                                        + "recovery_error=error_text.png'. Replaces"
+                                        + " --text_name and --output_file.")
+                        .hasArgs(1)
                         .create());
 
         options.addOption(
@@ -726,6 +1096,26 @@ public class ImageGenerator {
             return;
         }
 
+        // Maps the output files to the names of their texts, in the order of generation.
+        Map<String, String> outputs = new LinkedHashMap<>();
+        if (cmd.hasOption("batch")) {
+            for (String pair : cmd.getOptionValue("batch").split(",")) {
+                String[] tokens = pair.split("=", 2);
+                if (tokens.length != 2 || tokens[0].isEmpty() || tokens[1].isEmpty()) {
+                    System.err.println("Invalid text_name=output_file pair: " + pair);
+                    printUsage(options);
+                    return;
+                }
+                outputs.put(tokens[1], tokens[0]);
+            }
+        } else if (cmd.hasOption("text_name") && cmd.hasOption("output_file")) {
+            outputs.put(cmd.getOptionValue("output_file"), cmd.getOptionValue("text_name"));
+        } else {
+            System.err.println("Either --batch or both --text_name and --output_file are required");
+            printUsage(options);
+            return;
+        }
+
         int imageWidth = Integer.parseUnsignedInt(cmd.getOptionValue("image_width"));
 
         if (cmd.hasOption("verbose")) {
@@ -734,10 +1124,10 @@ public class ImageGenerator {
             LOGGER.setLevel(Level.WARNING);
         }
 
+        // One generator draws all the images, so the fonts are loaded only once.
         ImageGenerator imageGenerator =
                 new ImageGenerator(
                         imageWidth,
-                        cmd.getOptionValue("text_name"),
                         DEFAULT_FONT_SIZE,
                         cmd.getOptionValue("font_dir"),
                         cmd.hasOption("center_alignment"));
@@ -749,9 +1139,12 @@ public class ImageGenerator {
             // Ensures that we have the default locale, all english translations are identical.
             localesSet.add("en-rAU");
         }
-        Map<Locale, String> localizedStringMap =
-                imageGenerator.readLocalizedStringFromXmls(cmd.getOptionValue("resource_dir"),
-                        localesSet);
-        imageGenerator.generateImage(localizedStringMap, cmd.getOptionValue("output_file"));
+        Map<String, Map<Locale, String>> localizedStringMaps =
+                imageGenerator.readLocalizedStringsFromXmls(cmd.getOptionValue("resource_dir"),
+                        localesSet, new ArrayList<>(new HashSet<>(outputs.values())));
+        for (Map.Entry<String, String> output : outputs.entrySet()) {
+            imageGenerator.generateImage(localizedStringMaps.get(output.getValue()),
+                    output.getKey());
+        }
     }
 }
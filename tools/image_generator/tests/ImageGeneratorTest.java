@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.recovery.tools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Tests for {@link ImageGenerator}.
+ *
+ * <p>Every language is drawn with DejaVuSansMono.ttf from testdata. The golden images in testdata
+ * were generated with it by ImageGenerator before the texts were drawn in parallel.</p>
+ */
+@RunWith(JUnit4.class)
+public class ImageGeneratorTest {
+
+    private static final String TEXT_NAME = "recovery_test";
+
+    // Texts by the resource directory suffix. They are long enough to be wrapped, have words and
+    // punctuations drawn with the fallback font, and are written in scripts with glyphs that
+    // reach out of their lines.
+    private static final String[][] TEXTS = {
+        {"af", "Stelselopdatering word geinstalleer.\\n\\n"
+                + "Android sal herbegin; moenie afskakel nie!"},
+        {"ar", "\u062c\u0627\u0631\u064d \u062a\u062b\u0628\u064a\u062a "
+                + "\u062a\u062d\u062f\u064a\u062b \u0627\u0644\u0646\u0638\u0627\u0645 "
+                + "Android."},
+        {"en-rAU", "Installing system update. Android will restart when it's done!"},
+        {"en-rGB", "Installing system update. Android will restart when it's done!"},
+        {"en-rUS", "Installing system update, please wait. Android restarts when it's done?"},
+        {"iw", "\u05de\u05ea\u05e7\u05d9\u05df \u05e2\u05d3\u05db\u05d5\u05df "
+                + "\u05de\u05e2\u05e8\u05db\u05ea."},
+        {"sr", "\u0418\u043d\u0441\u0442\u0430\u043b\u0438\u0440\u0430 \u0441\u0435 "
+                + "\u0430\u0436\u0443\u0440\u0438\u0440\u0430\u045a\u0435 "
+                + "\u0441\u0438\u0441\u0442\u0435\u043c\u0430."},
+        {"b+sr+Latn", "Instalira se a\u017euriranje sistema \u0106\u0160\u017d."},
+        {"vi", "\u0110ang c\u00e0i \u0111\u1eb7t b\u1ea3n c\u1eadp nh\u1eadt "
+                + "h\u1ec7 th\u1ed1ng."},
+    };
+
+    // The descenders of the last Latvian line reach below it, and the grave and breve over the
+    // first Vietnamese letter reach above its line, so both strips have to be redrawn.
+    private static final String[][] OVERFLOWING_TEXTS = {
+        {"de", "Systemupdate wird installiert."},
+        {"lv", "Notiek sist\u0113mas atjaunin\u0101\u0161ana, \u013coti \u0146emiet "
+                + "\u0122."},
+        {"vi", "\u1eb0ng c\u00e0i \u0111\u1eb7t b\u1ea3n c\u1eadp nh\u1eadt."},
+    };
+
+    private static final String FONT = "DejaVuSansMono.ttf";
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private File mFontDir;
+    private File mResourceDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mFontDir = mTemporaryFolder.newFolder();
+        Set<String> fontNames = new HashSet<>(ImageGenerator.LANGUAGE_TO_FONT_MAP.values());
+        fontNames.add(ImageGenerator.DEFAULT_FONT_NAME);
+        for (String fontName : fontNames) {
+            try (InputStream font = ImageGeneratorTest.class.getResourceAsStream("/" + FONT)) {
+                Files.copy(font, new File(mFontDir, fontName + ".ttf").toPath());
+            }
+        }
+
+        mResourceDir = writeTexts(TEXTS);
+    }
+
+    @Test
+    public void generateImage_matchesGolden() throws Exception {
+        assertSameImage("recovery_test.png", generateImage(false, 480, false));
+        assertSameImage("recovery_test.png", generateImage(true, 480, false));
+    }
+
+    @Test
+    public void generateImage_redrawsStripsOfOverflowingGlyphs() throws Exception {
+        mResourceDir = writeTexts(OVERFLOWING_TEXTS);
+
+        assertSameImage("recovery_test_overflow.png", generateImage(false, 480, false));
+        assertSameImage("recovery_test_overflow.png", generateImage(true, 480, false));
+    }
+
+    @Test
+    public void generateImage_parallelMatchesSequential() throws Exception {
+        assertArrayEquals(generateImage(false, 480, false), generateImage(true, 480, false));
+        assertArrayEquals(generateImage(false, 1440, false), generateImage(true, 1440, false));
+    }
+
+    @Test
+    public void generateImage_parallelMatchesSequentialWithCenterAlignment() throws Exception {
+        assertArrayEquals(generateImage(false, 480, true), generateImage(true, 480, true));
+    }
+
+    @Test
+    public void generateImage_reusesWrappedTextsOfPreviousImage() throws Exception {
+        ImageGenerator generator = newImageGenerator(true, 480, false);
+        byte[] first = generateImage(generator);
+
+        // The second image is drawn with the texts wrapped for the first one.
+        assertArrayEquals(first, generateImage(generator));
+        generator.setParallel(false);
+        assertArrayEquals(first, generateImage(generator));
+    }
+
+    @Test
+    public void decodeTextInfo_returnsEncodedInfoForEveryLocale() {
+        BufferedImage image = new BufferedImage(64, 1, BufferedImage.TYPE_BYTE_GRAY);
+        for (Locale locale : Locale.getAvailableLocales()) {
+            String languageTag = locale.toLanguageTag();
+            byte[] info = ImageGenerator.encodeTextInfo(1440, 300, languageTag);
+            image.getRaster().setDataElements(0, 0, info.length, 1, info);
+
+            ImageGenerator.TextInfo decoded = ImageGenerator.decodeTextInfo(image, 0);
+
+            assertEquals(1440, decoded.mWidth);
+            assertEquals(300, decoded.mHeight);
+            assertEquals(languageTag, decoded.mLocale);
+        }
+    }
+
+    @Test
+    public void generateImage_encodesInfoOfEveryLocale() throws Exception {
+        for (boolean parallel : new boolean[] {true, false}) {
+            File output = new File(mTemporaryFolder.newFolder(), "image.png");
+            Files.write(output.toPath(), generateImage(parallel, 480, false));
+            BufferedImage image = ImageIO.read(output);
+
+            List<String> locales = new ArrayList<>();
+            int height = 0;
+            for (ImageGenerator.TextInfo info : ImageGenerator.decodeTextInfos(image)) {
+                assertEquals(image.getWidth(), info.mWidth);
+                locales.add(info.mLocale);
+                height += 1 + info.mHeight;
+            }
+            // The last variant of a language is encoded as the language.
+            assertEquals(Arrays.asList("af", "ar", "en-AU", "en-GB", "en", "he", "sr-Latn", "sr",
+                    "vi"), locales);
+            assertEquals(image.getHeight(), height);
+        }
+    }
+
+    private ImageGenerator newImageGenerator(boolean parallel, int imageWidth,
+            boolean centerAlignment) {
+        ImageGenerator generator =
+                new ImageGenerator(imageWidth, TEXT_NAME, 40, mFontDir.getPath(), centerAlignment);
+        generator.setParallel(parallel);
+        return generator;
+    }
+
+    private byte[] generateImage(boolean parallel, int imageWidth, boolean centerAlignment)
+            throws Exception {
+        return generateImage(newImageGenerator(parallel, imageWidth, centerAlignment));
+    }
+
+    private byte[] generateImage(ImageGenerator generator) throws Exception {
+        Map<Locale, String> texts =
+                generator.readLocalizedStringFromXmls(mResourceDir.getPath(), null);
+        File output = new File(mTemporaryFolder.newFolder(), "image.png");
+        generator.generateImage(texts, output.getPath());
+        return Files.readAllBytes(output.toPath());
+    }
+
+    private File writeTexts(String[][] texts) throws IOException {
+        File resourceDir = mTemporaryFolder.newFolder();
+        for (String[] text : texts) {
+            File valuesDir = new File(resourceDir, "values-" + text[0]);
+            valuesDir.mkdir();
+            String xml = "<resources><string name=\"" + TEXT_NAME + "\">\"" + text[1]
+                    + "\"</string></resources>";
+            Files.write(new File(valuesDir, "strings.xml").toPath(),
+                    xml.getBytes(StandardCharsets.UTF_8));
+        }
+        return resourceDir;
+    }
+
+    /** Compares the pixels of {@code png} with the golden image from testdata. */
+    private static void assertSameImage(String golden, byte[] png) throws IOException {
+        BufferedImage expected;
+        try (InputStream in = ImageGeneratorTest.class.getResourceAsStream("/" + golden)) {
+            expected = ImageIO.read(in);
+        }
+        BufferedImage actual = ImageIO.read(new ByteArrayInputStream(png));
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertArrayEquals(golden, pixels(expected), pixels(actual));
+    }
+
+    private static int[] pixels(BufferedImage image) {
+        return image.getRaster().getPixels(0, 0, image.getWidth(), image.getHeight(),
+                (int[]) null);
+    }
+}
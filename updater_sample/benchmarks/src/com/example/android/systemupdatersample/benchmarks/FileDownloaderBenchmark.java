@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.benchmarks;
+
+import com.example.android.systemupdatersample.util.FileDownloader;
+import com.google.common.hash.Hashing;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmarks {@link FileDownloader} against a local HTTP server that supports range
+ * requests, with a varying number of connections and with or without SHA-256 verification.
+ * {@link #legacyCopy} is the baseline: the single {@link InputStream} to
+ * {@link FileOutputStream} copy FileDownloader used before, followed by hashing the file when
+ * verification is on. It ignores {@link #connections}.
+ */
+@State(Scope.Benchmark)
+public class FileDownloaderBenchmark {
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+    @Param({"1048576", "67108864"})
+    public int size;
+
+    @Param({"1", "4"})
+    public int connections;
+
+    @Param({"false", "true"})
+    public boolean verifySha256;
+
+    private byte[] mContent;
+    private String mSha256;
+    private HttpServer mServer;
+    private String mUrl;
+    private File mDestination;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        mContent = new byte[size];
+        new Random(size).nextBytes(mContent);
+        mSha256 = Hashing.sha256().hashBytes(mContent).toString();
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/ota.zip", this::serve);
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/ota.zip";
+        mDestination = File.createTempFile("file_downloader_benchmark", ".bin");
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws IOException {
+        mServer.stop(0);
+        Files.deleteIfExists(mDestination.toPath());
+    }
+
+    @Benchmark
+    public void download() throws IOException {
+        FileDownloader.newBuilder()
+                .url(mUrl)
+                .offset(0)
+                .size(size)
+                .destination(mDestination)
+                .chunkSize(Math.max(1, size / 4))
+                .connections(connections)
+                .resumable(false)
+                .sha256(verifySha256 ? mSha256 : null)
+                .build()
+                .download();
+    }
+
+    @Benchmark
+    public void legacyCopy() throws IOException {
+        URLConnection connection = new URL(mUrl).openConnection();
+        connection.connect();
+        try (InputStream input = connection.getInputStream();
+             OutputStream output = new FileOutputStream(mDestination)) {
+            byte[] data = new byte[4096];
+            long total = 0;
+            while (total < size) {
+                int count = input.read(data, 0, (int) Math.min(data.length, size - total));
+                if (count <= 0) {
+                    break;
+                }
+                output.write(data, 0, count);
+                total += count;
+            }
+            if (total != size) {
+                throw new IOException("Can't download file " + mUrl + " with given size " + size);
+            }
+        }
+        if (verifySha256 && !com.google.common.io.Files.asByteSource(mDestination)
+                .hash(Hashing.sha256()).toString().equals(mSha256)) {
+            throw new IOException("SHA-256 mismatch for " + mDestination);
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        int start = 0;
+        int end = mContent.length - 1;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        Matcher m = range == null ? null : RANGE_PATTERN.matcher(range);
+        if (m != null && m.matches()) {
+            start = Integer.parseInt(m.group(1));
+            end = Math.min(Integer.parseInt(m.group(2)), mContent.length - 1);
+            exchange.getResponseHeaders().set("Content-Range",
+                    "bytes " + start + "-" + end + "/" + mContent.length);
+            exchange.sendResponseHeaders(206, end - start + 1);
+        } else {
+            exchange.sendResponseHeaders(200, mContent.length);
+        }
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(mContent, start, end - start + 1);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.benchmarks;
+
+import com.example.android.systemupdatersample.PayloadSpec;
+import com.example.android.systemupdatersample.util.PackageFiles;
+import com.example.android.systemupdatersample.util.PayloadSpecs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Benchmarks {@link PayloadSpecs#forNonStreaming} on synthetic packages with a varying number
+ * of entries and payload sizes. {@link #zipFileGetEntry} opens the same package with
+ * {@link ZipFile} as a baseline. Payloads of 4 GiB and more are written as a hole in a sparse
+ * file, which makes the package ZIP64.
+ */
+@State(Scope.Benchmark)
+public class PayloadSpecsBenchmark {
+
+    @Param({"10", "1000", "20000"})
+    public int entryCount;
+
+    @Param({"1048576", "268435456", "5368709120"})
+    public long payloadSize;
+
+    private static final long UINT32_MAX = 0xffffffffL;
+
+    private final PayloadSpecs mPayloadSpecs = new PayloadSpecs();
+    private File mPackage;
+
+    @Setup(Level.Trial)
+    public void createPackage() throws IOException {
+        mPackage = File.createTempFile("payload_specs_benchmark", ".zip");
+        if (payloadSize >= UINT32_MAX) {
+            createSparsePackage();
+            return;
+        }
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(mPackage))) {
+            Random random = new Random(entryCount);
+            for (int i = 0; i < entryCount; i++) {
+                byte[] data = new byte[64 + random.nextInt(256)];
+                random.nextBytes(data);
+                out.putNextEntry(new ZipEntry("system/etc/file-" + i + ".bin"));
+                out.write(data);
+                out.closeEntry();
+            }
+            writeStored(out, PackageFiles.PAYLOAD_PROPERTIES_FILE_NAME,
+                    "FILE_HASH=abc\nFILE_SIZE=" + payloadSize + "\n");
+            writePayload(out, random);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deletePackage() throws IOException {
+        Files.deleteIfExists(mPackage.toPath());
+    }
+
+    @Benchmark
+    public PayloadSpec forNonStreaming() throws IOException {
+        return mPayloadSpecs.forNonStreaming(mPackage);
+    }
+
+    @Benchmark
+    public long zipFileGetEntry() throws IOException {
+        try (ZipFile zip = new ZipFile(mPackage)) {
+            return zip.getEntry(PackageFiles.PAYLOAD_BINARY_FILE_NAME).getCompressedSize();
+        }
+    }
+
+    private void writePayload(ZipOutputStream out, Random random) throws IOException {
+        byte[] block = new byte[1024 * 1024];
+        random.nextBytes(block);
+        CRC32 crc = new CRC32();
+        for (long written = 0; written < payloadSize; written += block.length) {
+            crc.update(block, 0, (int) Math.min(block.length, payloadSize - written));
+        }
+        ZipEntry entry = new ZipEntry(PackageFiles.PAYLOAD_BINARY_FILE_NAME);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(payloadSize);
+        entry.setCrc(crc.getValue());
+        out.putNextEntry(entry);
+        for (long written = 0; written < payloadSize; written += block.length) {
+            out.write(block, 0, (int) Math.min(block.length, payloadSize - written));
+        }
+        out.closeEntry();
+    }
+
+    private static void writeStored(ZipOutputStream out, String name, String content)
+            throws IOException {
+        byte[] data = content.getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        entry.setCrc(crc.getValue());
+        out.putNextEntry(entry);
+        out.write(data);
+        out.closeEntry();
+    }
+
+    /**
+     * Writes the package by hand since {@link ZipOutputStream} can't skip over the payload. All
+     * entries are stored; payload.bin is the last one, so only its sizes and the central
+     * directory offset need ZIP64 records.
+     */
+    private void createSparsePackage() throws IOException {
+        try (FileChannel channel = FileChannel.open(mPackage.toPath(),
+                StandardOpenOption.WRITE)) {
+            ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+            Random random = new Random(entryCount);
+            long position = 0;
+            for (int i = 0; i < entryCount; i++) {
+                byte[] data = new byte[64 + random.nextInt(256)];
+                random.nextBytes(data);
+                position = writeEntry(channel, position, centralDirectory,
+                        "system/etc/file-" + i + ".bin", data, data.length);
+            }
+            byte[] properties = ("FILE_HASH=abc\nFILE_SIZE=" + payloadSize + "\n")
+                    .getBytes(StandardCharsets.UTF_8);
+            position = writeEntry(channel, position, centralDirectory,
+                    PackageFiles.PAYLOAD_PROPERTIES_FILE_NAME, properties, properties.length);
+            position = writeEntry(channel, position, centralDirectory,
+                    PackageFiles.PAYLOAD_BINARY_FILE_NAME, null, payloadSize);
+
+            int entries = entryCount + 2;
+            long cdOffset = position;
+            long cdSize = centralDirectory.size();
+            channel.write(ByteBuffer.wrap(centralDirectory.toByteArray()), cdOffset);
+            long zip64EocdOffset = cdOffset + cdSize;
+            channel.write(flip(littleEndian(56)
+                    .putInt(0x06064b50).putLong(44).putShort((short) 45).putShort((short) 45)
+                    .putInt(0).putInt(0).putLong(entries).putLong(entries)
+                    .putLong(cdSize).putLong(cdOffset)), zip64EocdOffset);
+            channel.write(flip(littleEndian(20)
+                    .putInt(0x07064b50).putInt(0).putLong(zip64EocdOffset).putInt(1)),
+                    zip64EocdOffset + 56);
+            channel.write(flip(littleEndian(22)
+                    .putInt(0x06054b50).putShort((short) 0).putShort((short) 0)
+                    .putShort((short) 0xffff).putShort((short) 0xffff)
+                    .putInt((int) UINT32_MAX).putInt((int) UINT32_MAX).putShort((short) 0)),
+                    zip64EocdOffset + 76);
+        }
+    }
+
+    /**
+     * Writes a stored entry at {@code position} and returns the position after it. A null
+     * {@code data} leaves a hole of {@code size} zeros.
+     */
+    private static long writeEntry(FileChannel channel, long position,
+            ByteArrayOutputStream centralDirectory, String name, byte[] data, long size)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        if (data != null) {
+            crc.update(data);
+        } else {
+            byte[] zeros = new byte[1024 * 1024];
+            for (long hashed = 0; hashed < size; hashed += zeros.length) {
+                crc.update(zeros, 0, (int) Math.min(zeros.length, size - hashed));
+            }
+        }
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        boolean zip64 = size >= UINT32_MAX;
+        ByteBuffer extra = littleEndian(zip64 ? 20 : 0);
+        if (zip64) {
+            extra.putShort((short) 0x0001).putShort((short) 16).putLong(size).putLong(size);
+        }
+        int storedSize = zip64 ? (int) UINT32_MAX : (int) size;
+
+        ByteBuffer local = littleEndian(30 + nameBytes.length + extra.capacity())
+                .putInt(0x04034b50).putShort((short) 45).putShort((short) 0)
+                .putShort((short) ZipEntry.STORED).putShort((short) 0).putShort((short) 0x21)
+                .putInt((int) crc.getValue()).putInt(storedSize).putInt(storedSize)
+                .putShort((short) nameBytes.length).putShort((short) extra.capacity())
+                .put(nameBytes).put(extra.array());
+        channel.write(flip(local), position);
+        long dataOffset = position + local.capacity();
+        if (data != null) {
+            channel.write(ByteBuffer.wrap(data), dataOffset);
+        }
+
+        // Entries before payload.bin all start below 4 GiB.
+        ByteBuffer central = littleEndian(46 + nameBytes.length + extra.capacity())
+                .putInt(0x02014b50).putShort((short) 45).putShort((short) 45)
+                .putShort((short) 0).putShort((short) ZipEntry.STORED)
+                .putShort((short) 0).putShort((short) 0x21)
+                .putInt((int) crc.getValue()).putInt(storedSize).putInt(storedSize)
+                .putShort((short) nameBytes.length).putShort((short) extra.capacity())
+                .putShort((short) 0).putShort((short) 0).putShort((short) 0).putInt(0)
+                .putInt((int) position).put(nameBytes).put(extra.array());
+        centralDirectory.write(central.array(), 0, central.capacity());
+        return dataOffset + size;
+    }
+
+    private static ByteBuffer littleEndian(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer flip(ByteBuffer buffer) {
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.benchmarks;
+
+import com.example.android.systemupdatersample.PayloadSpec;
+import com.example.android.systemupdatersample.UpdateConfig;
+import com.example.android.systemupdatersample.util.UpdateCodec;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares {@link UpdateCodec} with Java serialization, which {@link PayloadSpec} and
+ * {@link UpdateConfig.AbConfig} used to be passed with, for payloads with different numbers
+ * of properties and property files.
+ */
+@State(Scope.Benchmark)
+public class UpdateCodecBenchmark {
+
+    @Param({"4", "64"})
+    public int fieldCount;
+
+    private PayloadSpec mPayloadSpec;
+    private UpdateConfig.AbConfig mAbConfig;
+    private byte[] mSerializedPayloadSpec;
+    private byte[] mEncodedPayloadSpec;
+    private byte[] mSerializedAbConfig;
+    private byte[] mEncodedAbConfig;
+
+    /** Size of the encoded data, reported next to the time. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Sizes {
+        public long bytes;
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        List<String> properties = new ArrayList<>();
+        UpdateConfig.PackageFile[] files = new UpdateConfig.PackageFile[fieldCount];
+        for (int i = 0; i < fieldCount; i++) {
+            properties.add("PROPERTY_" + i + "=" + Long.toHexString(i * 0x9e3779b97f4a7c15L));
+            files[i] = new UpdateConfig.PackageFile("file-" + i + ".bin", i * 4096L, 1000 + i,
+                    String.format("%064x", i));
+        }
+        mPayloadSpec = PayloadSpec.newBuilder()
+                .url("https://example.com/ota-builds/ota-build-001.zip")
+                .offset(1305)
+                .size(25874423)
+                .properties(properties)
+                .build();
+        mAbConfig = new UpdateConfig.AbConfig(false, true, files, null);
+        mSerializedPayloadSpec = serialize(mPayloadSpec);
+        mEncodedPayloadSpec = UpdateCodec.encode(mPayloadSpec);
+        mSerializedAbConfig = serialize(mAbConfig);
+        mEncodedAbConfig = UpdateCodec.encode(mAbConfig);
+    }
+
+    @Benchmark
+    public byte[] payloadSpecSerialize(Sizes sizes) throws IOException {
+        byte[] data = serialize(mPayloadSpec);
+        sizes.bytes += data.length;
+        return data;
+    }
+
+    @Benchmark
+    public byte[] payloadSpecEncode(Sizes sizes) {
+        byte[] data = UpdateCodec.encode(mPayloadSpec);
+        sizes.bytes += data.length;
+        return data;
+    }
+
+    @Benchmark
+    public Object payloadSpecDeserialize() throws Exception {
+        return deserialize(mSerializedPayloadSpec);
+    }
+
+    @Benchmark
+    public PayloadSpec payloadSpecDecode() throws IOException {
+        return UpdateCodec.decodePayloadSpec(mEncodedPayloadSpec);
+    }
+
+    @Benchmark
+    public byte[] abConfigSerialize(Sizes sizes) throws IOException {
+        byte[] data = serialize(mAbConfig);
+        sizes.bytes += data.length;
+        return data;
+    }
+
+    @Benchmark
+    public byte[] abConfigEncode(Sizes sizes) {
+        byte[] data = UpdateCodec.encode(mAbConfig);
+        sizes.bytes += data.length;
+        return data;
+    }
+
+    @Benchmark
+    public Object abConfigDeserialize() throws Exception {
+        return deserialize(mSerializedAbConfig);
+    }
+
+    @Benchmark
+    public UpdateConfig.AbConfig abConfigDecode() throws IOException {
+        return UpdateCodec.decodeAbConfig(mEncodedAbConfig);
+    }
+
+    private static byte[] serialize(Serializable value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] data) throws Exception {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return in.readObject();
+        }
+    }
+}
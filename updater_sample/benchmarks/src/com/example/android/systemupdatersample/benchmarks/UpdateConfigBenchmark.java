@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.benchmarks;
+
+import com.example.android.systemupdatersample.UpdateConfig;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Benchmarks {@link UpdateConfig#fromJson} on sets of configs like the ones generated by
+ * {@code tools/gen_update_config.py}: from strings, from UTF-8 bytes as configs are read from
+ * files, and building just the {@link JSONObject} tree the parser used to build.
+ *
+ * <p>On host {@code org.json} and {@code android.util.JsonReader} are minimal stubs, so
+ * absolute numbers differ from a device; compare results of the same environment only.</p>
+ */
+@State(Scope.Benchmark)
+public class UpdateConfigBenchmark {
+
+    private static final String[] PROPERTY_FILES = {
+            "payload_metadata.bin", "payload.bin", "payload_properties.txt",
+            "care_map.txt", "compatibility.zip", "metadata"};
+
+    @Param({"10", "1000"})
+    public int configCount;
+
+    private String[] mConfigs;
+    private byte[][] mConfigBytes;
+
+    @Setup
+    public void createConfigs() {
+        mConfigs = new String[configCount];
+        for (int i = 0; i < configCount; i++) {
+            StringBuilder json = new StringBuilder()
+                    .append("{\"__\": \"*** Generated using tools/gen_update_config.py ***\",")
+                    .append("\"name\": \"S ota-build-").append(i).append("\",")
+                    .append("\"url\": \"https://example.com/ota-builds/ota-build-")
+                    .append(i).append(".zip\",")
+                    .append("\"ab_install_type\": \"STREAMING\",")
+                    .append("\"ab_config\": {\"force_switch_slot\": false,")
+                    .append("\"verify_payload_metadata\": true,")
+                    .append("\"property_files\": [");
+            long offset = 41;
+            for (int f = 0; f < PROPERTY_FILES.length; f++) {
+                long size = 100 + 37L * f * (i + 1);
+                json.append(f == 0 ? "" : ",")
+                        .append("{\"filename\": \"").append(PROPERTY_FILES[f]).append("\",")
+                        .append("\"offset\": ").append(offset).append(",")
+                        .append("\"size\": ").append(size).append(",")
+                        .append("\"sha256\": \"")
+                        .append(String.format("%064x", offset * 31 + size)).append("\"}");
+                offset += size + 80;
+            }
+            json.append("]}}");
+            mConfigs[i] = json.toString();
+        }
+        mConfigBytes = new byte[configCount][];
+        for (int i = 0; i < configCount; i++) {
+            mConfigBytes[i] = mConfigs[i].getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Benchmark
+    public void fromJson(Blackhole blackhole) throws JSONException {
+        for (String config : mConfigs) {
+            blackhole.consume(UpdateConfig.fromJson(config));
+        }
+    }
+
+    @Benchmark
+    public void fromJsonStream(Blackhole blackhole) throws IOException, JSONException {
+        for (byte[] config : mConfigBytes) {
+            Reader reader = new InputStreamReader(
+                    new ByteArrayInputStream(config), StandardCharsets.UTF_8);
+            blackhole.consume(UpdateConfig.fromJson(reader));
+        }
+    }
+
+    @Benchmark
+    public void jsonObjectTree(Blackhole blackhole) throws JSONException {
+        for (String config : mConfigs) {
+            blackhole.consume(new JSONObject(config));
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.benchmarks;
+
+import com.example.android.systemupdatersample.util.UpdateEventDispatcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleConsumer;
+
+/**
+ * Measures cost of a progress update on the thread that publishes it, i.e. the
+ * update_engine binder thread in {@code UpdateManager#onStatusUpdate}.
+ *
+ * <p>{@link #lockedCallback} is the way {@code UpdateManager} used to do it: a callback getter
+ * that takes a lock and wraps the callback in {@link Optional}, a formatted log message, and
+ * the callback running on the calling thread. {@link #dispatcher} publishes the event to
+ * {@link UpdateEventDispatcher}, with the listeners running on its thread.</p>
+ */
+@State(Scope.Benchmark)
+public class UpdateEventDispatcherBenchmark {
+
+    @Param({"1", "4"})
+    public int listenerCount;
+
+    private final Object mLock = new Object();
+    private DoubleConsumer mCallback;
+
+    private UpdateEventDispatcher mDispatcher;
+    private final LongAdder mDelivered = new LongAdder();
+    private float mProgress;
+
+    @Setup
+    public void setUp() {
+        mDispatcher = new UpdateEventDispatcher();
+        DoubleConsumer listener = progress -> mDelivered.increment();
+        DoubleConsumer callback = progress -> { };
+        for (int i = 0; i < listenerCount; i++) {
+            mDispatcher.addListener(UpdateEventDispatcher.EVENT_PROGRESS, listener);
+            DoubleConsumer previous = callback;
+            callback = progress -> {
+                previous.accept(progress);
+                mDelivered.increment();
+            };
+        }
+        mCallback = callback;
+    }
+
+    private Optional<DoubleConsumer> getCallback() {
+        synchronized (mLock) {
+            return mCallback == null ? Optional.empty() : Optional.of(mCallback);
+        }
+    }
+
+    @Benchmark
+    public void lockedCallback(Blackhole blackhole) {
+        float progress = nextProgress();
+        blackhole.consume(String.format(
+                "onStatusUpdate invoked, status=%s, progress=%.2f", 3, progress));
+        getCallback().ifPresent(callback -> callback.accept(progress));
+    }
+
+    @Benchmark
+    public void dispatcher() {
+        mDispatcher.publish(UpdateEventDispatcher.EVENT_PROGRESS, (double) nextProgress());
+    }
+
+    private float nextProgress() {
+        mProgress = mProgress >= 1 ? 0 : mProgress + 0.0001f;
+        return mProgress;
+    }
+}
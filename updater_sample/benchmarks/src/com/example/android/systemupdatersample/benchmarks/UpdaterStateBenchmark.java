@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.benchmarks;
+
+import com.example.android.systemupdatersample.UpdaterState;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Benchmarks {@link UpdaterState#set} when it's shared by several threads, like the
+ * {@code UpdateManager} state that is updated from UpdateEngine callbacks and read by UI.
+ */
+@State(Scope.Benchmark)
+public class UpdaterStateBenchmark {
+
+    private final UpdaterState mState = new UpdaterState(UpdaterState.IDLE);
+
+    /** All threads write; IDLE to IDLE is always a valid transition. */
+    @Benchmark
+    @Threads(4)
+    public void setContended() throws UpdaterState.InvalidTransitionException {
+        mState.set(UpdaterState.IDLE);
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(1)
+    public void writer() throws UpdaterState.InvalidTransitionException {
+        mState.set(UpdaterState.IDLE);
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(3)
+    public int reader() {
+        return mState.get();
+    }
+}
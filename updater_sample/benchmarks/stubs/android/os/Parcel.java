@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Host stub of {@code android.os.Parcel}. Parceling isn't benchmarked on host.
+ */
+public final class Parcel {
+
+    private Parcel() {
+    }
+
+    public String readString() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public int readInt() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public long readLong() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public byte[] createByteArray() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public ArrayList<String> createStringArrayList() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void writeString(String value) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void writeInt(int value) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void writeLong(long value) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void writeByteArray(byte[] value) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void writeStringList(List<String> value) {
+        throw new RuntimeException("Stub!");
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Minimal host implementation of {@code android.util.JsonReader}: a strict pull parser
+ * covering what {@code UpdateConfig} uses.
+ */
+public final class JsonReader implements Closeable {
+
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_ARRAY = 2;
+    private static final int NONEMPTY_ARRAY = 3;
+    private static final int EMPTY_OBJECT = 4;
+    private static final int DANGLING_NAME = 5;
+    private static final int NONEMPTY_OBJECT = 6;
+
+    private final Reader mIn;
+    private final char[] mBuffer = new char[1024];
+    private int mPos;
+    private int mLimit;
+
+    private int[] mStack = new int[32];
+    private int mStackSize;
+
+    /** Token returned by {@link #peek()} and not consumed yet. */
+    private JsonToken mPeeked;
+    /** Name or value text of {@link #mPeeked}. */
+    private String mValue;
+
+    public JsonReader(Reader in) {
+        this.mIn = in;
+        push(EMPTY_DOCUMENT);
+    }
+
+    public void beginArray() throws IOException {
+        expect(JsonToken.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    public void endArray() throws IOException {
+        expect(JsonToken.END_ARRAY);
+        mStackSize--;
+    }
+
+    public void beginObject() throws IOException {
+        expect(JsonToken.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    public void endObject() throws IOException {
+        expect(JsonToken.END_OBJECT);
+        mStackSize--;
+    }
+
+    public boolean hasNext() throws IOException {
+        JsonToken token = peek();
+        return token != JsonToken.END_OBJECT && token != JsonToken.END_ARRAY;
+    }
+
+    public String nextName() throws IOException {
+        expect(JsonToken.NAME);
+        return mValue;
+    }
+
+    public String nextString() throws IOException {
+        JsonToken token = peek();
+        if (token != JsonToken.STRING && token != JsonToken.NUMBER) {
+            throw new IllegalStateException("Expected a string but was " + token);
+        }
+        mPeeked = null;
+        return mValue;
+    }
+
+    public boolean nextBoolean() throws IOException {
+        expect(JsonToken.BOOLEAN);
+        return "true".equals(mValue);
+    }
+
+    public void nextNull() throws IOException {
+        expect(JsonToken.NULL);
+    }
+
+    public long nextLong() throws IOException {
+        JsonToken token = peek();
+        if (token != JsonToken.STRING && token != JsonToken.NUMBER) {
+            throw new IllegalStateException("Expected a long but was " + token);
+        }
+        mPeeked = null;
+        try {
+            return Long.parseLong(mValue);
+        } catch (NumberFormatException e) {
+            double value = Double.parseDouble(mValue);
+            if (value != (long) value) {
+                throw new NumberFormatException("Expected a long but was " + mValue);
+            }
+            return (long) value;
+        }
+    }
+
+    public int nextInt() throws IOException {
+        long value = nextLong();
+        if (value != (int) value) {
+            throw new NumberFormatException("Expected an int but was " + value);
+        }
+        return (int) value;
+    }
+
+    public void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            JsonToken token = peek();
+            if (token == JsonToken.BEGIN_ARRAY) {
+                beginArray();
+                depth++;
+            } else if (token == JsonToken.BEGIN_OBJECT) {
+                beginObject();
+                depth++;
+            } else if (token == JsonToken.END_ARRAY) {
+                endArray();
+                depth--;
+            } else if (token == JsonToken.END_OBJECT) {
+                endObject();
+                depth--;
+            } else {
+                mPeeked = null;
+            }
+        } while (depth != 0);
+    }
+
+    public JsonToken peek() throws IOException {
+        if (mPeeked != null) {
+            return mPeeked;
+        }
+        int c;
+        switch (mStack[mStackSize - 1]) {
+            case EMPTY_DOCUMENT:
+                mStack[mStackSize - 1] = NONEMPTY_DOCUMENT;
+                return mPeeked = readValue();
+            case NONEMPTY_DOCUMENT:
+                if (nextNonWhitespace() != -1) {
+                    throw syntaxError("Expected end of document");
+                }
+                return mPeeked = JsonToken.END_DOCUMENT;
+            case EMPTY_ARRAY:
+                mStack[mStackSize - 1] = NONEMPTY_ARRAY;
+                c = nextNonWhitespace();
+                if (c == ']') {
+                    return mPeeked = JsonToken.END_ARRAY;
+                }
+                if (c == -1) {
+                    throw syntaxError("Unterminated array");
+                }
+                mPos--;
+                return mPeeked = readValue();
+            case NONEMPTY_ARRAY:
+                c = nextNonWhitespace();
+                if (c == ']') {
+                    return mPeeked = JsonToken.END_ARRAY;
+                }
+                if (c != ',') {
+                    throw syntaxError("Unterminated array");
+                }
+                return mPeeked = readValue();
+            case DANGLING_NAME:
+                if (nextNonWhitespace() != ':') {
+                    throw syntaxError("Expected ':'");
+                }
+                mStack[mStackSize - 1] = NONEMPTY_OBJECT;
+                return mPeeked = readValue();
+            default:
+                c = nextNonWhitespace();
+                if (mStack[mStackSize - 1] == NONEMPTY_OBJECT) {
+                    if (c == '}') {
+                        return mPeeked = JsonToken.END_OBJECT;
+                    }
+                    if (c != ',') {
+                        throw syntaxError("Unterminated object");
+                    }
+                    c = nextNonWhitespace();
+                } else if (c == '}') {
+                    return mPeeked = JsonToken.END_OBJECT;
+                }
+                if (c != '"') {
+                    throw syntaxError("Expected a name");
+                }
+                mStack[mStackSize - 1] = DANGLING_NAME;
+                mValue = readString();
+                return mPeeked = JsonToken.NAME;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mPeeked = null;
+        mIn.close();
+    }
+
+    private void expect(JsonToken expected) throws IOException {
+        JsonToken token = peek();
+        if (token != expected) {
+            throw new IllegalStateException("Expected " + expected + " but was " + token);
+        }
+        mPeeked = null;
+    }
+
+    private void push(int scope) {
+        if (mStackSize == mStack.length) {
+            mStack = Arrays.copyOf(mStack, mStackSize * 2);
+        }
+        mStack[mStackSize++] = scope;
+    }
+
+    private JsonToken readValue() throws IOException {
+        int c = nextNonWhitespace();
+        switch (c) {
+            case '{':
+                return JsonToken.BEGIN_OBJECT;
+            case '[':
+                return JsonToken.BEGIN_ARRAY;
+            case '"':
+                mValue = readString();
+                return JsonToken.STRING;
+            case -1:
+                throw syntaxError("End of input");
+            default:
+                mPos--;
+                mValue = readLiteral();
+                if ("true".equals(mValue) || "false".equals(mValue)) {
+                    return JsonToken.BOOLEAN;
+                }
+                if ("null".equals(mValue)) {
+                    return JsonToken.NULL;
+                }
+                if (mValue.isEmpty()) {
+                    throw syntaxError("Expected literal value");
+                }
+                return JsonToken.NUMBER;
+        }
+    }
+
+    private String readString() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                throw syntaxError("Unterminated string");
+            }
+            if (c == '"') {
+                return builder.toString();
+            }
+            if (c != '\\') {
+                builder.append((char) c);
+                continue;
+            }
+            c = read();
+            switch (c) {
+                case 'u':
+                    char[] hex = new char[4];
+                    for (int i = 0; i < hex.length; i++) {
+                        int h = read();
+                        if (h == -1) {
+                            throw syntaxError("Unterminated escape sequence");
+                        }
+                        hex[i] = (char) h;
+                    }
+                    builder.append((char) Integer.parseInt(new String(hex), 16));
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case -1:
+                    throw syntaxError("Unterminated escape sequence");
+                default:
+                    builder.append((char) c);
+                    break;
+            }
+        }
+    }
+
+    private String readLiteral() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        int c;
+        while ((c = read()) != -1) {
+            if ("{}[]:,\"\\ \t\r\n".indexOf(c) >= 0) {
+                mPos--;
+                break;
+            }
+            builder.append((char) c);
+        }
+        return builder.toString();
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c;
+        while ((c = read()) != -1) {
+            if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    private int read() throws IOException {
+        if (mPos == mLimit) {
+            int count = mIn.read(mBuffer, 0, mBuffer.length);
+            if (count <= 0) {
+                return -1;
+            }
+            mPos = 0;
+            mLimit = count;
+        }
+        return mBuffer[mPos++];
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException(message + " at character " + mPos);
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Host stub of {@code android.util.SparseArray}.
+ */
+public class SparseArray<E> {
+
+    private final Map<Integer, E> mValues = new HashMap<>();
+
+    public void put(int key, E value) {
+        mValues.put(key, value);
+    }
+
+    public E get(int key) {
+        return mValues.get(key);
+    }
+}
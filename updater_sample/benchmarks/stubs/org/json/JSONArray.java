@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.json;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Minimal host implementation of {@code org.json.JSONArray} covering what
+ * {@code UpdateConfig} uses.
+ */
+public class JSONArray {
+
+    private final List<Object> mValues = new ArrayList<>();
+
+    public JSONArray() {
+    }
+
+    public JSONArray put(Object value) {
+        mValues.add(value);
+        return this;
+    }
+
+    public int length() {
+        return mValues.size();
+    }
+
+    public Object get(int index) throws JSONException {
+        if (index < 0 || index >= mValues.size()) {
+            throw new JSONException("Index " + index + " out of range");
+        }
+        return mValues.get(index);
+    }
+
+    public JSONObject getJSONObject(int index) throws JSONException {
+        Object value = get(index);
+        if (!(value instanceof JSONObject)) {
+            throw new JSONException("Value at " + index + " is not a JSONObject");
+        }
+        return (JSONObject) value;
+    }
+}
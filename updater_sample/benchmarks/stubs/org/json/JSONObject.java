@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.json;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Minimal host implementation of {@code org.json.JSONObject} covering what
+ * {@code UpdateConfig} uses.
+ */
+public class JSONObject {
+
+    /** Value of JSON {@code null}. */
+    public static final Object NULL = new Object() {
+        @Override
+        public String toString() {
+            return "null";
+        }
+    };
+
+    private final Map<String, Object> mValues = new LinkedHashMap<>();
+
+    public JSONObject() {
+    }
+
+    public JSONObject(String json) throws JSONException {
+        Object value = new JSONTokener(json).nextValue();
+        if (!(value instanceof JSONObject)) {
+            throw new JSONException("Value is not a JSONObject");
+        }
+        mValues.putAll(((JSONObject) value).mValues);
+    }
+
+    public JSONObject put(String name, Object value) {
+        mValues.put(name, value);
+        return this;
+    }
+
+    public boolean has(String name) {
+        return mValues.containsKey(name);
+    }
+
+    public Object get(String name) throws JSONException {
+        Object value = mValues.get(name);
+        if (value == null) {
+            throw new JSONException("No value for " + name);
+        }
+        return value;
+    }
+
+    public String getString(String name) throws JSONException {
+        Object value = get(name);
+        if (value == NULL || value instanceof JSONObject || value instanceof JSONArray) {
+            throw new JSONException("Value at " + name + " is not a string");
+        }
+        return String.valueOf(value);
+    }
+
+    public String optString(String name, String fallback) {
+        Object value = mValues.get(name);
+        return value == null || value == NULL ? fallback : String.valueOf(value);
+    }
+
+    public boolean getBoolean(String name) throws JSONException {
+        Object value = get(name);
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        if ("true".equalsIgnoreCase(String.valueOf(value))) {
+            return true;
+        }
+        if ("false".equalsIgnoreCase(String.valueOf(value))) {
+            return false;
+        }
+        throw new JSONException("Value at " + name + " is not a boolean");
+    }
+
+    public long getLong(String name) throws JSONException {
+        Object value = get(name);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        try {
+            return (long) Double.parseDouble(String.valueOf(value));
+        } catch (NumberFormatException e) {
+            throw new JSONException("Value at " + name + " is not a long");
+        }
+    }
+
+    public int getInt(String name) throws JSONException {
+        return (int) getLong(name);
+    }
+
+    public JSONObject getJSONObject(String name) throws JSONException {
+        Object value = get(name);
+        if (!(value instanceof JSONObject)) {
+            throw new JSONException("Value at " + name + " is not a JSONObject");
+        }
+        return (JSONObject) value;
+    }
+
+    public JSONArray getJSONArray(String name) throws JSONException {
+        Object value = get(name);
+        if (!(value instanceof JSONArray)) {
+            throw new JSONException("Value at " + name + " is not a JSONArray");
+        }
+        return (JSONArray) value;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.json;
+
+/**
+ * Minimal host implementation of {@code org.json.JSONTokener}: a recursive descent parser
+ * producing {@link JSONObject}, {@link JSONArray}, {@link String}, {@link Long},
+ * {@link Double}, {@link Boolean} and {@link JSONObject#NULL}.
+ */
+public class JSONTokener {
+
+    private final String mIn;
+    private int mPos;
+
+    public JSONTokener(String in) {
+        this.mIn = in;
+    }
+
+    public Object nextValue() throws JSONException {
+        char c = nextClean();
+        switch (c) {
+            case '{':
+                return readObject();
+            case '[':
+                return readArray();
+            case '"':
+                return readString();
+            default:
+                mPos--;
+                return readLiteral();
+        }
+    }
+
+    private JSONObject readObject() throws JSONException {
+        JSONObject result = new JSONObject();
+        if (nextClean() == '}') {
+            return result;
+        }
+        mPos--;
+        while (true) {
+            if (nextClean() != '"') {
+                throw syntaxError("Expected a name");
+            }
+            String name = readString();
+            if (nextClean() != ':') {
+                throw syntaxError("Expected ':' after " + name);
+            }
+            result.put(name, nextValue());
+            char c = nextClean();
+            if (c == '}') {
+                return result;
+            }
+            if (c != ',') {
+                throw syntaxError("Unterminated object");
+            }
+        }
+    }
+
+    private JSONArray readArray() throws JSONException {
+        JSONArray result = new JSONArray();
+        if (nextClean() == ']') {
+            return result;
+        }
+        mPos--;
+        while (true) {
+            result.put(nextValue());
+            char c = nextClean();
+            if (c == ']') {
+                return result;
+            }
+            if (c != ',') {
+                throw syntaxError("Unterminated array");
+            }
+        }
+    }
+
+    private String readString() throws JSONException {
+        StringBuilder builder = new StringBuilder();
+        while (mPos < mIn.length()) {
+            char c = mIn.charAt(mPos++);
+            if (c == '"') {
+                return builder.toString();
+            }
+            if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+            if (mPos >= mIn.length()) {
+                break;
+            }
+            char escaped = mIn.charAt(mPos++);
+            switch (escaped) {
+                case 'u':
+                    if (mPos + 4 > mIn.length()) {
+                        throw syntaxError("Unterminated escape sequence");
+                    }
+                    builder.append((char) Integer.parseInt(mIn.substring(mPos, mPos + 4), 16));
+                    mPos += 4;
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                default:
+                    builder.append(escaped);
+                    break;
+            }
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    private Object readLiteral() throws JSONException {
+        int start = mPos;
+        while (mPos < mIn.length() && "{}[]:,\"\\ \t\r\n".indexOf(mIn.charAt(mPos)) < 0) {
+            mPos++;
+        }
+        String literal = mIn.substring(start, mPos);
+        if (literal.isEmpty()) {
+            throw syntaxError("Expected literal value");
+        }
+        if ("null".equals(literal)) {
+            return JSONObject.NULL;
+        }
+        if ("true".equals(literal)) {
+            return Boolean.TRUE;
+        }
+        if ("false".equals(literal)) {
+            return Boolean.FALSE;
+        }
+        try {
+            if (literal.indexOf('.') < 0 && literal.indexOf('e') < 0
+                    && literal.indexOf('E') < 0) {
+                return Long.parseLong(literal);
+            }
+            return Double.parseDouble(literal);
+        } catch (NumberFormatException e) {
+            return literal;
+        }
+    }
+
+    private char nextClean() throws JSONException {
+        while (mPos < mIn.length()) {
+            char c = mIn.charAt(mPos++);
+            if (!Character.isWhitespace(c)) {
+                return c;
+            }
+        }
+        throw syntaxError("End of input");
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at character " + mPos);
+    }
+}
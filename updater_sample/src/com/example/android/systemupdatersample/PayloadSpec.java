@@ -16,6 +16,8 @@
 
 package com.example.android.systemupdatersample;
 
+import android.os.Parcel;
+import android.os.Parcelable;
 import android.os.UpdateEngine;
 
 import java.io.Serializable;
@@ -23,11 +25,27 @@ import java.util.List;
 
 /**
  * Payload that will be given to {@link UpdateEngine#applyPayload)}.
+ *
+ * <p>It's passed between components as {@link Parcelable}, and persisted with
+ * {@code UpdateCodec}; {@link Serializable} is kept only for compatibility.</p>
  */
-public class PayloadSpec implements Serializable {
+public class PayloadSpec implements Parcelable, Serializable {
 
     private static final long serialVersionUID = 41043L;
 
+    public static final Parcelable.Creator<PayloadSpec> CREATOR =
+            new Parcelable.Creator<PayloadSpec>() {
+                @Override
+                public PayloadSpec createFromParcel(Parcel source) {
+                    return new PayloadSpec(source);
+                }
+
+                @Override
+                public PayloadSpec[] newArray(int size) {
+                    return new PayloadSpec[size];
+                }
+            };
+
     /**
      * Creates a payload spec {@link Builder}
      */
@@ -47,6 +65,13 @@ public class PayloadSpec implements Serializable {
         this.mProperties = b.mProperties;
     }
 
+    protected PayloadSpec(Parcel in) {
+        this.mUrl = in.readString();
+        this.mOffset = in.readLong();
+        this.mSize = in.readLong();
+        this.mProperties = in.createStringArrayList();
+    }
+
     public String getUrl() {
         return mUrl;
     }
@@ -63,6 +88,19 @@ public class PayloadSpec implements Serializable {
         return mProperties;
     }
 
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(mUrl);
+        dest.writeLong(mOffset);
+        dest.writeLong(mSize);
+        dest.writeStringList(mProperties);
+    }
+
     /**
      * payload spec builder.
      *
@@ -18,13 +18,18 @@ package com.example.android.systemupdatersample;
 
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.example.android.systemupdatersample.util.UpdateCodec;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
 import java.io.Serializable;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Optional;
 
@@ -52,12 +57,61 @@ public class UpdateConfig implements Parcelable {
 
     /** parse update config from json */
     public static UpdateConfig fromJson(String json) throws JSONException {
+        try {
+            UpdateConfig c = fromJson(new StringReader(json));
+            c.mRawJson = json;
+            return c;
+        } catch (IOException e) {
+            // StringReader doesn't throw, it's a syntax error.
+            throw new JSONException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Parses update config from a stream of json without building a tree of the whole
+     * document. {@link #getRawJson()} of the result is {@code null}, the caller keeps the
+     * source if it needs to show it.
+     *
+     * @throws IOException if {@code reader} fails or json is malformed
+     * @throws JSONException if json is well-formed but not a valid config
+     */
+    public static UpdateConfig fromJson(Reader reader) throws IOException, JSONException {
         UpdateConfig c = new UpdateConfig();
+        String abInstallType = null;
+        JsonReader r = new JsonReader(reader);
+        try {
+            r.beginObject();
+            while (r.hasNext()) {
+                switch (r.nextName()) {
+                    case "name":
+                        c.mName = r.nextString();
+                        break;
+                    case "url":
+                        c.mUrl = r.nextString();
+                        break;
+                    case "ab_install_type":
+                        abInstallType = r.nextString();
+                        break;
+                    case "ab_config":
+                        // TODO: parse only for A/B updates when non-A/B is implemented
+                        c.mAbConfig = readAbConfig(r);
+                        break;
+                    default:
+                        r.skipValue();
+                        break;
+                }
+            }
+            r.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            // JsonReader reports values of unexpected types this way.
+            throw new JSONException(e.getMessage(), e);
+        }
 
-        JSONObject o = new JSONObject(json);
-        c.mName = o.getString("name");
-        c.mUrl = o.getString("url");
-        switch (o.getString("ab_install_type")) {
+        requireField(c.mName, "name");
+        requireField(c.mUrl, "url");
+        requireField(abInstallType, "ab_install_type");
+        requireField(c.mAbConfig, "ab_config");
+        switch (abInstallType) {
             case AB_INSTALL_TYPE_NON_STREAMING_JSON:
                 c.mAbInstallType = AB_INSTALL_TYPE_NON_STREAMING;
                 break;
@@ -66,33 +120,94 @@ public class UpdateConfig implements Parcelable {
                 break;
             default:
                 throw new JSONException("Invalid type, expected either "
-                        + "NON_STREAMING or STREAMING, got " + o.getString("ab_install_type"));
+                        + "NON_STREAMING or STREAMING, got " + abInstallType);
         }
+        return c;
+    }
+
+    private static AbConfig readAbConfig(JsonReader r) throws IOException, JSONException {
+        Boolean forceSwitchSlot = null;
+        Boolean verifyPayloadMetadata = null;
+        PackageFile[] propertyFiles = new PackageFile[0];
+        String authorization = null;
+        r.beginObject();
+        while (r.hasNext()) {
+            switch (r.nextName()) {
+                case "force_switch_slot":
+                    forceSwitchSlot = r.nextBoolean();
+                    break;
+                case "verify_payload_metadata":
+                    verifyPayloadMetadata = r.nextBoolean();
+                    break;
+                case "property_files":
+                    propertyFiles = readPropertyFiles(r);
+                    break;
+                case "authorization":
+                    authorization = nextOptionalString(r);
+                    break;
+                default:
+                    r.skipValue();
+                    break;
+            }
+        }
+        r.endObject();
+        requireField(forceSwitchSlot, "force_switch_slot");
+        requireField(verifyPayloadMetadata, "verify_payload_metadata");
+        return new AbConfig(forceSwitchSlot, verifyPayloadMetadata, propertyFiles, authorization);
+    }
 
-        // TODO: parse only for A/B updates when non-A/B is implemented
-        JSONObject ab = o.getJSONObject("ab_config");
-        boolean forceSwitchSlot = ab.getBoolean("force_switch_slot");
-        boolean verifyPayloadMetadata = ab.getBoolean("verify_payload_metadata");
+    private static PackageFile[] readPropertyFiles(JsonReader r)
+            throws IOException, JSONException {
         ArrayList<PackageFile> propertyFiles = new ArrayList<>();
-        if (ab.has("property_files")) {
-            JSONArray propertyFilesJson = ab.getJSONArray("property_files");
-            for (int i = 0; i < propertyFilesJson.length(); i++) {
-                JSONObject p = propertyFilesJson.getJSONObject(i);
-                propertyFiles.add(new PackageFile(
-                        p.getString("filename"),
-                        p.getLong("offset"),
-                        p.getLong("size")));
+        r.beginArray();
+        while (r.hasNext()) {
+            String filename = null;
+            long offset = -1;
+            long size = -1;
+            String sha256 = null;
+            r.beginObject();
+            while (r.hasNext()) {
+                switch (r.nextName()) {
+                    case "filename":
+                        filename = r.nextString();
+                        break;
+                    case "offset":
+                        offset = r.nextLong();
+                        break;
+                    case "size":
+                        size = r.nextLong();
+                        break;
+                    case "sha256":
+                        sha256 = nextOptionalString(r);
+                        break;
+                    default:
+                        r.skipValue();
+                        break;
+                }
+            }
+            r.endObject();
+            requireField(filename, "filename");
+            if (offset < 0 || size < 0) {
+                throw new JSONException("Missing offset or size of " + filename);
             }
+            propertyFiles.add(new PackageFile(filename, offset, size, sha256));
+        }
+        r.endArray();
+        return propertyFiles.toArray(new PackageFile[propertyFiles.size()]);
+    }
+
+    private static String nextOptionalString(JsonReader r) throws IOException {
+        if (r.peek() == JsonToken.NULL) {
+            r.nextNull();
+            return null;
+        }
+        return r.nextString();
+    }
+
+    private static void requireField(Object value, String name) throws JSONException {
+        if (value == null) {
+            throw new JSONException("No value for " + name);
         }
-        String authorization = ab.optString("authorization", null);
-        c.mAbConfig = new AbConfig(
-                forceSwitchSlot,
-                verifyPayloadMetadata,
-                propertyFiles.toArray(new PackageFile[0]),
-                authorization);
-
-        c.mRawJson = json;
-        return c;
     }
 
     /**
@@ -113,6 +228,7 @@ public class UpdateConfig implements Parcelable {
     /** A/B update configurations */
     private AbConfig mAbConfig;
 
+    /** source of the config, {@code null} if it was parsed from a stream */
     private String mRawJson;
 
     protected UpdateConfig() {
@@ -122,7 +238,12 @@ public class UpdateConfig implements Parcelable {
         this.mName = in.readString();
         this.mUrl = in.readString();
         this.mAbInstallType = in.readInt();
-        this.mAbConfig = (AbConfig) in.readSerializable();
+        byte[] abConfig = in.createByteArray();
+        try {
+            this.mAbConfig = abConfig == null ? null : UpdateCodec.decodeAbConfig(abConfig);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid ab_config in parcel", e);
+        }
         this.mRawJson = in.readString();
     }
 
@@ -132,6 +253,11 @@ public class UpdateConfig implements Parcelable {
         this.mAbInstallType = installType;
     }
 
+    public UpdateConfig(String name, String url, int installType, AbConfig abConfig) {
+        this(name, url, installType);
+        this.mAbConfig = abConfig;
+    }
+
     public String getName() {
         return mName;
     }
@@ -140,6 +266,9 @@ public class UpdateConfig implements Parcelable {
         return mUrl;
     }
 
+    /**
+     * @return json the config was parsed from by {@link #fromJson(String)}, or {@code null}
+     */
     public String getRawJson() {
         return mRawJson;
     }
@@ -175,7 +304,7 @@ public class UpdateConfig implements Parcelable {
         dest.writeString(mName);
         dest.writeString(mUrl);
         dest.writeInt(mAbInstallType);
-        dest.writeSerializable(mAbConfig);
+        dest.writeByteArray(mAbConfig == null ? null : UpdateCodec.encode(mAbConfig));
         dest.writeString(mRawJson);
     }
 
@@ -195,10 +324,18 @@ public class UpdateConfig implements Parcelable {
         /** size of the update data in archive */
         private long mSize;
 
+        /** hex SHA-256 digest of the update data, optional */
+        private String mSha256;
+
         public PackageFile(String filename, long offset, long size) {
+            this(filename, offset, size, null);
+        }
+
+        public PackageFile(String filename, long offset, long size, String sha256) {
             this.mFilename = filename;
             this.mOffset = offset;
             this.mSize = size;
+            this.mSha256 = sha256;
         }
 
         public String getFilename() {
@@ -212,6 +349,10 @@ public class UpdateConfig implements Parcelable {
         public long getSize() {
             return mSize;
         }
+
+        public Optional<String> getSha256() {
+            return mSha256 == null ? Optional.empty() : Optional.of(mSha256);
+        }
     }
 
     /**
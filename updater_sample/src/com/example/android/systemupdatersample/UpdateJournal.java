@@ -0,0 +1,463 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample;
+
+import android.util.Log;
+
+import com.example.android.systemupdatersample.util.UpdateCodec;
+import com.google.common.collect.ImmutableList;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of {@link UpdateManager} state: updater state transitions, whether
+ * manual slot switch is required, the last payload given to update_engine, and the queue of
+ * updates to apply after it. It allows
+ * {@link UpdateManager} to continue an update after the app process restarts.
+ *
+ * <p>The file starts with a header, followed by records framed as
+ * {@code [length][crc32][record]}. A torn or corrupted record at the end of the file, left by
+ * a crash while it was written, is dropped when the journal is loaded. Records are written
+ * right away, but {@code fsync} is batched: it runs at most once per
+ * {@link #SYNC_DELAY_MILLIS} and on {@link #sync()}. When the journal has
+ * {@link #COMPACT_THRESHOLD} records, it's rewritten with only the current state.</p>
+ *
+ * <p>{@link #close()} syncs the journal and releases the file and the sync thread; records
+ * made after that are dropped.</p>
+ */
+final class UpdateJournal {
+
+    private static final String TAG = "UpdateJournal";
+
+    private static final int MAGIC = 0x55534a4e;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int FRAME_HEADER_SIZE = 8;
+    /** Records are small; anything bigger is corrupted. */
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    private static final byte RECORD_STATE = 1;
+    private static final byte RECORD_MANUAL_SWITCH_SLOT = 2;
+    private static final byte RECORD_UPDATE_DATA = 3;
+    private static final byte RECORD_NO_UPDATE_DATA = 4;
+    private static final byte RECORD_QUEUE = 5;
+
+    static final long SYNC_DELAY_MILLIS = 100;
+    static final int COMPACT_THRESHOLD = 64;
+
+    private final File mFile;
+    private final ScheduledExecutorService mSyncExecutor =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /** Guarded by {@code this}. */
+    private boolean mLoaded;
+    /** Guarded by {@code this}. */
+    private boolean mClosed;
+    /** Guarded by {@code this}. */
+    private FileChannel mChannel;
+    /** Guarded by {@code this}. Current state, it's written when the journal is compacted. */
+    private Snapshot mSnapshot = new Snapshot();
+    /** Guarded by {@code this}. */
+    private int mRecords;
+    /** Guarded by {@code this}. */
+    private boolean mSyncScheduled;
+
+    UpdateJournal(File file) {
+        this.mFile = file;
+    }
+
+    /**
+     * Reads the journal and opens it for appending. If the journal doesn't exist or can't be
+     * read, returns the initial state. A closed journal isn't read again.
+     */
+    synchronized Snapshot load() {
+        if (mClosed) {
+            return mSnapshot.copy();
+        }
+        mLoaded = true;
+        mSnapshot = new Snapshot();
+        mRecords = 0;
+        try {
+            long validLength = 0;
+            if (mFile.exists()) {
+                byte[] data = Files.readAllBytes(mFile.toPath());
+                validLength = replay(ByteBuffer.wrap(data));
+                if (validLength < data.length) {
+                    Log.w(TAG, "Dropping " + (data.length - validLength)
+                            + " bytes of torn or corrupted records");
+                }
+            }
+            if (validLength == 0) {
+                // No usable header; start over with the current state.
+                compact();
+            } else {
+                openChannel();
+                mChannel.truncate(validLength);
+                mChannel.position(validLength);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load journal " + mFile, e);
+            mSnapshot = new Snapshot();
+        }
+        return mSnapshot.copy();
+    }
+
+    /** Records a new updater state; one of {@link UpdaterState} values. */
+    synchronized void recordState(int state) {
+        loadIfNeeded();
+        mSnapshot.mUpdaterState = state;
+        append(out -> {
+            out.writeByte(RECORD_STATE);
+            out.writeInt(state);
+        });
+    }
+
+    synchronized void recordManualSwitchSlotRequired(boolean required) {
+        loadIfNeeded();
+        mSnapshot.mManualSwitchSlotRequired = required;
+        append(out -> {
+            out.writeByte(RECORD_MANUAL_SWITCH_SLOT);
+            out.writeBoolean(required);
+        });
+    }
+
+    /**
+     * Records the payload given to update_engine, and its extra properties;
+     * {@code null} payload clears them.
+     */
+    synchronized void recordUpdateData(PayloadSpec payload, List<String> extraProperties) {
+        loadIfNeeded();
+        mSnapshot.mPayload = payload;
+        mSnapshot.mExtraProperties = payload == null
+                ? ImmutableList.of()
+                : ImmutableList.copyOf(extraProperties);
+        append(out -> writeUpdateData(out, mSnapshot));
+    }
+
+    /**
+     * Records updates queued after the current one and the policy they are applied with, one
+     * of {@code UpdateManager.QUEUE_POLICY_*}.
+     */
+    synchronized void recordQueue(int policy, List<UpdateConfig> queue) {
+        loadIfNeeded();
+        mSnapshot.mQueuePolicy = policy;
+        mSnapshot.mQueue = ImmutableList.copyOf(queue);
+        append(out -> writeQueue(out, mSnapshot));
+    }
+
+    /** Writes buffered records to the storage device. */
+    synchronized void sync() {
+        mSyncScheduled = false;
+        if (mChannel == null) {
+            return;
+        }
+        try {
+            mChannel.force(false);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to sync journal " + mFile, e);
+        }
+    }
+
+    /** Syncs and closes the journal, and stops its sync thread. */
+    synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        sync();
+        mClosed = true;
+        mSyncExecutor.shutdownNow();
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to close journal " + mFile, e);
+            }
+            mChannel = null;
+        }
+    }
+
+    /**
+     * Loads the journal before the first record, so that the record is appended to the state
+     * that is already persisted instead of replacing it.
+     */
+    private void loadIfNeeded() {
+        if (!mLoaded && !mClosed) {
+            load();
+        }
+    }
+
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private void append(RecordWriter writer) {
+        if (mClosed) {
+            Log.w(TAG, "Journal " + mFile + " is closed, dropping a record");
+            return;
+        }
+        try {
+            if (mChannel == null) {
+                // The journal couldn't be loaded; start a new one with the current state.
+                compact();
+                return;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writer.write(new DataOutputStream(bytes));
+            writeFully(mChannel, frame(bytes.toByteArray()));
+            mRecords++;
+            if (mRecords >= COMPACT_THRESHOLD) {
+                compact();
+            } else if (!mSyncScheduled) {
+                mSyncScheduled = true;
+                mSyncExecutor.schedule(this::sync, SYNC_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write journal " + mFile, e);
+        }
+    }
+
+    /**
+     * Atomically replaces the journal with one that contains only the current state.
+     */
+    private void compact() throws IOException {
+        File parent = mFile.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        List<byte[]> records = new ArrayList<>();
+        records.add(record(o -> {
+            o.writeByte(RECORD_STATE);
+            o.writeInt(mSnapshot.mUpdaterState);
+        }));
+        records.add(record(o -> {
+            o.writeByte(RECORD_MANUAL_SWITCH_SLOT);
+            o.writeBoolean(mSnapshot.mManualSwitchSlotRequired);
+        }));
+        records.add(record(o -> writeUpdateData(o, mSnapshot)));
+        records.add(record(o -> writeQueue(o, mSnapshot)));
+        for (byte[] record : records) {
+            ByteBuffer frame = frame(record);
+            out.write(frame.array(), 0, frame.limit());
+        }
+
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        try (FileChannel tmp = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(tmp, ByteBuffer.wrap(bytes.toByteArray()));
+            tmp.force(false);
+        }
+        if (mChannel != null) {
+            mChannel.close();
+            mChannel = null;
+        }
+        Files.move(tmpFile.toPath(), mFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        mRecords = records.size();
+        mSyncScheduled = false;
+        openChannel();
+        mChannel.position(mChannel.size());
+    }
+
+    private void openChannel() throws IOException {
+        mChannel = FileChannel.open(mFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Applies valid records of {@code data} to {@link #mSnapshot}.
+     *
+     * @return length of the valid part of the journal, {@code 0} if the header is invalid
+     */
+    private long replay(ByteBuffer data) {
+        if (data.remaining() < HEADER_SIZE || data.getInt() != MAGIC
+                || data.getInt() != VERSION) {
+            return 0;
+        }
+        CRC32 crc = new CRC32();
+        while (data.remaining() >= FRAME_HEADER_SIZE) {
+            int start = data.position();
+            int length = data.getInt();
+            int checksum = data.getInt();
+            if (length <= 0 || length > MAX_RECORD_SIZE || length > data.remaining()) {
+                return start;
+            }
+            crc.reset();
+            crc.update(data.array(), data.position(), length);
+            if ((int) crc.getValue() != checksum) {
+                return start;
+            }
+            try {
+                applyRecord(new DataInputStream(
+                        new ByteArrayInputStream(data.array(), data.position(), length)));
+            } catch (IOException e) {
+                return start;
+            }
+            data.position(data.position() + length);
+            mRecords++;
+        }
+        return data.position();
+    }
+
+    private void applyRecord(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case RECORD_STATE:
+                mSnapshot.mUpdaterState = in.readInt();
+                break;
+            case RECORD_MANUAL_SWITCH_SLOT:
+                mSnapshot.mManualSwitchSlotRequired = in.readBoolean();
+                break;
+            case RECORD_UPDATE_DATA:
+                mSnapshot.mPayload = UpdateCodec.readPayloadSpec(in);
+                mSnapshot.mExtraProperties = UpdateCodec.readStrings(in);
+                break;
+            case RECORD_NO_UPDATE_DATA:
+                mSnapshot.mPayload = null;
+                mSnapshot.mExtraProperties = ImmutableList.of();
+                break;
+            case RECORD_QUEUE:
+                mSnapshot.mQueuePolicy = in.readInt();
+                int count = in.readInt();
+                ImmutableList.Builder<UpdateConfig> queue = ImmutableList.builder();
+                for (int i = 0; i < count; i++) {
+                    queue.add(UpdateCodec.readUpdateConfig(in));
+                }
+                mSnapshot.mQueue = queue.build();
+                break;
+            default:
+                throw new IOException("Unknown record type " + type);
+        }
+    }
+
+    private static void writeUpdateData(DataOutputStream out, Snapshot snapshot)
+            throws IOException {
+        PayloadSpec payload = snapshot.mPayload;
+        if (payload == null) {
+            out.writeByte(RECORD_NO_UPDATE_DATA);
+            return;
+        }
+        out.writeByte(RECORD_UPDATE_DATA);
+        UpdateCodec.writePayloadSpec(out, payload);
+        UpdateCodec.writeStrings(out, snapshot.mExtraProperties);
+    }
+
+    private static void writeQueue(DataOutputStream out, Snapshot snapshot)
+            throws IOException {
+        out.writeByte(RECORD_QUEUE);
+        out.writeInt(snapshot.mQueuePolicy);
+        out.writeInt(snapshot.mQueue.size());
+        for (UpdateConfig config : snapshot.mQueue) {
+            UpdateCodec.writeUpdateConfig(out, config);
+        }
+    }
+
+    private static byte[] record(RecordWriter writer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writer.write(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static ByteBuffer frame(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + record.length);
+        frame.putInt(record.length);
+        frame.putInt((int) crc.getValue());
+        frame.put(record);
+        frame.flip();
+        return frame;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * State restored from the journal.
+     */
+    static final class Snapshot {
+        private int mUpdaterState = UpdaterState.IDLE;
+        private boolean mManualSwitchSlotRequired = true;
+        private PayloadSpec mPayload;
+        private List<String> mExtraProperties = ImmutableList.of();
+        private int mQueuePolicy;
+        private List<UpdateConfig> mQueue = ImmutableList.of();
+
+        int getUpdaterState() {
+            return mUpdaterState;
+        }
+
+        boolean isManualSwitchSlotRequired() {
+            return mManualSwitchSlotRequired;
+        }
+
+        /** Returns the last payload given to update_engine, or null. */
+        PayloadSpec getPayload() {
+            return mPayload;
+        }
+
+        List<String> getExtraProperties() {
+            return mExtraProperties;
+        }
+
+        int getQueuePolicy() {
+            return mQueuePolicy;
+        }
+
+        /** Returns updates queued after the last payload. */
+        List<UpdateConfig> getQueue() {
+            return mQueue;
+        }
+
+        private Snapshot copy() {
+            Snapshot copy = new Snapshot();
+            copy.mUpdaterState = mUpdaterState;
+            copy.mManualSwitchSlotRequired = mManualSwitchSlotRequired;
+            copy.mPayload = mPayload;
+            copy.mExtraProperties = mExtraProperties;
+            copy.mQueuePolicy = mQueuePolicy;
+            copy.mQueue = mQueue;
+            return copy;
+        }
+    }
+}
@@ -23,18 +23,26 @@ import android.os.UpdateEngineCallback;
 import android.util.Log;
 
 import com.example.android.systemupdatersample.services.PrepareUpdateService;
+import com.example.android.systemupdatersample.util.DownloadProgress;
+import com.example.android.systemupdatersample.util.PackageFiles;
+import com.example.android.systemupdatersample.util.PackagePrefetcher;
 import com.example.android.systemupdatersample.util.UpdateEngineErrorCodes;
 import com.example.android.systemupdatersample.util.UpdateEngineProperties;
+import com.example.android.systemupdatersample.util.UpdateEventDispatcher;
+import com.example.android.systemupdatersample.util.UpdateMetrics;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.AtomicDouble;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Optional;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.function.DoubleConsumer;
 import java.util.function.IntConsumer;
 
@@ -43,6 +51,9 @@ import javax.annotation.concurrent.GuardedBy;
 /**
  * Manages the update flow. It has its own state (in memory), separate from
  * {@link UpdateEngine}'s state. Asynchronously interacts with the {@link UpdateEngine}.
+ *
+ * <p>Callbacks are invoked on a dispatcher thread, never on the caller's or the
+ * update_engine binder thread.</p>
  */
 public class UpdateManager {
 
@@ -52,6 +63,24 @@ public class UpdateManager {
     static final String HTTP_USER_AGENT = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) "
             + "AppleWebKit/537.36 (KHTML, like Gecko) Chrome/60.0.3112.113 Safari/537.36";
 
+    /**
+     * Queued updates switch slot as their {@code ab_config.force_switch_slot} says; an update
+     * that doesn't force it stops at {@link UpdaterState#SLOT_SWITCH_REQUIRED}.
+     */
+    public static final int QUEUE_POLICY_FOLLOW_CONFIG = 0;
+
+    /**
+     * Every queued update switches slot, so the queue stops only at
+     * {@link UpdaterState#REBOOT_REQUIRED}.
+     */
+    public static final int QUEUE_POLICY_SWITCH_SLOT = 1;
+
+    /** Files of the next queued update that are downloaded while the current one is applied. */
+    private static final ImmutableSet<String> PREFETCHED_FILES = ImmutableSet.<String>builder()
+            .addAll(PackageFiles.PRE_STREAMING_FILES)
+            .add(PackageFiles.PAYLOAD_METADATA_FILE_NAME)
+            .build();
+
     private final UpdateEngine mUpdateEngine;
 
     private AtomicInteger mUpdateEngineStatus =
@@ -65,17 +94,25 @@ public class UpdateManager {
     /** Synchronize state with engine status only once when app binds to UpdateEngine. */
     private AtomicBoolean mStateSynchronized = new AtomicBoolean(false);
 
+    private final UpdateMetrics mMetrics = UpdateMetrics.getDefault();
+    /** {@link UpdateMetrics#startTimer()} of the update being installed, 0 if unknown. */
+    private final AtomicLong mInstallStartNanos = new AtomicLong();
+    /** {@link UpdateMetrics#startTimer()} of applyPayload until the engine reports progress. */
+    private final AtomicLong mApplyStartNanos = new AtomicLong();
+
     @GuardedBy("mLock")
     private UpdateData mLastUpdateData = null;
 
+    /** Updates to apply after the current one, in order. */
     @GuardedBy("mLock")
-    private IntConsumer mOnStateChangeCallback = null;
-    @GuardedBy("mLock")
-    private IntConsumer mOnEngineStatusUpdateCallback = null;
+    private ImmutableList<UpdateConfig> mQueue = ImmutableList.of();
     @GuardedBy("mLock")
-    private DoubleConsumer mOnProgressUpdateCallback = null;
-    @GuardedBy("mLock")
-    private IntConsumer mOnEngineCompleteCallback = null;
+    private int mQueuePolicy = QUEUE_POLICY_FOLLOW_CONFIG;
+    /** Context the next queued update is prepared with; null until it's given to the manager. */
+    private volatile Context mQueueContext;
+
+    /** Delivers events to the callbacks, so update_engine threads don't run them. */
+    private final UpdateEventDispatcher mEventDispatcher = new UpdateEventDispatcher();
 
     private final Object mLock = new Object();
 
@@ -84,20 +121,38 @@ public class UpdateManager {
 
     private final Handler mHandler;
 
+    /** Persists the state to continue the update after the app restarts; can be null. */
+    private final UpdateJournal mJournal;
+    private final AtomicBoolean mJournalRestored = new AtomicBoolean(false);
+
     /**
      * @param updateEngine UpdateEngine instance.
      * @param handler      Handler for {@link PrepareUpdateService} intent service.
      */
     public UpdateManager(UpdateEngine updateEngine, Handler handler) {
+        this(updateEngine, handler, null);
+    }
+
+    /**
+     * @param updateEngine UpdateEngine instance.
+     * @param handler      Handler for {@link PrepareUpdateService} intent service.
+     * @param journalFile  file where the state is persisted, it's restored on the first
+     *                     {@link #bind()}; null keeps the state only in memory.
+     */
+    public UpdateManager(UpdateEngine updateEngine, Handler handler, File journalFile) {
         this.mUpdateEngine = updateEngine;
         this.mHandler = handler;
+        this.mJournal = journalFile == null ? null : new UpdateJournal(journalFile);
     }
 
     /**
      * Binds to {@link UpdateEngine}. Invokes onStateChangeCallback if present.
      */
     public void bind() {
-        getOnStateChangeCallback().ifPresent(callback -> callback.accept(mUpdaterState.get()));
+        if (mJournal != null && !mJournalRestored.getAndSet(true)) {
+            restoreFromJournal();
+        }
+        mEventDispatcher.publish(UpdateEventDispatcher.EVENT_STATE_CHANGE, mUpdaterState.get());
 
         mStateSynchronized.set(false);
         this.mUpdateEngine.bind(mUpdateEngineCallback);
@@ -108,6 +163,54 @@ public class UpdateManager {
      */
     public void unbind() {
         this.mUpdateEngine.unbind();
+        if (mJournal != null) {
+            mJournal.sync();
+        }
+    }
+
+    /**
+     * Releases the threads and the journal file of this manager; callbacks aren't invoked
+     * anymore. The manager must not be used after it's closed, e.g. call it when the
+     * activity that created it is destroyed.
+     */
+    public void close() {
+        mEventDispatcher.close();
+        if (mJournal != null) {
+            mJournal.close();
+        }
+    }
+
+    /**
+     * Restores updater state and the last update data from {@link #mJournal}, so an update
+     * that was running before the app restarted can be re-applied without preparing it again.
+     */
+    private void restoreFromJournal() {
+        UpdateJournal.Snapshot snapshot = mJournal.load();
+        int state = snapshot.getUpdaterState();
+        boolean interrupted = state == UpdaterState.RUNNING && snapshot.getPayload() == null;
+        if (interrupted) {
+            // The app was killed while the update was prepared; there's no payload to re-apply,
+            // so it ends up as if the preparation failed.
+            Log.w(TAG, "Update was interrupted before its payload was applied");
+            state = UpdaterState.ERROR;
+        }
+        mUpdaterState = new UpdaterState(state);
+        mManualSwitchSlotRequired.set(snapshot.isManualSwitchSlotRequired());
+        synchronized (mLock) {
+            mLastUpdateData = snapshot.getPayload() == null
+                    ? null
+                    : UpdateData.builder()
+                            .setPayload(snapshot.getPayload())
+                            .setExtraProperties(snapshot.getExtraProperties())
+                            .build();
+            mQueue = ImmutableList.copyOf(snapshot.getQueue());
+            mQueuePolicy = snapshot.getQueuePolicy();
+        }
+        if (interrupted) {
+            mJournal.recordState(state);
+            setQueue(QUEUE_POLICY_FOLLOW_CONFIG, ImmutableList.of());
+        }
+        Log.i(TAG, "Restored updater state " + UpdaterState.getStateText(state));
     }
 
     public int getUpdaterState() {
@@ -124,81 +227,130 @@ public class UpdateManager {
 
     /**
      * Sets SystemUpdaterSample app state change callback. Value of {@code state} will be one
-     * of the values from {@link UpdaterState}.
+     * of the values from {@link UpdaterState}. It replaces all the state change callbacks,
+     * {@code null} removes them.
      *
      * @param onStateChangeCallback a callback with parameter {@code state}.
      */
     public void setOnStateChangeCallback(IntConsumer onStateChangeCallback) {
-        synchronized (mLock) {
-            this.mOnStateChangeCallback = onStateChangeCallback;
-        }
+        mEventDispatcher.setListener(
+                UpdateEventDispatcher.EVENT_STATE_CHANGE, onStateChangeCallback);
     }
 
-    private Optional<IntConsumer> getOnStateChangeCallback() {
-        synchronized (mLock) {
-            return mOnStateChangeCallback == null
-                    ? Optional.empty()
-                    : Optional.of(mOnStateChangeCallback);
-        }
+    /** Adds a callback in addition to the one set by {@link #setOnStateChangeCallback}. */
+    public void addOnStateChangeCallback(IntConsumer onStateChangeCallback) {
+        mEventDispatcher.addListener(
+                UpdateEventDispatcher.EVENT_STATE_CHANGE, onStateChangeCallback);
+    }
+
+    public void removeOnStateChangeCallback(IntConsumer onStateChangeCallback) {
+        mEventDispatcher.removeListener(
+                UpdateEventDispatcher.EVENT_STATE_CHANGE, onStateChangeCallback);
     }
 
     /**
      * Sets update engine status update callback. Value of {@code status} will
      * be one of the values from {@link UpdateEngine.UpdateStatusConstants}.
+     * It replaces all the status update callbacks, {@code null} removes them.
      *
      * @param onStatusUpdateCallback a callback with parameter {@code status}.
      */
     public void setOnEngineStatusUpdateCallback(IntConsumer onStatusUpdateCallback) {
-        synchronized (mLock) {
-            this.mOnEngineStatusUpdateCallback = onStatusUpdateCallback;
-        }
+        mEventDispatcher.setListener(
+                UpdateEventDispatcher.EVENT_ENGINE_STATUS, onStatusUpdateCallback);
     }
 
-    private Optional<IntConsumer> getOnEngineStatusUpdateCallback() {
-        synchronized (mLock) {
-            return mOnEngineStatusUpdateCallback == null
-                    ? Optional.empty()
-                    : Optional.of(mOnEngineStatusUpdateCallback);
-        }
+    /** Adds a callback in addition to the one set by {@link #setOnEngineStatusUpdateCallback}. */
+    public void addOnEngineStatusUpdateCallback(IntConsumer onStatusUpdateCallback) {
+        mEventDispatcher.addListener(
+                UpdateEventDispatcher.EVENT_ENGINE_STATUS, onStatusUpdateCallback);
+    }
+
+    public void removeOnEngineStatusUpdateCallback(IntConsumer onStatusUpdateCallback) {
+        mEventDispatcher.removeListener(
+                UpdateEventDispatcher.EVENT_ENGINE_STATUS, onStatusUpdateCallback);
     }
 
     /**
      * Sets update engine payload application complete callback. Value of {@code errorCode} will
-     * be one of the values from {@link UpdateEngine.ErrorCodeConstants}.
+     * be one of the values from {@link UpdateEngine.ErrorCodeConstants}. It replaces all the
+     * complete callbacks, {@code null} removes them.
      *
      * @param onComplete a callback with parameter {@code errorCode}.
      */
     public void setOnEngineCompleteCallback(IntConsumer onComplete) {
-        synchronized (mLock) {
-            this.mOnEngineCompleteCallback = onComplete;
-        }
+        mEventDispatcher.setListener(UpdateEventDispatcher.EVENT_ENGINE_COMPLETE, onComplete);
     }
 
-    private Optional<IntConsumer> getOnEngineCompleteCallback() {
-        synchronized (mLock) {
-            return mOnEngineCompleteCallback == null
-                    ? Optional.empty()
-                    : Optional.of(mOnEngineCompleteCallback);
-        }
+    /** Adds a callback in addition to the one set by {@link #setOnEngineCompleteCallback}. */
+    public void addOnEngineCompleteCallback(IntConsumer onComplete) {
+        mEventDispatcher.addListener(UpdateEventDispatcher.EVENT_ENGINE_COMPLETE, onComplete);
+    }
+
+    public void removeOnEngineCompleteCallback(IntConsumer onComplete) {
+        mEventDispatcher.removeListener(UpdateEventDispatcher.EVENT_ENGINE_COMPLETE, onComplete);
     }
 
     /**
      * Sets progress update callback. Progress is a number from {@code 0.0} to {@code 1.0}.
+     * It replaces all the progress callbacks, {@code null} removes them.
      *
      * @param onProgressCallback a callback with parameter {@code progress}.
      */
     public void setOnProgressUpdateCallback(DoubleConsumer onProgressCallback) {
-        synchronized (mLock) {
-            this.mOnProgressUpdateCallback = onProgressCallback;
-        }
+        mEventDispatcher.setListener(UpdateEventDispatcher.EVENT_PROGRESS, onProgressCallback);
     }
 
-    private Optional<DoubleConsumer> getOnProgressUpdateCallback() {
-        synchronized (mLock) {
-            return mOnProgressUpdateCallback == null
-                    ? Optional.empty()
-                    : Optional.of(mOnProgressUpdateCallback);
-        }
+    /** Adds a callback in addition to the one set by {@link #setOnProgressUpdateCallback}. */
+    public void addOnProgressUpdateCallback(DoubleConsumer onProgressCallback) {
+        mEventDispatcher.addListener(UpdateEventDispatcher.EVENT_PROGRESS, onProgressCallback);
+    }
+
+    public void removeOnProgressUpdateCallback(DoubleConsumer onProgressCallback) {
+        mEventDispatcher.removeListener(UpdateEventDispatcher.EVENT_PROGRESS, onProgressCallback);
+    }
+
+    /**
+     * Sets callback that receives download progress while {@link PrepareUpdateService}
+     * prepares the update, before the payload is given to update_engine. Engine progress
+     * is reported separately through {@link #setOnProgressUpdateCallback}. It replaces all
+     * the preparation progress callbacks, {@code null} removes them.
+     *
+     * @param onPrepareProgressCallback a callback with parameter {@code progress}.
+     */
+    public void setOnPrepareProgressUpdateCallback(
+            Consumer<DownloadProgress> onPrepareProgressCallback) {
+        mEventDispatcher.setListener(
+                UpdateEventDispatcher.EVENT_PREPARE_PROGRESS, onPrepareProgressCallback);
+    }
+
+    /**
+     * Adds a callback in addition to the one set by
+     * {@link #setOnPrepareProgressUpdateCallback}.
+     */
+    public void addOnPrepareProgressUpdateCallback(
+            Consumer<DownloadProgress> onPrepareProgressCallback) {
+        mEventDispatcher.addListener(
+                UpdateEventDispatcher.EVENT_PREPARE_PROGRESS, onPrepareProgressCallback);
+    }
+
+    public void removeOnPrepareProgressUpdateCallback(
+            Consumer<DownloadProgress> onPrepareProgressCallback) {
+        mEventDispatcher.removeListener(
+                UpdateEventDispatcher.EVENT_PREPARE_PROGRESS, onPrepareProgressCallback);
+    }
+
+    /**
+     * Sets minimum time between two invocations of a progress callback; progress reported
+     * within the window is merged and only the latest value is delivered. Status, state and
+     * complete callbacks are always invoked right away. {@code 0} delivers every progress
+     * update.
+     *
+     * @param millis window in milliseconds, by default
+     *               {@link UpdateEventDispatcher#DEFAULT_COALESCING_WINDOW_MILLIS}
+     */
+    public void setProgressCoalescingWindow(long millis) {
+        mEventDispatcher.setCoalescingWindow(millis);
     }
 
     /**
@@ -229,7 +381,10 @@ public class UpdateManager {
         int previousState = mUpdaterState.get();
         mUpdaterState.set(newUpdaterState);
         if (previousState != newUpdaterState) {
-            getOnStateChangeCallback().ifPresent(callback -> callback.accept(newUpdaterState));
+            if (mJournal != null) {
+                mJournal.recordState(newUpdaterState);
+            }
+            mEventDispatcher.publish(UpdateEventDispatcher.EVENT_STATE_CHANGE, newUpdaterState);
         }
     }
 
@@ -253,7 +408,10 @@ public class UpdateManager {
      */
     private void initializeUpdateState(int state) {
         this.mUpdaterState = new UpdaterState(state);
-        getOnStateChangeCallback().ifPresent(callback -> callback.accept(state));
+        if (mJournal != null) {
+            mJournal.recordState(state);
+        }
+        mEventDispatcher.publish(UpdateEventDispatcher.EVENT_STATE_CHANGE, state);
     }
 
     /**
@@ -263,6 +421,7 @@ public class UpdateManager {
     public synchronized void cancelRunningUpdate() throws UpdaterState.InvalidTransitionException {
         Log.d(TAG, "cancelRunningUpdate invoked");
         setUpdaterState(UpdaterState.IDLE);
+        setQueue(QUEUE_POLICY_FOLLOW_CONFIG, ImmutableList.of());
         mUpdateEngine.cancel();
     }
 
@@ -272,49 +431,176 @@ public class UpdateManager {
     public synchronized void resetUpdate() throws UpdaterState.InvalidTransitionException {
         Log.d(TAG, "resetUpdate invoked");
         setUpdaterState(UpdaterState.IDLE);
+        setQueue(QUEUE_POLICY_FOLLOW_CONFIG, ImmutableList.of());
         mUpdateEngine.resetStatus();
     }
 
     /**
-     * Applies the given update.
+     * Applies the given update; updates queued by {@link #applyUpdates} are dropped.
      *
      * <p>UpdateEngine works asynchronously. This method doesn't wait until
      * end of the update.</p>
      */
     public synchronized void applyUpdate(Context context, UpdateConfig config)
             throws UpdaterState.InvalidTransitionException {
+        setQueue(QUEUE_POLICY_FOLLOW_CONFIG, ImmutableList.of());
+        startUpdate(context, config, !config.getAbConfig().getForceSwitchSlot());
+    }
+
+    /**
+     * Applies the given updates one after another, e.g. a full update followed by incremental
+     * ones. An update can be installed only on the build it's made for, so every next update
+     * is started after the device rebooted into the previous one: when the manager is bound
+     * after the reboot and has a context from this method or {@link #continueUpdateQueue}.
+     *
+     * <p>While an update is being applied, the files the next one needs before streaming,
+     * including {@code payload_metadata.bin}, are downloaded into the download cache with low
+     * priority; the metadata is verified when the next update is started, as update_engine
+     * checks it against the running build.</p>
+     *
+     * <p>Cancelling, resetting or a failed update drops the queue.</p>
+     *
+     * @param policy one of {@code QUEUE_POLICY_*}
+     */
+    public synchronized void applyUpdates(Context context, List<UpdateConfig> configs,
+            int policy) throws UpdaterState.InvalidTransitionException {
+        Preconditions.checkArgument(!configs.isEmpty(), "configs must not be empty");
+        Preconditions.checkArgument(
+                policy == QUEUE_POLICY_FOLLOW_CONFIG || policy == QUEUE_POLICY_SWITCH_SLOT,
+                "Invalid queue policy %s", policy);
+        mQueueContext = applicationContext(context);
+        setQueue(policy, configs.subList(1, configs.size()));
+        try {
+            UpdateConfig first = configs.get(0);
+            startUpdate(context, first, isManualSwitchSlotRequired(first, policy));
+        } catch (UpdaterState.InvalidTransitionException e) {
+            setQueue(QUEUE_POLICY_FOLLOW_CONFIG, ImmutableList.of());
+            throw e;
+        }
+    }
+
+    /**
+     * Gives the manager a context to start queued updates with, and starts the next one if
+     * the previous update is already installed and running. Queued updates survive app
+     * restarts, this lets them continue.
+     */
+    public synchronized void continueUpdateQueue(Context context) {
+        mQueueContext = applicationContext(context);
+        if (mStateSynchronized.get()) {
+            startNextQueuedUpdate();
+        }
+    }
+
+    /**
+     * Returns updates that will be applied after the current one.
+     */
+    public List<UpdateConfig> getQueuedUpdates() {
+        synchronized (mLock) {
+            return mQueue;
+        }
+    }
+
+    private static Context applicationContext(Context context) {
+        Context applicationContext = context.getApplicationContext();
+        return applicationContext != null ? applicationContext : context;
+    }
+
+    private static boolean isManualSwitchSlotRequired(UpdateConfig config, int policy) {
+        return policy != QUEUE_POLICY_SWITCH_SLOT && !config.getAbConfig().getForceSwitchSlot();
+    }
+
+    private void setQueue(int policy, List<UpdateConfig> queue) {
+        synchronized (mLock) {
+            if (mQueue.isEmpty() && queue.isEmpty()) {
+                return;
+            }
+            mQueue = ImmutableList.copyOf(queue);
+            mQueuePolicy = policy;
+        }
+        if (mJournal != null) {
+            mJournal.recordQueue(policy, queue);
+        }
+    }
+
+    /**
+     * Starts the first queued update if the manager is idle, i.e. the previous update is
+     * installed and the device rebooted into it.
+     */
+    private synchronized void startNextQueuedUpdate() {
+        Context context = mQueueContext;
+        UpdateConfig next;
+        List<UpdateConfig> rest;
+        int policy;
+        synchronized (mLock) {
+            if (mQueue.isEmpty() || context == null
+                    || mUpdaterState.get() != UpdaterState.IDLE) {
+                return;
+            }
+            next = mQueue.get(0);
+            rest = mQueue.subList(1, mQueue.size());
+            policy = mQueuePolicy;
+        }
+        Log.i(TAG, "Starting queued update " + next.getName());
+        setQueue(policy, rest);
+        try {
+            startUpdate(context, next, isManualSwitchSlotRequired(next, policy));
+        } catch (UpdaterState.InvalidTransitionException e) {
+            Log.e(TAG, "Failed to start queued update " + next.getName(), e);
+            setQueue(QUEUE_POLICY_FOLLOW_CONFIG, ImmutableList.of());
+        }
+    }
+
+    /**
+     * Downloads files of the next queued update while the current one is being applied.
+     */
+    private void prefetchNextQueuedUpdate() {
+        UpdateConfig next;
+        synchronized (mLock) {
+            if (mQueue.isEmpty()) {
+                return;
+            }
+            next = mQueue.get(0);
+        }
+        PackagePrefetcher.getDefault().prefetch(next, PREFETCHED_FILES);
+    }
+
+    private void startUpdate(Context context, UpdateConfig config, boolean manualSwitchSlot)
+            throws UpdaterState.InvalidTransitionException {
         mEngineErrorCode.set(UpdateEngineErrorCodes.UNKNOWN);
         setUpdaterState(UpdaterState.RUNNING);
+        mInstallStartNanos.set(UpdateMetrics.startTimer());
 
         synchronized (mLock) {
             // Cleaning up previous update data.
             mLastUpdateData = null;
         }
-
-        if (!config.getAbConfig().getForceSwitchSlot()) {
-            mManualSwitchSlotRequired.set(true);
-        } else {
-            mManualSwitchSlotRequired.set(false);
+        if (mJournal != null) {
+            mJournal.recordUpdateData(null, null);
         }
 
+        setManualSwitchSlotRequired(manualSwitchSlot);
+
         Log.d(TAG, "Starting PrepareUpdateService");
         PrepareUpdateService.startService(context, config, mHandler, (code, payloadSpec) -> {
             if (code != PrepareUpdateService.RESULT_CODE_SUCCESS) {
                 Log.e(TAG, "PrepareUpdateService failed, result code is " + code);
+                mMetrics.counter(UpdateMetrics.UPDATES_FAILED).increment();
                 setUpdaterStateSilent(UpdaterState.ERROR);
+                setQueue(QUEUE_POLICY_FOLLOW_CONFIG, ImmutableList.of());
                 return;
             }
             updateEngineApplyPayload(UpdateData.builder()
-                    .setExtraProperties(prepareExtraProperties(config))
+                    .setExtraProperties(prepareExtraProperties(config, manualSwitchSlot))
                     .setPayload(payloadSpec)
                     .build());
-        });
+        }, progress -> mEventDispatcher.publish(
+                UpdateEventDispatcher.EVENT_PREPARE_PROGRESS, progress));
     }
 
-    private List<String> prepareExtraProperties(UpdateConfig config) {
+    private List<String> prepareExtraProperties(UpdateConfig config, boolean manualSwitchSlot) {
         List<String> extraProperties = new ArrayList<>();
 
-        if (!config.getAbConfig().getForceSwitchSlot()) {
+        if (manualSwitchSlot) {
             // Disable switch slot on reboot, which is enabled by default.
             // User will enable it manually by clicking "Switch Slot" button on the screen.
             extraProperties.add(UpdateEngineProperties.PROPERTY_DISABLE_SWITCH_SLOT_ON_REBOOT);
@@ -344,20 +630,31 @@ public class UpdateManager {
         synchronized (mLock) {
             mLastUpdateData = update;
         }
+        if (mJournal != null) {
+            mJournal.recordUpdateData(update.getPayload(), update.getExtraProperties());
+        }
 
         ArrayList<String> properties = new ArrayList<>(update.getPayload().getProperties());
         properties.addAll(update.getExtraProperties());
 
         try {
+            long start = UpdateMetrics.startTimer();
+            mApplyStartNanos.set(start);
             mUpdateEngine.applyPayload(
                     update.getPayload().getUrl(),
                     update.getPayload().getOffset(),
                     update.getPayload().getSize(),
                     properties.toArray(new String[0]));
+            mMetrics.histogram(UpdateMetrics.PHASE_APPLY_PAYLOAD).recordSince(start);
         } catch (Exception e) {
             Log.e(TAG, "UpdateEngine failed to apply the update", e);
+            mApplyStartNanos.set(0);
+            mMetrics.counter(UpdateMetrics.UPDATES_FAILED).increment();
             setUpdaterStateSilent(UpdaterState.ERROR);
+            setQueue(QUEUE_POLICY_FOLLOW_CONFIG, ImmutableList.of());
+            return;
         }
+        prefetchNextQueuedUpdate();
     }
 
     /**
@@ -395,7 +692,7 @@ public class UpdateManager {
         // When mManualSwitchSlotRequired set false, next time
         // onApplicationPayloadComplete is called,
         // it will set updater state to REBOOT_REQUIRED.
-        mManualSwitchSlotRequired.set(false);
+        setManualSwitchSlotRequired(false);
 
         UpdateData.Builder builder;
         synchronized (mLock) {
@@ -413,6 +710,13 @@ public class UpdateManager {
         updateEngineApplyPayload(builder.build());
     }
 
+    private void setManualSwitchSlotRequired(boolean required) {
+        mManualSwitchSlotRequired.set(required);
+        if (mJournal != null) {
+            mJournal.recordManualSwitchSlotRequired(required);
+        }
+    }
+
     /**
      * Synchronize UpdaterState with UpdateEngine status.
      * Apply necessary UpdateEngine operation if status are out of sync.
@@ -432,6 +736,22 @@ public class UpdateManager {
             return;
         }
 
+        if (state == UpdaterState.REBOOT_REQUIRED
+                && engineStatus == UpdateEngine.UpdateStatusConstants.IDLE) {
+            // State restored from the journal after the device rebooted into the new slot,
+            // the update is done.
+            Log.i(TAG, "Update was installed before reboot, resetting updater state");
+            synchronized (mLock) {
+                mLastUpdateData = null;
+            }
+            if (mJournal != null) {
+                mJournal.recordUpdateData(null, null);
+            }
+            initializeUpdateState(UpdaterState.IDLE);
+            startNextQueuedUpdate();
+            return;
+        }
+
         switch (state) {
             case UpdaterState.IDLE:
             case UpdaterState.ERROR:
@@ -483,14 +803,20 @@ public class UpdateManager {
      * @param progress a number from 0.0 to 1.0.
      */
     private void onStatusUpdate(int status, float progress) {
-        Log.d(TAG, String.format(
-                "onStatusUpdate invoked, status=%s, progress=%.2f",
-                status,
-                progress));
-
-        int previousStatus = mUpdateEngineStatus.get();
-        mUpdateEngineStatus.set(status);
+        int previousStatus = mUpdateEngineStatus.getAndSet(status);
         mProgress.set(progress);
+        if (progress > 0) {
+            long applyStart = mApplyStartNanos.getAndSet(0);
+            if (applyStart != 0) {
+                mMetrics.histogram(UpdateMetrics.PHASE_FIRST_ENGINE_PROGRESS)
+                        .recordSince(applyStart);
+            }
+        }
+        if (previousStatus != status) {
+            mMetrics.gauge(UpdateMetrics.ENGINE_STATUS).set(status);
+            // Progress updates come many times a second; log only status changes.
+            Log.d(TAG, "onStatusUpdate invoked, status=" + status + ", progress=" + progress);
+        }
 
         if (!mStateSynchronized.getAndSet(true)) {
             // We synchronize state with engine status once
@@ -498,27 +824,35 @@ public class UpdateManager {
             synchronizeUpdaterStateWithUpdateEngineStatus();
         }
 
-        getOnProgressUpdateCallback().ifPresent(callback -> callback.accept(mProgress.get()));
+        mEventDispatcher.publish(UpdateEventDispatcher.EVENT_PROGRESS, (double) progress);
 
         if (previousStatus != status) {
-            getOnEngineStatusUpdateCallback().ifPresent(callback -> callback.accept(status));
+            mEventDispatcher.publish(UpdateEventDispatcher.EVENT_ENGINE_STATUS, status);
         }
     }
 
     private void onPayloadApplicationComplete(int errorCode) {
         Log.d(TAG, "onPayloadApplicationComplete invoked, errorCode=" + errorCode);
         mEngineErrorCode.set(errorCode);
+        mMetrics.gauge(UpdateMetrics.ENGINE_ERROR_CODE).set(errorCode);
+        mApplyStartNanos.set(0);
+        long installStart = mInstallStartNanos.getAndSet(0);
         if (errorCode == UpdateEngine.ErrorCodeConstants.SUCCESS
                 || errorCode == UpdateEngineErrorCodes.UPDATED_BUT_NOT_ACTIVE) {
+            mMetrics.counter(UpdateMetrics.UPDATES_SUCCEEDED).increment();
+            if (installStart != 0) {
+                mMetrics.histogram(UpdateMetrics.PHASE_INSTALL).recordSince(installStart);
+            }
             setUpdaterStateSilent(isManualSwitchSlotRequired()
                     ? UpdaterState.SLOT_SWITCH_REQUIRED
                     : UpdaterState.REBOOT_REQUIRED);
         } else if (errorCode != UpdateEngineErrorCodes.USER_CANCELLED) {
+            mMetrics.counter(UpdateMetrics.UPDATES_FAILED).increment();
             setUpdaterStateSilent(UpdaterState.ERROR);
+            setQueue(QUEUE_POLICY_FOLLOW_CONFIG, ImmutableList.of());
         }
 
-        getOnEngineCompleteCallback()
-                .ifPresent(callback -> callback.accept(errorCode));
+        mEventDispatcher.publish(UpdateEventDispatcher.EVENT_ENGINE_COMPLETE, errorCode);
     }
 
     /**
@@ -28,24 +28,41 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.RecoverySystem;
 import android.os.ResultReceiver;
+import android.os.SystemClock;
 import android.os.UpdateEngine;
 import android.util.Log;
 
 import com.example.android.systemupdatersample.PayloadSpec;
 import com.example.android.systemupdatersample.UpdateConfig;
+import com.example.android.systemupdatersample.util.ChecksumMismatchException;
+import com.example.android.systemupdatersample.util.DownloadCache;
+import com.example.android.systemupdatersample.util.DownloadProgress;
+import com.example.android.systemupdatersample.util.DownloadScheduler;
 import com.example.android.systemupdatersample.util.FileDownloader;
+import com.example.android.systemupdatersample.util.PackageFileRangePlanner;
 import com.example.android.systemupdatersample.util.PackageFiles;
+import com.example.android.systemupdatersample.util.PayloadMetadataPrefetcher;
 import com.example.android.systemupdatersample.util.PayloadSpecs;
 import com.example.android.systemupdatersample.util.UpdateConfigs;
-import com.google.common.collect.ImmutableSet;
+import com.example.android.systemupdatersample.util.UpdateMetrics;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * This IntentService will download/extract the necessary files from the package zip
@@ -62,6 +79,7 @@ public class PrepareUpdateService extends IntentService {
      */
     public static final int RESULT_CODE_SUCCESS = 0;
     public static final int RESULT_CODE_ERROR = 1;
+    public static final int RESULT_CODE_PROGRESS = 2;
 
     /**
      * Extra params that will be sent to IntentService.
@@ -83,6 +101,19 @@ public class PrepareUpdateService extends IntentService {
         void onReceiveResult(int resultCode, PayloadSpec payloadSpec);
     }
 
+    /**
+     * This interface is used to send download progress from {@link PrepareUpdateService} to
+     * {@code MainActivity} while the update is being prepared.
+     */
+    public interface PreparationProgressCallback {
+        /**
+         * Invoked at most every {@link FileDownloader#DEFAULT_PROGRESS_INTERVAL_MILLIS} while
+         * files are downloaded. Bytes of all the downloads are summed up; the total grows as
+         * downloads are planned.
+         */
+        void onProgress(DownloadProgress progress);
+    }
+
     /**
      * Starts PrepareUpdateService.
      *
@@ -94,8 +125,26 @@ public class PrepareUpdateService extends IntentService {
             UpdateConfig config,
             Handler handler,
             UpdateResultCallback resultCallback) {
+        startService(context, config, handler, resultCallback, null);
+    }
+
+    /**
+     * Starts PrepareUpdateService.
+     *
+     * @param context          application context
+     * @param config           update config
+     * @param resultCallback   callback that will be called when the update is ready to be
+     *                         installed
+     * @param progressCallback callback that receives download progress, can be null
+     */
+    public static void startService(Context context,
+            UpdateConfig config,
+            Handler handler,
+            UpdateResultCallback resultCallback,
+            PreparationProgressCallback progressCallback) {
         Log.d(TAG, "Starting PrepareUpdateService");
-        ResultReceiver receiver = new CallbackResultReceiver(handler, resultCallback);
+        ResultReceiver receiver =
+                new CallbackResultReceiver(handler, resultCallback, progressCallback);
         Intent intent = new Intent(context, PrepareUpdateService.class);
         intent.putExtra(EXTRA_PARAM_CONFIG, config);
         intent.putExtra(EXTRA_PARAM_RESULT_RECEIVER, receiver);
@@ -108,19 +157,14 @@ public class PrepareUpdateService extends IntentService {
 
     private static final String TAG = "PrepareUpdateService";
 
-    /**
-     * The files that should be downloaded before streaming.
-     */
-    private static final ImmutableSet<String> PRE_STREAMING_FILES_SET =
-            ImmutableSet.of(
-                    PackageFiles.CARE_MAP_FILE_NAME,
-                    PackageFiles.COMPATIBILITY_ZIP_FILE_NAME,
-                    PackageFiles.METADATA_FILE_NAME,
-                    PackageFiles.PAYLOAD_PROPERTIES_FILE_NAME
-            );
-
     private final PayloadSpecs mPayloadSpecs = new PayloadSpecs();
+    private final PackageFileRangePlanner mRangePlanner = new PackageFileRangePlanner();
+    private final DownloadCache mDownloadCache = DownloadCache.getDefault();
+    private final DownloadScheduler mScheduler = DownloadScheduler.getDefault();
+    private final PayloadMetadataPrefetcher mMetadataPrefetcher =
+            PayloadMetadataPrefetcher.getDefault();
     private final UpdateEngine mUpdateEngine = new UpdateEngine();
+    private final UpdateMetrics mMetrics = UpdateMetrics.getDefault();
 
     @Override
     protected void onHandleIntent(Intent intent) {
@@ -129,7 +173,7 @@ public class PrepareUpdateService extends IntentService {
         ResultReceiver resultReceiver = intent.getParcelableExtra(EXTRA_PARAM_RESULT_RECEIVER);
 
         try {
-            PayloadSpec spec = execute(config);
+            PayloadSpec spec = execute(config, new ProgressReporter(resultReceiver));
             resultReceiver.send(RESULT_CODE_SUCCESS, CallbackResultReceiver.createBundle(spec));
         } catch (Exception e) {
             Log.e(TAG, "Failed to prepare streaming update", e);
@@ -142,49 +186,95 @@ public class PrepareUpdateService extends IntentService {
      * 2. Makes sure required files are present.
      * 3. Checks OTA package compatibility with the device.
      * 4. Constructs {@link PayloadSpec} for streaming update.
+     *
+     * <p>Independent stages run concurrently: payload metadata is verified while the
+     * pre-streaming files are downloaded, and every check starts as soon as the file it
+     * needs is downloaded. The first fatal error cancels the remaining stages.</p>
+     *
+     * <p>Downloads go through {@link DownloadScheduler}; payload metadata is downloaded
+     * with higher priority than the other files.</p>
      */
-    private PayloadSpec execute(UpdateConfig config)
+    private PayloadSpec execute(UpdateConfig config, ProgressReporter progress)
             throws IOException, PreparationFailedException {
-
-        if (config.getAbConfig().getVerifyPayloadMetadata()) {
-            Log.i(TAG, "Verifying payload metadata with UpdateEngine.");
-            if (!verifyPayloadMetadata(config)) {
-                throw new PreparationFailedException("Payload metadata is not compatible");
+        Pipeline pipeline = new Pipeline();
+        try {
+            CompletableFuture<Void> metadataVerified;
+            if (config.getAbConfig().getVerifyPayloadMetadata()) {
+                metadataVerified = pipeline.stage("verify_payload_metadata", () -> {
+                    Log.i(TAG, "Verifying payload metadata with UpdateEngine.");
+                    boolean verified = runScheduled(DownloadScheduler.PRIORITY_HIGH,
+                            () -> verifyPayloadMetadata(config, progress));
+                    if (!verified) {
+                        throw new PreparationFailedException("Payload metadata is not compatible");
+                    }
+                    return null;
+                });
+            } else {
+                metadataVerified = CompletableFuture.completedFuture(null);
             }
-        }
-
-        if (config.getInstallType() == UpdateConfig.AB_INSTALL_TYPE_NON_STREAMING) {
-            return mPayloadSpecs.forNonStreaming(config.getUpdatePackageFile());
-        }
-
-        downloadPreStreamingFiles(config, OTA_PACKAGE_DIR);
-
-        Optional<UpdateConfig.PackageFile> payloadBinary =
-                UpdateConfigs.getPropertyFile(PAYLOAD_BINARY_FILE_NAME, config);
 
-        if (!payloadBinary.isPresent()) {
-            throw new PreparationFailedException(
-                    "Failed to find " + PAYLOAD_BINARY_FILE_NAME + " in config");
-        }
-
-        if (!UpdateConfigs.getPropertyFile(PAYLOAD_PROPERTIES_FILE_NAME, config).isPresent()
-                || !Paths.get(OTA_PACKAGE_DIR, PAYLOAD_PROPERTIES_FILE_NAME).toFile().exists()) {
-            throw new IOException(PAYLOAD_PROPERTIES_FILE_NAME + " not found");
-        }
+            if (config.getInstallType() == UpdateConfig.AB_INSTALL_TYPE_NON_STREAMING) {
+                CompletableFuture<PayloadSpec> spec = pipeline.stage("non_streaming_payload_spec",
+                        () -> mPayloadSpecs.forNonStreaming(config.getUpdatePackageFile()));
+                pipeline.await(metadataVerified, spec);
+                return spec.join();
+            }
 
-        File compatibilityFile = Paths.get(OTA_PACKAGE_DIR, COMPATIBILITY_ZIP_FILE_NAME).toFile();
-        if (compatibilityFile.isFile()) {
-            Log.i(TAG, "Verifying OTA package for compatibility with the device");
-            if (!verifyPackageCompatibility(compatibilityFile)) {
+            Optional<UpdateConfig.PackageFile> payloadBinary =
+                    UpdateConfigs.getPropertyFile(PAYLOAD_BINARY_FILE_NAME, config);
+            if (!payloadBinary.isPresent()) {
                 throw new PreparationFailedException(
-                        "OTA package is not compatible with this device");
+                        "Failed to find " + PAYLOAD_BINARY_FILE_NAME + " in config");
+            }
+            if (!UpdateConfigs.getPropertyFile(PAYLOAD_PROPERTIES_FILE_NAME, config)
+                    .isPresent()) {
+                throw new IOException(PAYLOAD_PROPERTIES_FILE_NAME + " not found");
+            }
+
+            Map<String, CompletableFuture<Void>> downloads =
+                    downloadPreStreamingFiles(pipeline, config, OTA_PACKAGE_DIR, progress);
+
+            File propertiesFile = Paths.get(OTA_PACKAGE_DIR, PAYLOAD_PROPERTIES_FILE_NAME).toFile();
+            CompletableFuture<PayloadSpec> spec = pipeline.stage("streaming_payload_spec",
+                    downloads.get(PAYLOAD_PROPERTIES_FILE_NAME),
+                    () -> {
+                        if (!propertiesFile.exists()) {
+                            throw new IOException(PAYLOAD_PROPERTIES_FILE_NAME + " not found");
+                        }
+                        return mPayloadSpecs.forStreaming(config.getUrl(),
+                                payloadBinary.get().getOffset(),
+                                payloadBinary.get().getSize(),
+                                propertiesFile);
+                    });
+
+            CompletableFuture<Void> compatible = CompletableFuture.completedFuture(null);
+            if (downloads.containsKey(COMPATIBILITY_ZIP_FILE_NAME)) {
+                File compatibilityFile =
+                        Paths.get(OTA_PACKAGE_DIR, COMPATIBILITY_ZIP_FILE_NAME).toFile();
+                compatible = pipeline.stage("verify_package_compatibility",
+                        downloads.get(COMPATIBILITY_ZIP_FILE_NAME),
+                        () -> {
+                            Log.i(TAG, "Verifying OTA package for compatibility with the device");
+                            long start = UpdateMetrics.startTimer();
+                            if (!verifyPackageCompatibility(compatibilityFile)) {
+                                throw new PreparationFailedException(
+                                        "OTA package is not compatible with this device");
+                            }
+                            mMetrics.histogram(UpdateMetrics.PHASE_COMPATIBILITY_CHECK)
+                                    .recordSince(start);
+                            return null;
+                        });
             }
-        }
 
-        return mPayloadSpecs.forStreaming(config.getUrl(),
-                payloadBinary.get().getOffset(),
-                payloadBinary.get().getSize(),
-                Paths.get(OTA_PACKAGE_DIR, PAYLOAD_PROPERTIES_FILE_NAME).toFile());
+            List<CompletableFuture<?>> all = new ArrayList<>(downloads.values());
+            all.add(metadataVerified);
+            all.add(spec);
+            all.add(compatible);
+            pipeline.await(all.toArray(new CompletableFuture<?>[0]));
+            return spec.join();
+        } finally {
+            pipeline.shutdown();
+        }
     }
 
     /**
@@ -194,8 +284,19 @@ public class PrepareUpdateService extends IntentService {
      * exception from UpdateEngine.
      * By downloading only small portion of the package, it allows to verify if UpdateEngine
      * will install the update.
+     * If {@link PayloadMetadataPrefetcher} has already verified the metadata, its result is
+     * returned right away.
+     *
+     * @throws ChecksumMismatchException when downloaded metadata doesn't match its digest
      */
-    private boolean verifyPayloadMetadata(UpdateConfig config) {
+    private boolean verifyPayloadMetadata(UpdateConfig config, ProgressReporter progress)
+            throws ChecksumMismatchException {
+        Optional<Boolean> prefetched = mMetadataPrefetcher.getVerificationResult(config);
+        if (prefetched.isPresent()) {
+            Log.i(TAG, "Payload metadata was verified in advance");
+            mMetrics.counter(UpdateMetrics.METADATA_VERIFIED_IN_ADVANCE).increment();
+            return prefetched.get();
+        }
         Optional<UpdateConfig.PackageFile> metadataPackageFile =
                 Arrays.stream(config.getAbConfig().getPropertyFiles())
                         .filter(p -> p.getFilename().equals(
@@ -207,14 +308,31 @@ public class PrepareUpdateService extends IntentService {
             return true;
         }
         Path metadataPath = Paths.get(OTA_PACKAGE_DIR, PackageFiles.PAYLOAD_METADATA_FILE_NAME);
+        String cacheKey = DownloadCache.key(config, metadataPackageFile.get());
         try {
             Files.deleteIfExists(metadataPath);
-            FileDownloader d = new FileDownloader(
-                    config.getUrl(),
-                    metadataPackageFile.get().getOffset(),
-                    metadataPackageFile.get().getSize(),
-                    metadataPath.toFile());
-            d.download();
+            if (mDownloadCache.copyTo(cacheKey, metadataPath.toFile(),
+                    metadataPackageFile.get().getSha256().orElse(null))) {
+                mMetrics.counter(UpdateMetrics.DOWNLOAD_CACHE_HITS).increment();
+            } else {
+                mMetrics.counter(UpdateMetrics.DOWNLOAD_CACHE_MISSES).increment();
+                long start = UpdateMetrics.startTimer();
+                FileDownloader d = FileDownloader.newBuilder()
+                        .url(config.getUrl())
+                        .offset(metadataPackageFile.get().getOffset())
+                        .size(metadataPackageFile.get().getSize())
+                        .destination(metadataPath.toFile())
+                        .sha256(metadataPackageFile.get().getSha256().orElse(null))
+                        .priority(DownloadScheduler.PRIORITY_HIGH)
+                        .progressListener(
+                                progress.newDownload(metadataPackageFile.get().getSize()))
+                        .build();
+                d.download();
+                mMetrics.histogram(UpdateMetrics.PHASE_METADATA_DOWNLOAD).recordSince(start);
+                mDownloadCache.put(cacheKey, metadataPath.toFile());
+            }
+        } catch (ChecksumMismatchException e) {
+            throw e;
         } catch (IOException e) {
             Log.w(TAG, String.format("Downloading %s from %s failed",
                     PackageFiles.PAYLOAD_METADATA_FILE_NAME,
@@ -222,7 +340,11 @@ public class PrepareUpdateService extends IntentService {
             return true;
         }
         try {
-            return mUpdateEngine.verifyPayloadMetadata(metadataPath.toAbsolutePath().toString());
+            long start = UpdateMetrics.startTimer();
+            boolean verified =
+                    mUpdateEngine.verifyPayloadMetadata(metadataPath.toAbsolutePath().toString());
+            mMetrics.histogram(UpdateMetrics.PHASE_METADATA_VERIFICATION).recordSince(start);
+            return verified;
         } catch (Exception e) {
             Log.w(TAG, "UpdateEngine#verifyPayloadMetadata failed", e);
             return true;
@@ -231,29 +353,88 @@ public class PrepareUpdateService extends IntentService {
 
     /**
      * Downloads files defined in {@link UpdateConfig#getAbConfig()}
-     * and exists in {@code PRE_STREAMING_FILES_SET}, and put them
-     * in directory {@code dir}.
+     * and exists in {@link PackageFiles#PRE_STREAMING_FILES}, and put them
+     * in directory {@code dir}. Files found in {@link DownloadCache} are copied from it.
+     * The rest that lie close to each other in the package are fetched together with one
+     * request by {@link PackageFileRangePlanner}; every such request is a pipeline stage.
      *
-     * @throws IOException when can't download a file
+     * @return stages that download the files, by file name
+     * @throws IOException when can't delete previously downloaded files
      */
-    private void downloadPreStreamingFiles(UpdateConfig config, String dir)
-            throws IOException {
+    private Map<String, CompletableFuture<Void>> downloadPreStreamingFiles(Pipeline pipeline,
+            UpdateConfig config, String dir, ProgressReporter progress) throws IOException {
+        long start = UpdateMetrics.startTimer();
         Log.d(TAG, "Deleting existing files from " + dir);
-        for (String file : PRE_STREAMING_FILES_SET) {
+        for (String file : PackageFiles.PRE_STREAMING_FILES) {
             Files.deleteIfExists(Paths.get(OTA_PACKAGE_DIR, file));
         }
-        Log.d(TAG, "Downloading files to " + dir);
+        Map<String, CompletableFuture<Void>> downloads = new HashMap<>();
+        Map<String, UpdateConfig.PackageFile> files = new HashMap<>();
         for (UpdateConfig.PackageFile file : config.getAbConfig().getPropertyFiles()) {
-            if (PRE_STREAMING_FILES_SET.contains(file.getFilename())) {
-                Log.d(TAG, "Downloading file " + file.getFilename());
-                FileDownloader downloader = new FileDownloader(
-                        config.getUrl(),
-                        file.getOffset(),
-                        file.getSize(),
-                        Paths.get(dir, file.getFilename()).toFile());
-                downloader.download();
+            if (!PackageFiles.PRE_STREAMING_FILES.contains(file.getFilename())
+                    || downloads.containsKey(file.getFilename())
+                    || files.containsKey(file.getFilename())) {
+                continue;
+            }
+            if (mDownloadCache.copyTo(DownloadCache.key(config, file),
+                    new File(dir, file.getFilename()), file.getSha256().orElse(null))) {
+                Log.d(TAG, "Found " + file.getFilename() + " in the download cache");
+                mMetrics.counter(UpdateMetrics.DOWNLOAD_CACHE_HITS).increment();
+                downloads.put(file.getFilename(), CompletableFuture.completedFuture(null));
+            } else {
+                mMetrics.counter(UpdateMetrics.DOWNLOAD_CACHE_MISSES).increment();
+                files.put(file.getFilename(), file);
+            }
+        }
+        List<PackageFileRangePlanner.Span> spans =
+                mRangePlanner.plan(new ArrayList<>(files.values()));
+        Log.d(TAG, "Downloading " + files.size() + " files to " + dir
+                + " with " + spans.size() + " requests");
+
+        for (PackageFileRangePlanner.Span span : spans) {
+            FileDownloader.ProgressListener listener = progress.newDownload(span.getSize());
+            CompletableFuture<Void> download = pipeline.stage(
+                    "download " + span.getOffset() + "+" + span.getSize(),
+                    () -> {
+                        runScheduled(DownloadScheduler.PRIORITY_NORMAL, () -> {
+                            mRangePlanner.download(config.getUrl(), span, new File(dir),
+                                    DownloadScheduler.PRIORITY_NORMAL, listener);
+                            return null;
+                        });
+                        for (UpdateConfig.PackageFile file : span.getFiles()) {
+                            mDownloadCache.put(DownloadCache.key(config, file),
+                                    new File(dir, file.getFilename()));
+                        }
+                        return null;
+                    });
+            for (UpdateConfig.PackageFile file : span.getFiles()) {
+                downloads.put(file.getFilename(), download);
             }
         }
+        CompletableFuture.allOf(downloads.values().toArray(new CompletableFuture<?>[0]))
+                .thenRun(() -> mMetrics.histogram(UpdateMetrics.PHASE_PRE_STREAMING_DOWNLOAD)
+                        .recordSince(start));
+        return downloads;
+    }
+
+    /**
+     * Runs {@code work} on {@link DownloadScheduler} with the given priority and waits for it.
+     * If the waiting thread is interrupted, e.g. when another stage of the pipeline failed,
+     * {@code work} is interrupted too.
+     */
+    private <T> T runScheduled(int priority, Callable<T> work) throws Exception {
+        CompletableFuture<T> result = mScheduler.submit(priority, work);
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
     }
 
     /**
@@ -269,37 +450,184 @@ public class PrepareUpdateService extends IntentService {
         }
     }
 
+    /**
+     * Sums up progress of all the downloads of one preparation and sends it to the
+     * {@link ResultReceiver}, at most once per
+     * {@link FileDownloader#DEFAULT_PROGRESS_INTERVAL_MILLIS} so the receiving
+     * {@link Handler} isn't flooded.
+     */
+    private static class ProgressReporter {
+
+        private final ResultReceiver mResultReceiver;
+        private final List<DownloadProgress> mDownloads = new ArrayList<>();
+        private long mLastReportMillis;
+
+        ProgressReporter(ResultReceiver resultReceiver) {
+            this.mResultReceiver = resultReceiver;
+        }
+
+        /** Registers a download of {@code size} bytes and returns its listener. */
+        synchronized FileDownloader.ProgressListener newDownload(long size) {
+            int index = mDownloads.size();
+            mDownloads.add(new DownloadProgress(0, size, 0, 0));
+            return progress -> update(index, progress);
+        }
+
+        private synchronized void update(int index, DownloadProgress progress) {
+            mDownloads.set(index, progress);
+            long bytesDone = 0;
+            long totalBytes = 0;
+            double throughput = 0;
+            double smoothedThroughput = 0;
+            for (DownloadProgress download : mDownloads) {
+                bytesDone += download.getBytesDone();
+                totalBytes += download.getTotalBytes();
+                if (download.getBytesDone() < download.getTotalBytes()) {
+                    throughput += download.getThroughput();
+                    smoothedThroughput += download.getSmoothedThroughput();
+                }
+            }
+            long now = SystemClock.elapsedRealtime();
+            if (bytesDone < totalBytes && now - mLastReportMillis
+                    < FileDownloader.DEFAULT_PROGRESS_INTERVAL_MILLIS) {
+                return;
+            }
+            mLastReportMillis = now;
+            mResultReceiver.send(RESULT_CODE_PROGRESS, CallbackResultReceiver.createBundle(
+                    new DownloadProgress(bytesDone, totalBytes, throughput, smoothedThroughput)));
+        }
+    }
+
     /**
      * Used by {@link PrepareUpdateService} to pass {@link PayloadSpec}
-     * to {@link UpdateResultCallback#onReceiveResult}.
+     * to {@link UpdateResultCallback#onReceiveResult}, and {@link DownloadProgress} to
+     * {@link PreparationProgressCallback#onProgress}.
      */
     private static class CallbackResultReceiver extends ResultReceiver {
 
         static Bundle createBundle(PayloadSpec payloadSpec) {
             Bundle b = new Bundle();
-            b.putSerializable(BUNDLE_PARAM_PAYLOAD_SPEC, payloadSpec);
+            b.putParcelable(BUNDLE_PARAM_PAYLOAD_SPEC, payloadSpec);
+            return b;
+        }
+
+        static Bundle createBundle(DownloadProgress progress) {
+            Bundle b = new Bundle();
+            b.putLong(BUNDLE_PARAM_BYTES_DONE, progress.getBytesDone());
+            b.putLong(BUNDLE_PARAM_TOTAL_BYTES, progress.getTotalBytes());
+            b.putDouble(BUNDLE_PARAM_THROUGHPUT, progress.getThroughput());
+            b.putDouble(BUNDLE_PARAM_SMOOTHED_THROUGHPUT, progress.getSmoothedThroughput());
             return b;
         }
 
         private static final String BUNDLE_PARAM_PAYLOAD_SPEC = "payload-spec";
+        private static final String BUNDLE_PARAM_BYTES_DONE = "bytes-done";
+        private static final String BUNDLE_PARAM_TOTAL_BYTES = "total-bytes";
+        private static final String BUNDLE_PARAM_THROUGHPUT = "throughput";
+        private static final String BUNDLE_PARAM_SMOOTHED_THROUGHPUT = "smoothed-throughput";
 
         private UpdateResultCallback mUpdateResultCallback;
+        private PreparationProgressCallback mProgressCallback;
 
-        CallbackResultReceiver(Handler handler, UpdateResultCallback updateResultCallback) {
+        CallbackResultReceiver(Handler handler, UpdateResultCallback updateResultCallback,
+                PreparationProgressCallback progressCallback) {
             super(handler);
             this.mUpdateResultCallback = updateResultCallback;
+            this.mProgressCallback = progressCallback;
         }
 
         @Override
         protected void onReceiveResult(int resultCode, Bundle resultData) {
+            if (resultCode == RESULT_CODE_PROGRESS) {
+                if (mProgressCallback != null) {
+                    mProgressCallback.onProgress(new DownloadProgress(
+                            resultData.getLong(BUNDLE_PARAM_BYTES_DONE),
+                            resultData.getLong(BUNDLE_PARAM_TOTAL_BYTES),
+                            resultData.getDouble(BUNDLE_PARAM_THROUGHPUT),
+                            resultData.getDouble(BUNDLE_PARAM_SMOOTHED_THROUGHPUT)));
+                }
+                return;
+            }
             PayloadSpec payloadSpec = null;
             if (resultCode == RESULT_CODE_SUCCESS) {
-                payloadSpec = (PayloadSpec) resultData.getSerializable(BUNDLE_PARAM_PAYLOAD_SPEC);
+                payloadSpec = resultData.getParcelable(BUNDLE_PARAM_PAYLOAD_SPEC);
             }
             mUpdateResultCallback.onReceiveResult(resultCode, payloadSpec);
         }
     }
 
+    /**
+     * Runs preparation stages on a thread pool and reports how long every stage took.
+     * The first failed stage fails the whole pipeline; {@link #await} then throws its error
+     * without waiting for the remaining stages, which are interrupted by {@link #shutdown}.
+     */
+    private static class Pipeline {
+
+        private static final int THREADS = 4;
+
+        private final ExecutorService mExecutor = Executors.newFixedThreadPool(THREADS);
+        private final CompletableFuture<Void> mFailure = new CompletableFuture<>();
+        private final long mStartMillis = SystemClock.elapsedRealtime();
+
+        /** Starts a stage right away. */
+        <T> CompletableFuture<T> stage(String name, Callable<T> work) {
+            return stage(name, CompletableFuture.completedFuture(null), work);
+        }
+
+        /** Starts a stage when {@code dependency} successfully completes. */
+        <T> CompletableFuture<T> stage(String name, CompletableFuture<?> dependency,
+                Callable<T> work) {
+            CompletableFuture<T> result = dependency.thenApplyAsync(ignored -> {
+                long start = SystemClock.elapsedRealtime();
+                try {
+                    return work.call();
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                } finally {
+                    Log.i(TAG, "Stage " + name + " took "
+                            + (SystemClock.elapsedRealtime() - start) + " ms");
+                }
+            }, mExecutor);
+            result.whenComplete((value, error) -> {
+                if (error != null) {
+                    mFailure.completeExceptionally(error);
+                }
+            });
+            return result;
+        }
+
+        /**
+         * Waits until all the given stages complete, or until any stage fails.
+         */
+        void await(CompletableFuture<?>... stages)
+                throws IOException, PreparationFailedException {
+            try {
+                CompletableFuture.anyOf(CompletableFuture.allOf(stages), mFailure).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while preparing the update", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                while (cause instanceof CompletionException && cause.getCause() != null) {
+                    cause = cause.getCause();
+                }
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof PreparationFailedException) {
+                    throw (PreparationFailedException) cause;
+                }
+                throw new PreparationFailedException(cause.toString());
+            }
+            Log.i(TAG, "Preparation took "
+                    + (SystemClock.elapsedRealtime() - mStartMillis) + " ms");
+        }
+
+        void shutdown() {
+            mExecutor.shutdownNow();
+        }
+    }
+
     private static class PreparationFailedException extends Exception {
         PreparationFailedException(String message) {
             super(message);
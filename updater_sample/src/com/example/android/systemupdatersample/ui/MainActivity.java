@@ -23,6 +23,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.UpdateEngine;
+import android.text.format.Formatter;
 import android.util.Log;
 import android.view.View;
 import android.widget.ArrayAdapter;
@@ -35,11 +36,26 @@ import com.example.android.systemupdatersample.R;
 import com.example.android.systemupdatersample.UpdateConfig;
 import com.example.android.systemupdatersample.UpdateManager;
 import com.example.android.systemupdatersample.UpdaterState;
+import com.example.android.systemupdatersample.util.DownloadProgress;
+import com.example.android.systemupdatersample.util.PayloadMetadataPrefetcher;
+import com.example.android.systemupdatersample.util.UpdateConfigCatalog;
+import com.example.android.systemupdatersample.util.UpdateConfigWatcher;
 import com.example.android.systemupdatersample.util.UpdateConfigs;
 import com.example.android.systemupdatersample.util.UpdateEngineErrorCodes;
 import com.example.android.systemupdatersample.util.UpdateEngineStatuses;
+import com.example.android.systemupdatersample.util.UpdateMetrics;
 
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * UI for SystemUpdaterSample app.
@@ -61,19 +77,77 @@ public class MainActivity extends Activity {
     private TextView mTextViewUpdaterState;
     private TextView mTextViewEngineStatus;
     private TextView mTextViewEngineErrorCode;
+    private TextView mTextViewPrepareProgress;
     private TextView mTextViewUpdateInfo;
     private Button mButtonSwitchSlot;
 
-    private List<UpdateConfig> mConfigs;
+    private UpdateConfigCatalog mConfigCatalog;
+    private UpdateConfigWatcher mConfigWatcher;
+    private List<UpdateConfigCatalog.Entry> mConfigs;
+    private final Handler mHandler = new Handler();
+    private final Runnable mConfigsUpdater = () -> {
+        int position = mSpinnerConfigs.getSelectedItemPosition();
+        String selected = position >= 0 && position < mConfigs.size()
+                ? mConfigs.get(position).getFileName()
+                : null;
+        mConfigs = mConfigCatalog.getEntries();
+        loadConfigsToSpinner(mConfigs);
+        for (int i = 0; i < mConfigs.size(); i++) {
+            if (mConfigs.get(i).getFileName().equals(selected)) {
+                mSpinnerConfigs.setSelection(i);
+            }
+        }
+        prefetchPayloadMetadata();
+    };
+    private final UpdateConfigCatalog.Listener mConfigsListener =
+            new UpdateConfigCatalog.Listener() {
+                @Override
+                public void onConfigAdded(UpdateConfigCatalog.Entry entry) {
+                    Log.i(TAG, "Config added " + entry.getFileName());
+                    postConfigsUpdate();
+                }
+
+                @Override
+                public void onConfigChanged(UpdateConfigCatalog.Entry entry) {
+                    Log.i(TAG, "Config changed " + entry.getFileName());
+                    postConfigsUpdate();
+                }
+
+                @Override
+                public void onConfigRemoved(UpdateConfigCatalog.Entry entry) {
+                    Log.i(TAG, "Config removed " + entry.getFileName());
+                    postConfigsUpdate();
+                }
+            };
+
+    private volatile double mProgress;
+    private final AtomicBoolean mProgressUpdatePosted = new AtomicBoolean();
+    private final Runnable mProgressUpdater = () -> {
+        mProgressUpdatePosted.set(false);
+        mProgressBar.setProgress((int) (100 * mProgress));
+    };
+
+    private static final String UPDATE_JOURNAL_FILE_NAME = "update_manager.journal";
+    private static final String UPDATE_CONFIGS_INDEX_FILE_NAME = "update_configs.index";
+
+    /**
+     * Whether payload metadata of the configs the user is likely to apply is downloaded and
+     * verified as soon as configs are loaded, see {@link PayloadMetadataPrefetcher}.
+     */
+    private static final boolean PREFETCH_PAYLOAD_METADATA = true;
+    /** Number of configs, starting from the selected one, to prefetch metadata of. */
+    private static final int PREFETCHED_CONFIGS = 3;
 
-    private final UpdateManager mUpdateManager =
-            new UpdateManager(new UpdateEngine(), new Handler());
+    private UpdateManager mUpdateManager;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        this.mUpdateManager = new UpdateManager(new UpdateEngine(), new Handler(),
+                new File(getFilesDir(), UPDATE_JOURNAL_FILE_NAME));
+
         this.mTextViewBuild = findViewById(R.id.textViewBuild);
         this.mSpinnerConfigs = findViewById(R.id.spinnerConfigs);
         this.mTextViewConfigsDirHint = findViewById(R.id.textViewConfigsDirHint);
@@ -87,25 +161,34 @@ public class MainActivity extends Activity {
         this.mTextViewUpdaterState = findViewById(R.id.textViewUpdaterState);
         this.mTextViewEngineStatus = findViewById(R.id.textViewEngineStatus);
         this.mTextViewEngineErrorCode = findViewById(R.id.textViewEngineErrorCode);
+        this.mTextViewPrepareProgress = findViewById(R.id.textViewPrepareProgress);
         this.mTextViewUpdateInfo = findViewById(R.id.textViewUpdateInfo);
         this.mButtonSwitchSlot = findViewById(R.id.buttonSwitchSlot);
 
         this.mTextViewConfigsDirHint.setText(UpdateConfigs.getConfigsRoot(this));
+        File configsRoot = new File(UpdateConfigs.getConfigsRoot(this));
+        this.mConfigCatalog = new UpdateConfigCatalog(configsRoot,
+                new File(getCacheDir(), UPDATE_CONFIGS_INDEX_FILE_NAME));
+        this.mConfigWatcher = new UpdateConfigWatcher(mConfigCatalog, configsRoot, mHandler,
+                mConfigsListener);
 
         uiResetWidgets();
-        loadUpdateConfigs();
 
         this.mUpdateManager.setOnStateChangeCallback(this::onUpdaterStateChange);
         this.mUpdateManager.setOnEngineStatusUpdateCallback(this::onEngineStatusUpdate);
         this.mUpdateManager.setOnEngineCompleteCallback(this::onEnginePayloadApplicationComplete);
         this.mUpdateManager.setOnProgressUpdateCallback(this::onProgressUpdate);
+        this.mUpdateManager.setOnPrepareProgressUpdateCallback(this::onPrepareProgressUpdate);
     }
 
     @Override
     protected void onDestroy() {
+        this.mUpdateManager.setOnStateChangeCallback(null);
         this.mUpdateManager.setOnEngineStatusUpdateCallback(null);
         this.mUpdateManager.setOnProgressUpdateCallback(null);
+        this.mUpdateManager.setOnPrepareProgressUpdateCallback(null);
         this.mUpdateManager.setOnEngineCompleteCallback(null);
+        this.mUpdateManager.close();
         super.onDestroy();
     }
 
@@ -115,14 +198,44 @@ public class MainActivity extends Activity {
         // Binding to UpdateEngine invokes onStatusUpdate callback,
         // persisted updater state has to be loaded and prepared beforehand.
         this.mUpdateManager.bind();
+        // Starts the next queued update if the device rebooted into the previous one.
+        this.mUpdateManager.continueUpdateQueue(this);
+        // Configs could be changed while the activity was paused.
+        this.mConfigWatcher.start();
+        loadUpdateConfigs();
     }
 
     @Override
     protected void onPause() {
+        this.mConfigWatcher.stop();
+        mHandler.removeCallbacks(mConfigsUpdater);
         this.mUpdateManager.unbind();
         super.onPause();
     }
 
+    /**
+     * Prints {@link UpdateMetrics}, as json if {@code args} contain {@code --json}:
+     * {@code adb shell dumpsys activity
+     * com.example.android.systemupdatersample/.ui.MainActivity [--json]}
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        UpdateMetrics metrics = UpdateMetrics.getDefault();
+        writer.println(prefix + "Update metrics:");
+        if (args != null && Arrays.asList(args).contains("--json")) {
+            try {
+                writer.println(metrics.toJson().toString(2));
+            } catch (JSONException e) {
+                writer.println(prefix + "  Failed to convert metrics to json: " + e);
+            }
+            return;
+        }
+        for (String line : metrics.dump().split("\n")) {
+            writer.println(prefix + "  " + line);
+        }
+    }
+
     /**
      * reload button is clicked
      */
@@ -134,10 +247,21 @@ public class MainActivity extends Activity {
      * view config button is clicked
      */
     public void onViewConfigClick(View view) {
-        UpdateConfig config = mConfigs.get(mSpinnerConfigs.getSelectedItemPosition());
+        UpdateConfig config = getSelectedConfig();
+        if (config == null) {
+            return;
+        }
+        String json;
+        try {
+            json = mConfigCatalog.getRawJson(
+                    mConfigs.get(mSpinnerConfigs.getSelectedItemPosition()));
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read config " + config.getName(), e);
+            return;
+        }
         new AlertDialog.Builder(this)
                 .setTitle(config.getName())
-                .setMessage(config.getRawJson())
+                .setMessage(json)
                 .setPositiveButton(R.string.close, (dialog, id) -> dialog.dismiss())
                 .show();
     }
@@ -146,6 +270,10 @@ public class MainActivity extends Activity {
      * apply config button is clicked
      */
     public void onApplyConfigClick(View view) {
+        UpdateConfig config = getSelectedConfig();
+        if (config == null) {
+            return;
+        }
         new AlertDialog.Builder(this)
                 .setTitle("Apply Update")
                 .setMessage("Do you really want to apply this update?")
@@ -153,7 +281,7 @@ public class MainActivity extends Activity {
                 .setPositiveButton(android.R.string.ok, (dialog, whichButton) -> {
                     uiResetWidgets();
                     uiResetEngineText();
-                    applyUpdate(getSelectedConfig());
+                    applyUpdate(config);
                 })
                 .setNegativeButton(android.R.string.cancel, null)
                 .show();
@@ -307,7 +435,20 @@ public class MainActivity extends Activity {
      * Invoked when update progress changes.
      */
     private void onProgressUpdate(double progress) {
-        mProgressBar.setProgress((int) (100 * progress));
+        mProgress = progress;
+        // Post at most one update at a time; it shows the latest progress when it runs.
+        if (!mProgressUpdatePosted.getAndSet(true)) {
+            runOnUiThread(mProgressUpdater);
+        }
+    }
+
+    /**
+     * Invoked when files are downloaded while the update is being prepared.
+     */
+    private void onPrepareProgressUpdate(DownloadProgress progress) {
+        runOnUiThread(() -> {
+            setUiPrepareProgress(progress);
+        });
     }
 
     /** resets ui */
@@ -329,6 +470,7 @@ public class MainActivity extends Activity {
     private void uiResetEngineText() {
         mTextViewEngineStatus.setText(R.string.unknown);
         mTextViewEngineErrorCode.setText(R.string.unknown);
+        mTextViewPrepareProgress.setText(R.string.unknown);
         // Note: Do not reset mTextViewUpdaterState; UpdateManager notifies updater state properly.
     }
 
@@ -382,8 +524,41 @@ public class MainActivity extends Activity {
      * loads json configurations from configs dir that is defined in {@link UpdateConfigs}.
      */
     private void loadUpdateConfigs() {
-        mConfigs = UpdateConfigs.getUpdateConfigs(this);
+        mConfigs = mConfigCatalog.reload();
         loadConfigsToSpinner(mConfigs);
+        prefetchPayloadMetadata();
+    }
+
+    /**
+     * Starts prefetching payload metadata of the selected config and the ones after it, so
+     * applying them doesn't wait for the metadata to be downloaded and verified.
+     */
+    private void prefetchPayloadMetadata() {
+        if (!PREFETCH_PAYLOAD_METADATA || mConfigs.isEmpty()) {
+            return;
+        }
+        int selected = Math.max(0, mSpinnerConfigs.getSelectedItemPosition());
+        List<UpdateConfig> configs = new ArrayList<>();
+        for (int i = 0; i < mConfigs.size() && configs.size() < PREFETCHED_CONFIGS; i++) {
+            UpdateConfigCatalog.Entry entry = mConfigs.get((selected + i) % mConfigs.size());
+            if (!entry.isValid()) {
+                continue;
+            }
+            try {
+                configs.add(mConfigCatalog.getConfig(entry));
+            } catch (IOException e) {
+                Log.w(TAG, "Not prefetching config " + entry.getFileName(), e);
+            }
+        }
+        PayloadMetadataPrefetcher.getDefault().prefetch(configs);
+    }
+
+    /**
+     * Updates the spinner once for a batch of config changes found by the watcher.
+     */
+    private void postConfigsUpdate() {
+        mHandler.removeCallbacks(mConfigsUpdater);
+        mHandler.post(mConfigsUpdater);
     }
 
     /**
@@ -402,6 +577,26 @@ public class MainActivity extends Activity {
         mTextViewEngineErrorCode.setText(errorText + "/" + errorCode);
     }
 
+    /**
+     * @param progress download progress reported while the update is being prepared
+     */
+    private void setUiPrepareProgress(DownloadProgress progress) {
+        StringBuilder text = new StringBuilder()
+                .append(Formatter.formatShortFileSize(this, progress.getBytesDone()))
+                .append(" / ")
+                .append(Formatter.formatShortFileSize(this, progress.getTotalBytes()));
+        long etaMillis = progress.getEtaMillis();
+        if (etaMillis > 0) {
+            text.append(", ")
+                    .append(Formatter.formatShortFileSize(this,
+                            (long) progress.getSmoothedThroughput()))
+                    .append("/s, ")
+                    .append(TimeUnit.MILLISECONDS.toSeconds(etaMillis))
+                    .append(" s left");
+        }
+        mTextViewPrepareProgress.setText(text);
+    }
+
     /**
      * @param state updater sample state
      */
@@ -410,8 +605,12 @@ public class MainActivity extends Activity {
         mTextViewUpdaterState.setText(stateText + "/" + state);
     }
 
-    private void loadConfigsToSpinner(List<UpdateConfig> configs) {
-        String[] spinnerArray = UpdateConfigs.configsToNames(configs);
+    private void loadConfigsToSpinner(List<UpdateConfigCatalog.Entry> configs) {
+        String[] spinnerArray = configs.stream()
+                .map(e -> e.isValid()
+                        ? e.getName()
+                        : e.getFileName() + " (invalid: " + e.getError().get() + ")")
+                .toArray(String[]::new);
         ArrayAdapter<String> spinnerArrayAdapter = new ArrayAdapter<>(this,
                 android.R.layout.simple_spinner_item,
                 spinnerArray);
@@ -420,8 +619,23 @@ public class MainActivity extends Activity {
         mSpinnerConfigs.setAdapter(spinnerArrayAdapter);
     }
 
+    /**
+     * @return selected config, or {@code null} if it can't be parsed; the error is shown
+     */
     private UpdateConfig getSelectedConfig() {
-        return mConfigs.get(mSpinnerConfigs.getSelectedItemPosition());
+        UpdateConfigCatalog.Entry entry =
+                mConfigs.get(mSpinnerConfigs.getSelectedItemPosition());
+        try {
+            return mConfigCatalog.getConfig(entry);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load config " + entry.getFileName(), e);
+            new AlertDialog.Builder(this)
+                    .setTitle(entry.getFileName())
+                    .setMessage(e.getMessage())
+                    .setPositiveButton(R.string.close, (dialog, id) -> dialog.dismiss())
+                    .show();
+            return null;
+        }
     }
 
 }
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.util;
+
+import java.io.IOException;
+
+/**
+ * Thrown when SHA-256 digest of downloaded data doesn't match the expected one.
+ */
+public class ChecksumMismatchException extends IOException {
+
+    private final String mExpected;
+    private final String mActual;
+
+    public ChecksumMismatchException(String name, String expected, String actual) {
+        super("SHA-256 mismatch for " + name + ", expected " + expected + ", got " + actual);
+        this.mExpected = expected;
+        this.mActual = actual;
+    }
+
+    /** Returns expected hex SHA-256 digest. */
+    public String getExpected() {
+        return mExpected;
+    }
+
+    /** Returns hex SHA-256 digest of the downloaded data. */
+    public String getActual() {
+        return mActual;
+    }
+}
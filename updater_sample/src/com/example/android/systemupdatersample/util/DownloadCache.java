@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.util;
+
+import android.util.Log;
+
+import com.example.android.systemupdatersample.UpdateConfig;
+import com.google.common.hash.Hashing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Content-addressed on-disk cache of downloaded package artifacts.
+ *
+ * <p>An artifact is identified by the package url, its offset and size in the package, and
+ * its hash when one is known. Files are stored under the hex SHA-256 of that key. When the
+ * total size exceeds the byte budget, the least recently used files are evicted. The use
+ * order survives restarts as the files' modification time.</p>
+ */
+public final class DownloadCache {
+
+    private static final String TAG = "DownloadCache";
+
+    /** Name of the cache directory under {@link PackageFiles#OTA_PACKAGE_DIR}. */
+    public static final String CACHE_DIR_NAME = "download_cache";
+
+    /** Default byte budget of the cache. */
+    public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static DownloadCache sDefault;
+
+    /**
+     * Returns the cache shared by the app, stored under {@link PackageFiles#OTA_PACKAGE_DIR}.
+     */
+    public static synchronized DownloadCache getDefault() {
+        if (sDefault == null) {
+            sDefault = new DownloadCache(
+                    new File(PackageFiles.OTA_PACKAGE_DIR, CACHE_DIR_NAME), DEFAULT_MAX_BYTES);
+        }
+        return sDefault;
+    }
+
+    /**
+     * Returns cache key of a file at {@code offset} with {@code size} bytes in the package
+     * at {@code url}.
+     *
+     * @param hash hash of the file, or {@code null} if unknown
+     */
+    public static String key(String url, long offset, long size, String hash) {
+        String identity = url + "\n" + offset + "\n" + size + "\n" + (hash == null ? "" : hash);
+        return Hashing.sha256().hashString(identity, StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * Returns cache key of {@code file} in the package of {@code config}.
+     */
+    public static String key(UpdateConfig config, UpdateConfig.PackageFile file) {
+        return key(config.getUrl(), file.getOffset(), file.getSize(),
+                file.getSha256().orElse(null));
+    }
+
+    private final File mDir;
+    private final long mMaxBytes;
+
+    /** Cached files and their sizes, from least to most recently used. */
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mTotalBytes;
+    private boolean mLoaded;
+
+    public DownloadCache(File dir, long maxBytes) {
+        this.mDir = dir;
+        this.mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Copies the cached file with {@code key} to {@code target}.
+     *
+     * @return {@code true} if the file was in the cache
+     */
+    public boolean copyTo(String key, File target) {
+        return copyTo(key, target, null);
+    }
+
+    /**
+     * Copies the cached file with {@code key} to {@code target} and checks that the copy
+     * matches {@code sha256}, if it's not null. A cached file that got corrupted on disk is
+     * evicted, and {@code false} is returned so the caller downloads it again.
+     *
+     * @return {@code true} if the file was in the cache and matches {@code sha256}
+     */
+    public synchronized boolean copyTo(String key, File target, String sha256) {
+        load();
+        // get() rather than containsKey() so the entry moves to the most recently used end.
+        if (mEntries.get(key) == null) {
+            return false;
+        }
+        File file = new File(mDir, key);
+        try {
+            Files.copy(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            if (sha256 != null) {
+                String actual = Hashing.sha256()
+                        .hashBytes(Files.readAllBytes(target.toPath())).toString();
+                if (!actual.equalsIgnoreCase(sha256)) {
+                    Log.w(TAG, "Cached file " + key + " is corrupted, expected SHA-256 "
+                            + sha256 + ", got " + actual);
+                    remove(key);
+                    Files.deleteIfExists(target.toPath());
+                    return false;
+                }
+            }
+            file.setLastModified(System.currentTimeMillis());
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Can't read cached file " + key, e);
+            remove(key);
+            return false;
+        }
+    }
+
+    /**
+     * Stores a copy of {@code source} under {@code key}, evicting the least recently used
+     * files if the cache gets over its budget. Failures are logged and ignored, the cache
+     * is only an optimization.
+     */
+    public synchronized void put(String key, File source) {
+        load();
+        long size = source.length();
+        if (size > mMaxBytes) {
+            return;
+        }
+        File file = new File(mDir, key);
+        File tmp = new File(mDir, key + TMP_SUFFIX);
+        try {
+            Files.createDirectories(mDir.toPath());
+            Files.copy(source.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Log.w(TAG, "Can't cache " + source.getName(), e);
+            tmp.delete();
+            return;
+        }
+        Long previous = mEntries.put(key, size);
+        mTotalBytes += size - (previous == null ? 0 : previous);
+        evict();
+    }
+
+    /** Returns whether a file with {@code key} is cached, without marking it used. */
+    public synchronized boolean contains(String key) {
+        load();
+        return mEntries.containsKey(key);
+    }
+
+    /** Returns total size of the cached files. */
+    public synchronized long getTotalBytes() {
+        load();
+        return mTotalBytes;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (mTotalBytes > mMaxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            new File(mDir, eldest.getKey()).delete();
+            mTotalBytes -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    private void remove(String key) {
+        Long size = mEntries.remove(key);
+        if (size != null) {
+            mTotalBytes -= size;
+        }
+        new File(mDir, key).delete();
+    }
+
+    /** Reads the cache directory once, restoring the use order from modification times. */
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (file.getName().endsWith(TMP_SUFFIX)) {
+                file.delete();
+                continue;
+            }
+            mEntries.put(file.getName(), file.length());
+            mTotalBytes += file.length();
+        }
+        evict();
+    }
+}
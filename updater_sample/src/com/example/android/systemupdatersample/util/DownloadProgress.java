@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.util;
+
+/**
+ * Progress of a download: bytes done so far, throughput and estimated time to completion.
+ */
+public final class DownloadProgress {
+
+    /** Value of {@link #getEtaMillis()} when the throughput is not known yet. */
+    public static final long ETA_UNKNOWN = -1;
+
+    private final long mBytesDone;
+    private final long mTotalBytes;
+    private final double mThroughput;
+    private final double mSmoothedThroughput;
+
+    /**
+     * @param bytesDone          number of bytes downloaded so far
+     * @param totalBytes         number of bytes to download
+     * @param throughput         bytes per second since the previous progress report
+     * @param smoothedThroughput exponentially smoothed bytes per second
+     */
+    public DownloadProgress(long bytesDone, long totalBytes, double throughput,
+            double smoothedThroughput) {
+        this.mBytesDone = bytesDone;
+        this.mTotalBytes = totalBytes;
+        this.mThroughput = throughput;
+        this.mSmoothedThroughput = smoothedThroughput;
+    }
+
+    public long getBytesDone() {
+        return mBytesDone;
+    }
+
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /** Returns a number from {@code 0.0} to {@code 1.0}. */
+    public double getFraction() {
+        return mTotalBytes == 0 ? 1 : (double) mBytesDone / mTotalBytes;
+    }
+
+    /** Returns bytes per second since the previous progress report. */
+    public double getThroughput() {
+        return mThroughput;
+    }
+
+    /** Returns exponentially smoothed bytes per second; it's used for the ETA. */
+    public double getSmoothedThroughput() {
+        return mSmoothedThroughput;
+    }
+
+    /**
+     * Returns estimated milliseconds until the download completes, or {@link #ETA_UNKNOWN}.
+     */
+    public long getEtaMillis() {
+        long remaining = mTotalBytes - mBytesDone;
+        if (remaining <= 0) {
+            return 0;
+        }
+        if (mSmoothedThroughput <= 0) {
+            return ETA_UNKNOWN;
+        }
+        return (long) (remaining * 1000 / mSmoothedThroughput);
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.util;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Schedules downloads of the app and limits their total bandwidth.
+ *
+ * <p>Download tasks are submitted with a priority and run on a small pool of threads,
+ * higher priority tasks first; tasks of the same priority run in submission order.</p>
+ *
+ * <p>{@link FileDownloader} takes bytes from a token bucket shared by all the downloads
+ * before it writes every block. The bucket refills at {@link #getRateLimit()} bytes per
+ * second and holds at most one second worth of tokens. While a higher priority download
+ * waits for tokens, lower priority ones don't get any. The limit can be changed at any
+ * time, {@code 0} means unlimited.</p>
+ *
+ * <p>Cancelling a returned future with {@code mayInterruptIfRunning} interrupts the task if
+ * it's running, so that a download that is no longer needed stops writing its files.</p>
+ */
+public final class DownloadScheduler {
+
+    /** Small files needed to decide whether to install an update, e.g. payload metadata. */
+    public static final int PRIORITY_HIGH = 0;
+    /** Files needed to start an update. */
+    public static final int PRIORITY_NORMAL = 1;
+    /** Data downloaded ahead of time, e.g. prefetching of the next update. */
+    public static final int PRIORITY_LOW = 2;
+
+    private static final int PRIORITY_COUNT = 3;
+
+    /** Default number of download tasks that run at once. */
+    public static final int DEFAULT_MAX_CONCURRENT_TASKS = 4;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /** Time constant of the smoothed throughput. */
+    private static final double THROUGHPUT_WINDOW_SECONDS = 2;
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private static DownloadScheduler sDefault;
+
+    /** Returns the scheduler shared by the app. It has no rate limit until one is set. */
+    public static synchronized DownloadScheduler getDefault() {
+        if (sDefault == null) {
+            sDefault = new DownloadScheduler(DEFAULT_MAX_CONCURRENT_TASKS, 0);
+        }
+        return sDefault;
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final AtomicInteger mRunningTasks = new AtomicInteger();
+
+    private final Object mLock = new Object();
+    /** Guarded by {@code mLock}. */
+    private long mRateLimit;
+    /** Guarded by {@code mLock}. Becomes negative when a block is bigger than the bucket. */
+    private double mTokens;
+    /** Guarded by {@code mLock}. */
+    private long mLastRefillNanos = System.nanoTime();
+    /** Guarded by {@code mLock}. Number of threads waiting for tokens, by priority. */
+    private final int[] mWaiting = new int[PRIORITY_COUNT];
+
+    /** Guarded by {@code mLock}. */
+    private long mTotalBytes;
+    /** Guarded by {@code mLock}. */
+    private double mThroughput;
+    /** Guarded by {@code mLock}. */
+    private long mLastRecordNanos = System.nanoTime();
+
+    /**
+     * @param maxConcurrentTasks maximum number of tasks that run at once
+     * @param rateLimit bytes per second for all downloads together, {@code 0} for unlimited
+     */
+    public DownloadScheduler(int maxConcurrentTasks, long rateLimit) {
+        if (maxConcurrentTasks <= 0) {
+            throw new IllegalArgumentException("maxConcurrentTasks must be positive");
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(maxConcurrentTasks, maxConcurrentTasks,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<>(),
+                r -> {
+                    Thread thread = new Thread(r,
+                            "DownloadScheduler-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+        setRateLimit(rateLimit);
+    }
+
+    /**
+     * Queues {@code work} with the given priority.
+     *
+     * @param priority one of {@code PRIORITY_*} constants
+     * @return future that completes with the result of {@code work}
+     */
+    public <T> CompletableFuture<T> submit(int priority, Callable<T> work) {
+        checkPriority(priority);
+        Task<T> task = new Task<>(priority, mSequence.getAndIncrement(), work);
+        mExecutor.execute(task);
+        return task.mResult;
+    }
+
+    /**
+     * Sets bandwidth limit of all the downloads in bytes per second; {@code 0} removes
+     * the limit. Downloads that are waiting for tokens pick up the new limit right away.
+     */
+    public void setRateLimit(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("rate limit must not be negative");
+        }
+        synchronized (mLock) {
+            refill(System.nanoTime());
+            mRateLimit = bytesPerSecond;
+            mTokens = Math.min(mTokens, bytesPerSecond);
+            mLock.notifyAll();
+        }
+    }
+
+    /** Returns bandwidth limit in bytes per second, {@code 0} means unlimited. */
+    public long getRateLimit() {
+        synchronized (mLock) {
+            return mRateLimit;
+        }
+    }
+
+    /** Returns total number of bytes downloaded through the scheduler. */
+    public long getTotalBytes() {
+        synchronized (mLock) {
+            return mTotalBytes;
+        }
+    }
+
+    /** Returns smoothed download throughput in bytes per second. */
+    public double getThroughput() {
+        synchronized (mLock) {
+            return decayedThroughput(System.nanoTime());
+        }
+    }
+
+    /** Returns number of tasks waiting to be run. */
+    public int getQueuedTasks() {
+        return mExecutor.getQueue().size();
+    }
+
+    /** Returns number of tasks being run. */
+    public int getRunningTasks() {
+        return mRunningTasks.get();
+    }
+
+    /**
+     * Blocks until {@code bytes} may be downloaded under the rate limit.
+     *
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    void acquire(int priority, long bytes) throws InterruptedIOException {
+        checkPriority(priority);
+        synchronized (mLock) {
+            mWaiting[priority]++;
+            try {
+                while (mRateLimit > 0) {
+                    long now = System.nanoTime();
+                    refill(now);
+                    if (mTokens >= 0 && !hasWaitersAbove(priority)) {
+                        mTokens -= bytes;
+                        return;
+                    }
+                    // Sleep until the debt is paid off, or until notified by another thread.
+                    long waitMillis = mTokens < 0
+                            ? (long) Math.ceil(-mTokens * 1000 / mRateLimit)
+                            : 1;
+                    mLock.wait(Math.max(1, waitMillis));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+            } finally {
+                mWaiting[priority]--;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /** Records that {@code bytes} were downloaded. */
+    void record(long bytes) {
+        synchronized (mLock) {
+            // Exponentially weighted sum of the downloaded bytes; for a steady download
+            // it converges to the download rate.
+            long now = System.nanoTime();
+            mThroughput = decayedThroughput(now) + bytes / THROUGHPUT_WINDOW_SECONDS;
+            mLastRecordNanos = now;
+            mTotalBytes += bytes;
+        }
+    }
+
+    private double decayedThroughput(long now) {
+        double elapsedSeconds = (double) (now - mLastRecordNanos) / NANOS_PER_SECOND;
+        return mThroughput * Math.exp(-elapsedSeconds / THROUGHPUT_WINDOW_SECONDS);
+    }
+
+    private void refill(long now) {
+        if (mRateLimit > 0) {
+            double elapsedSeconds = (double) (now - mLastRefillNanos) / NANOS_PER_SECOND;
+            mTokens = Math.min(mRateLimit, mTokens + elapsedSeconds * mRateLimit);
+        }
+        mLastRefillNanos = now;
+    }
+
+    private boolean hasWaitersAbove(int priority) {
+        for (int p = 0; p < priority; p++) {
+            if (mWaiting[p] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void checkPriority(int priority) {
+        if (priority < 0 || priority >= PRIORITY_COUNT) {
+            throw new IllegalArgumentException("Unknown priority " + priority);
+        }
+    }
+
+    /** A queued task; ordered by priority, then by submission order. */
+    private final class Task<T> implements Runnable, Comparable<Task<?>> {
+        private final int mPriority;
+        private final long mSequence;
+        private final Callable<T> mWork;
+        private final CompletableFuture<T> mResult = new CompletableFuture<T>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                boolean cancelled = super.cancel(mayInterruptIfRunning);
+                if (cancelled && mayInterruptIfRunning) {
+                    interruptRunner();
+                }
+                return cancelled;
+            }
+        };
+
+        /** Guarded by {@code this}. Thread that runs the task, null if it isn't running. */
+        private Thread mRunner;
+
+        Task(int priority, long sequence, Callable<T> work) {
+            this.mPriority = priority;
+            this.mSequence = sequence;
+            this.mWork = work;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (mResult.isDone()) {
+                    return;
+                }
+                mRunner = Thread.currentThread();
+            }
+            mRunningTasks.incrementAndGet();
+            try {
+                mResult.complete(mWork.call());
+            } catch (Throwable e) {
+                mResult.completeExceptionally(e);
+            } finally {
+                mRunningTasks.decrementAndGet();
+                synchronized (this) {
+                    mRunner = null;
+                    // Don't leave the interrupt of a cancelled task to the next task of the
+                    // thread.
+                    Thread.interrupted();
+                }
+            }
+        }
+
+        private synchronized void interruptRunner() {
+            if (mRunner != null) {
+                mRunner.interrupt();
+            }
+        }
+
+        @Override
+        public int compareTo(Task<?> other) {
+            if (mPriority != other.mPriority) {
+                return Integer.compare(mPriority, other.mPriority);
+            }
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+}
@@ -18,33 +18,149 @@ package com.example.android.systemupdatersample.util;
 
 import android.util.Log;
 
+import com.google.common.io.BaseEncoding;
+
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Downloads chunk of a file from given url using {@code offset} and {@code size},
  * and saves to a given location.
  *
- * In a real-life application this helper class should download from HTTP Server,
- * but in this sample app it will only download from a local file.
+ * <p>For {@code http://} and {@code https://} urls only the requested bytes are fetched using
+ * HTTP {@code Range} requests. Large ranges are split into chunks of {@code chunkSize} bytes
+ * which are fetched over up to {@code connections} connections at once; connections other
+ * than the calling thread are tasks of the {@link DownloadScheduler}. Completed chunks are
+ * recorded in a small journal next to the destination file, so an interrupted download picks
+ * up where it stopped. A chunk is journaled only after its data and then the journal entry
+ * are synced to the storage device, so after a power loss the journal never lists a chunk
+ * that isn't on disk.</p>
+ *
+ * <p>Data is streamed straight into a preallocated {@link FileChannel} using
+ * {@link FileChannel#transferFrom}, without copying it through a heap buffer. With
+ * {@link Builder#destinationOffset} the data is written at the given position of the
+ * destination file, so several ranges can fill one sparse file.</p>
+ *
+ * <p>With {@link Builder#sha256} the SHA-256 digest is computed while the data is copied to
+ * the destination, and {@link ChecksumMismatchException} is thrown if it doesn't match. The
+ * digest needs the data in order, so such downloads use a single connection and a heap
+ * buffer instead of {@link FileChannel#transferFrom}.</p>
+ *
+ * <p>Every block takes its bytes from the rate limit of a {@link DownloadScheduler}, by
+ * default the one shared by the app, with the priority set by {@link Builder#priority}.</p>
+ *
+ * <p>{@link Builder#progressListener} gets {@link DownloadProgress} at most once per
+ * {@link Builder#progressInterval}, and once more when the download completes.</p>
+ *
+ * <p>{@code file://} urls are read directly at the given offset.</p>
  */
 public final class FileDownloader {
 
-    private String mUrl;
-    private long mOffset;
-    private long mSize;
-    private File mDestination;
+    private static final String TAG = "FileDownloader";
+
+    /** Default size of a chunk that is fetched with a single range request. */
+    public static final long DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    /** Default number of connections used to download a single file. */
+    public static final int DEFAULT_CONNECTIONS = 4;
+
+    /** Suffix of the journal file that keeps track of the downloaded chunks. */
+    static final String JOURNAL_SUFFIX = ".journal";
+
+    /** {@code Content-Range} of a partial response: {@code bytes <start>-<end>/<total>}. */
+    private static final Pattern CONTENT_RANGE_PATTERN =
+            Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)");
+
+    /** Maximum number of bytes transferred to the destination file at once. */
+    private static final long TRANSFER_SIZE = 256 * 1024;
+
+    /** Default minimum time between two progress reports. */
+    public static final long DEFAULT_PROGRESS_INTERVAL_MILLIS = 250;
+
+    /**
+     * Receives progress of a download. It's invoked on the downloading threads, never
+     * concurrently.
+     */
+    public interface ProgressListener {
+        void onProgress(DownloadProgress progress);
+    }
+
+    /**
+     * Creates a file downloader {@link Builder}
+     */
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    private final String mUrl;
+    private final long mOffset;
+    private final long mSize;
+    private final File mDestination;
+    private final long mDestinationOffset;
+    private final boolean mPositional;
+    private final long mChunkSize;
+    private final int mConnections;
+    private final boolean mResumable;
+    private final String mSha256;
+    private final DownloadScheduler mScheduler;
+    private final int mPriority;
+    private final ProgressListener mProgressListener;
+    private final long mProgressIntervalMillis;
 
     public FileDownloader(String url, long offset, long size, File destination) {
-        this.mUrl = url;
-        this.mOffset = offset;
-        this.mSize = size;
-        this.mDestination = destination;
+        this(newBuilder()
+                .url(url)
+                .offset(offset)
+                .size(size)
+                .destination(destination));
+    }
+
+    private FileDownloader(Builder b) {
+        this.mUrl = b.mUrl;
+        this.mOffset = b.mOffset;
+        this.mSize = b.mSize;
+        this.mDestination = b.mDestination;
+        this.mDestinationOffset = b.mDestinationOffset;
+        this.mPositional = b.mPositional;
+        this.mChunkSize = b.mChunkSize;
+        this.mConnections = b.mConnections;
+        this.mResumable = b.mResumable;
+        this.mSha256 = b.mSha256;
+        this.mScheduler = b.mScheduler != null ? b.mScheduler : DownloadScheduler.getDefault();
+        this.mPriority = b.mPriority;
+        this.mProgressListener = b.mProgressListener;
+        this.mProgressIntervalMillis = b.mProgressIntervalMillis;
     }
 
     /**
@@ -52,42 +168,692 @@ public final class FileDownloader {
      * @throws IOException when can't download the file
      */
     public void download() throws IOException {
-        Log.d("FileDownloader", "downloading " + mDestination.getName()
+        Log.d(TAG, "downloading " + mDestination.getName()
                 + " from " + mUrl
-                + " to " + mDestination.getAbsolutePath());
+                + " to " + mDestination.getAbsolutePath()
+                + (mPositional ? " at " + mDestinationOffset : ""));
+
+        int chunkCount = (int) Math.max(1, (mSize + mChunkSize - 1) / mChunkSize);
+        File journalFile = getJournalFile();
+        if (!mDestination.isFile()) {
+            // Chunks recorded in the journal are gone together with the destination.
+            Files.deleteIfExists(journalFile.toPath());
+        }
+        Journal journal = mResumable
+                ? Journal.open(journalFile, journalHeader(), chunkCount)
+                : null;
+
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < chunkCount; i++) {
+            if (journal == null || !journal.isDone(i)) {
+                pending.add(i);
+            }
+        }
+        if (pending.size() < chunkCount) {
+            Log.d(TAG, "resuming " + mDestination.getName() + ", "
+                    + (chunkCount - pending.size()) + " of " + chunkCount
+                    + " chunks are already downloaded");
+        }
+
+        MessageDigest digest = mSha256 == null ? null : newSha256Digest();
+        ProgressTracker progress = mProgressListener == null ? null
+                : new ProgressTracker(mProgressListener, mProgressIntervalMillis, mSize,
+                        mSize - pendingBytes(pending));
+        try (FileChannel output = FileChannel.open(mDestination.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            preallocate(output, journal == null || journal.isEmpty());
+            if (digest != null) {
+                // Chunks downloaded before a restart are hashed from the destination file;
+                // the rest are hashed on the way in.
+                for (int i = 0; i < chunkCount; i++) {
+                    if (journal != null && journal.isDone(i)) {
+                        hashChunk(i, output, digest);
+                    } else {
+                        downloadChunk(i, output, journal, digest, progress);
+                    }
+                }
+            } else if (pending.size() == 1 || mConnections == 1) {
+                for (int chunk : pending) {
+                    downloadChunk(chunk, output, journal, null, progress);
+                }
+            } else {
+                downloadChunksConcurrently(pending, output, journal, progress);
+            }
+        } finally {
+            if (journal != null) {
+                journal.close();
+            }
+        }
+
+        if (journal != null) {
+            Files.deleteIfExists(journalFile.toPath());
+        }
+        if (progress != null) {
+            progress.finish();
+        }
+        if (digest != null) {
+            try {
+                verifyDigest(mDestination.getName(), mSha256, digest);
+            } catch (ChecksumMismatchException e) {
+                if (!mPositional) {
+                    Files.deleteIfExists(mDestination.toPath());
+                }
+                throw e;
+            }
+        }
+    }
+
+    /** Returns a new SHA-256 {@link MessageDigest}. */
+    static MessageDigest newSha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Checks that {@code digest} matches the expected hex SHA-256 digest.
+     *
+     * @throws ChecksumMismatchException when the digests don't match
+     */
+    static void verifyDigest(String name, String expected, MessageDigest digest)
+            throws ChecksumMismatchException {
+        String actual = BaseEncoding.base16().lowerCase().encode(digest.digest());
+        if (!actual.equalsIgnoreCase(expected)) {
+            throw new ChecksumMismatchException(name, expected, actual);
+        }
+    }
+
+    /**
+     * Makes the destination file exactly as large as needed, so chunks can be written at
+     * their positions in any order. In positional mode the file is only extended; other
+     * ranges of the file are kept intact.
+     */
+    private void preallocate(FileChannel output, boolean fresh) throws IOException {
+        long end = mDestinationOffset + mSize;
+        if (!mPositional && fresh) {
+            output.truncate(0);
+        }
+        if (output.size() < end) {
+            // Writing the last byte extends the file without filling the gap, so the
+            // file stays sparse on file systems that support it.
+            output.write(ByteBuffer.allocate(1), end - 1);
+        } else if (!mPositional) {
+            output.truncate(end);
+        }
+    }
+
+    private long pendingBytes(List<Integer> chunks) {
+        long bytes = 0;
+        for (int chunk : chunks) {
+            bytes += Math.min(mChunkSize, mSize - chunk * mChunkSize);
+        }
+        return bytes;
+    }
+
+    /**
+     * Downloads the chunks over up to {@code mConnections} connections. The calling thread
+     * downloads chunks itself, the other connections are tasks of {@link #mScheduler}, so they
+     * count towards its limit of concurrent tasks. Helpers that haven't started by the time the
+     * calling thread runs out of chunks are dropped; waiting for them could deadlock when every
+     * thread of the scheduler waits for its own helpers.
+     */
+    private void downloadChunksConcurrently(List<Integer> chunks, FileChannel output,
+            Journal journal, ProgressTracker progress) throws IOException {
+        Queue<Integer> remaining = new ConcurrentLinkedQueue<>(chunks);
+        List<Helper> helpers = new ArrayList<>();
+        for (int i = 1; i < Math.min(mConnections, chunks.size()); i++) {
+            Helper helper = new Helper();
+            helper.mResult = mScheduler.submit(mPriority, () -> {
+                if (helper.mState.compareAndSet(Helper.QUEUED, Helper.STARTED)) {
+                    downloadChunks(remaining, output, journal, progress);
+                }
+                return null;
+            });
+            helpers.add(helper);
+        }
+        boolean done = false;
+        try {
+            downloadChunks(remaining, output, journal, progress);
+            for (Helper helper : helpers) {
+                if (!helper.mState.compareAndSet(Helper.QUEUED, Helper.DROPPED)) {
+                    helper.mResult.get();
+                }
+            }
+            done = true;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Can't download file " + mUrl, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading " + mUrl, e);
+        } finally {
+            if (!done) {
+                remaining.clear();
+                for (Helper helper : helpers) {
+                    helper.mResult.cancel(true);
+                }
+            }
+        }
+    }
+
+    private void downloadChunks(Queue<Integer> chunks, FileChannel output, Journal journal,
+            ProgressTracker progress) throws IOException {
+        Integer chunk;
+        while ((chunk = chunks.poll()) != null) {
+            downloadChunk(chunk, output, journal, null, progress);
+        }
+    }
+
+    /** A connection of {@link #downloadChunksConcurrently} that runs on the scheduler. */
+    private static final class Helper {
+        static final int QUEUED = 0;
+        static final int STARTED = 1;
+        static final int DROPPED = 2;
+
+        final AtomicInteger mState = new AtomicInteger(QUEUED);
+        CompletableFuture<Void> mResult;
+    }
+
+    /**
+     * Downloads chunk {@code index} of the requested range and writes it to the
+     * corresponding position of the destination file. Positional writes to a
+     * {@link FileChannel} are safe to do from several threads at once.
+     *
+     * @param digest if not null, updated with the chunk data
+     * @param progress if not null, updated with the number of written bytes
+     */
+    private void downloadChunk(int index, FileChannel output, Journal journal,
+            MessageDigest digest, ProgressTracker progress) throws IOException {
+        long start = index * mChunkSize;
+        long length = Math.min(mChunkSize, mSize - start);
+        if (length == 0) {
+            return;
+        }
+
+        try (ReadableByteChannel input = openRange(mOffset + start, length)) {
+            long position = mDestinationOffset + start;
+            long total = digest == null
+                    ? transfer(input, output, position, length, progress)
+                    : copy(input, output, position, length, digest, progress);
+            if (total != length) {
+                throw new IOException("Can't download file "
+                        + mUrl
+                        + " with given size "
+                        + mSize);
+            }
+        }
+
+        if (journal != null) {
+            // The chunk has to be on disk before the journal says so.
+            output.force(false);
+            journal.markDone(index);
+        }
+    }
+
+    private long transfer(ReadableByteChannel input, FileChannel output, long position,
+            long length, ProgressTracker progress) throws IOException {
+        long total = 0;
+        while (total < length) {
+            long blockSize = Math.min(TRANSFER_SIZE, length - total);
+            mScheduler.acquire(mPriority, blockSize);
+            long count = output.transferFrom(input, position + total, blockSize);
+            if (count <= 0) {
+                break;
+            }
+            mScheduler.record(count);
+            if (progress != null) {
+                progress.add(count);
+            }
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Copies up to {@code length} bytes through a buffer, updating {@code digest} with every
+     * block as it passes.
+     */
+    private long copy(ReadableByteChannel input, FileChannel output, long position,
+            long length, MessageDigest digest, ProgressTracker progress) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(TRANSFER_SIZE, length));
+        long total = 0;
+        while (total < length) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - total));
+            mScheduler.acquire(mPriority, buffer.remaining());
+            if (input.read(buffer) < 0) {
+                break;
+            }
+            buffer.flip();
+            mScheduler.record(buffer.remaining());
+            if (progress != null) {
+                progress.add(buffer.remaining());
+            }
+            digest.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                total += output.write(buffer, position + total);
+            }
+        }
+        return total;
+    }
+
+    /** Updates {@code digest} with chunk {@code index} already in the destination file. */
+    private void hashChunk(int index, FileChannel output, MessageDigest digest)
+            throws IOException {
+        long start = index * mChunkSize;
+        long length = Math.min(mChunkSize, mSize - start);
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(TRANSFER_SIZE, length));
+        long position = mDestinationOffset + start;
+        long total = 0;
+        while (total < length) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - total));
+            int count = output.read(buffer, position + total);
+            if (count < 0) {
+                throw new IOException("Can't read downloaded part of " + mDestination);
+            }
+            buffer.flip();
+            digest.update(buffer);
+            total += count;
+        }
+    }
 
+    /**
+     * Opens a channel that starts at {@code offset} of {@code mUrl}. The returned channel
+     * might contain more than {@code length} bytes.
+     */
+    private ReadableByteChannel openRange(long offset, long length) throws IOException {
         URL url = new URL(mUrl);
+        if ("file".equals(url.getProtocol())) {
+            // FileChannel#transferFrom copies from another FileChannel without going through
+            // the Java heap.
+            FileChannel input = FileChannel.open(toPath(url), StandardOpenOption.READ);
+            try {
+                input.position(offset);
+            } catch (IOException e) {
+                input.close();
+                throw e;
+            }
+            return input;
+        }
+
         URLConnection connection = url.openConnection();
+        if (connection instanceof HttpURLConnection) {
+            connection.setRequestProperty("Range",
+                    "bytes=" + offset + "-" + (offset + length - 1));
+        }
         connection.connect();
 
-        // download the file
-        try (InputStream input = connection.getInputStream()) {
-            try (OutputStream output = new FileOutputStream(mDestination)) {
-                long skipped = input.skip(mOffset);
-                if (skipped != mOffset) {
+        InputStream input = connection.getInputStream();
+        if (connection instanceof HttpURLConnection
+                && ((HttpURLConnection) connection).getResponseCode()
+                        == HttpURLConnection.HTTP_PARTIAL) {
+            try {
+                checkContentRange(connection.getHeaderField("Content-Range"), offset, length);
+            } catch (IOException e) {
+                input.close();
+                throw e;
+            }
+            return Channels.newChannel(input);
+        }
+
+        // The server ignored the range request; skip to the offset.
+        Log.w(TAG, "Range requests are not supported by " + mUrl);
+        try {
+            skipFully(input, offset);
+        } catch (IOException e) {
+            input.close();
+            throw e;
+        }
+        return Channels.newChannel(input);
+    }
+
+    /** Returns the path of a {@code file://} url, with percent escapes decoded. */
+    private static Path toPath(URL url) throws IOException {
+        try {
+            return Paths.get(url.toURI());
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            throw new IOException("Invalid file url " + url, e);
+        }
+    }
+
+    /**
+     * Checks that a partial response starts at {@code offset} and has at least {@code length}
+     * bytes; otherwise its data would be written at the wrong position.
+     */
+    private void checkContentRange(String contentRange, long offset, long length)
+            throws IOException {
+        Matcher m = contentRange == null ? null : CONTENT_RANGE_PATTERN.matcher(contentRange);
+        if (m == null || !m.matches()
+                || Long.parseLong(m.group(1)) != offset
+                || Long.parseLong(m.group(2)) - offset + 1 < length) {
+            throw new IOException("Can't download file " + mUrl + ": requested "
+                    + length + " bytes at " + offset + ", got range " + contentRange);
+        }
+    }
+
+    private void skipFully(InputStream input, long count) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            long skipped = input.skip(remaining);
+            if (skipped <= 0) {
+                if (input.read() == -1) {
                     throw new IOException("Can't download file "
                             + mUrl
                             + " with given offset "
                             + mOffset);
                 }
-                byte[] data = new byte[4096];
-                long total = 0;
-                while (total < mSize) {
-                    int needToRead = (int) Math.min(4096, mSize - total);
-                    int count = input.read(data, 0, needToRead);
-                    if (count <= 0) {
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    /**
+     * A journal is valid only for the same source range and chunk layout.
+     */
+    private String journalHeader() {
+        return mUrl + " " + mOffset + " " + mSize + " " + mChunkSize
+                + (mSha256 == null ? "" : " " + mSha256);
+    }
+
+    /**
+     * In positional mode several ranges might be downloaded into the same file, every range
+     * has its own journal.
+     */
+    private File getJournalFile() {
+        return !mPositional
+                ? new File(mDestination.getPath() + JOURNAL_SUFFIX)
+                : new File(mDestination.getPath() + "." + mDestinationOffset + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * Turns the stream of written bytes into {@link DownloadProgress} reports, at most one
+     * per interval. Instantaneous throughput is measured between two reports; the smoothed
+     * throughput is their exponential moving average.
+     */
+    private static final class ProgressTracker {
+
+        /** Weight of the latest measurement in the smoothed throughput. */
+        private static final double SMOOTHING_FACTOR = 0.3;
+
+        private final ProgressListener mListener;
+        private final long mIntervalNanos;
+        private final long mTotalBytes;
+        private final AtomicLong mBytesDone;
+
+        private long mLastReportNanos;
+        private long mLastReportBytes;
+        private double mSmoothedThroughput = -1;
+
+        ProgressTracker(ProgressListener listener, long intervalMillis, long totalBytes,
+                long bytesDone) {
+            this.mListener = listener;
+            this.mIntervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+            this.mTotalBytes = totalBytes;
+            this.mBytesDone = new AtomicLong(bytesDone);
+            this.mLastReportNanos = System.nanoTime();
+            this.mLastReportBytes = bytesDone;
+        }
+
+        void add(long bytes) {
+            mBytesDone.addAndGet(bytes);
+            synchronized (this) {
+                long now = System.nanoTime();
+                if (now - mLastReportNanos >= mIntervalNanos) {
+                    // Read the counter under the lock, so reports never go backwards.
+                    report(mBytesDone.get(), now);
+                }
+            }
+        }
+
+        synchronized void finish() {
+            report(mBytesDone.get(), System.nanoTime());
+        }
+
+        private void report(long done, long now) {
+            double seconds = Math.max(now - mLastReportNanos, 1) / 1e9;
+            double throughput = (done - mLastReportBytes) / seconds;
+            mSmoothedThroughput = mSmoothedThroughput < 0
+                    ? throughput
+                    : SMOOTHING_FACTOR * throughput
+                            + (1 - SMOOTHING_FACTOR) * mSmoothedThroughput;
+            mLastReportNanos = now;
+            mLastReportBytes = done;
+            mListener.onProgress(
+                    new DownloadProgress(done, mTotalBytes, throughput, mSmoothedThroughput));
+        }
+    }
+
+    /**
+     * Journal of the downloaded chunks. The first line identifies the download, every next
+     * line contains the index of a completed chunk.
+     */
+    private static final class Journal {
+
+        private final BitSet mDone;
+        private final boolean mEmpty;
+        private final FileOutputStream mOutput;
+
+        static Journal open(File file, String header, int chunkCount) throws IOException {
+            BitSet done = new BitSet(chunkCount);
+            boolean valid = false;
+            if (file.isFile()) {
+                String content = new String(Files.readAllBytes(file.toPath()),
+                        StandardCharsets.UTF_8);
+                // Only lines that end with a newline were written completely; a torn write
+                // at the end of the journal leaves a partial line, e.g. "1" of "12".
+                String[] lines = content.substring(0, content.lastIndexOf('\n') + 1)
+                        .split("\n");
+                valid = header.equals(lines[0]);
+                for (int i = 1; valid && i < lines.length; i++) {
+                    try {
+                        int chunk = Integer.parseInt(lines[i]);
+                        if (chunk >= 0 && chunk < chunkCount) {
+                            done.set(chunk);
+                        }
+                    } catch (NumberFormatException e) {
+                        // Corrupted entry; don't trust the rest of the journal.
                         break;
                     }
-                    output.write(data, 0, count);
-                    total += count;
                 }
-                if (total != mSize) {
-                    throw new IOException("Can't download file "
-                            + mUrl
-                            + " with given size "
-                            + mSize);
+            }
+            if (!valid) {
+                done.clear();
+                try (Writer writer = new FileWriter(file, false)) {
+                    writer.write(header + "\n");
                 }
             }
+            return new Journal(done, new FileOutputStream(file, true));
+        }
+
+        private Journal(BitSet done, FileOutputStream output) {
+            this.mDone = done;
+            this.mEmpty = done.isEmpty();
+            this.mOutput = output;
+        }
+
+        boolean isEmpty() {
+            return mEmpty;
+        }
+
+        synchronized boolean isDone(int chunk) {
+            return mDone.get(chunk);
+        }
+
+        /** Records a chunk whose data is already synced, and syncs the journal. */
+        synchronized void markDone(int chunk) throws IOException {
+            mDone.set(chunk);
+            mOutput.write((chunk + "\n").getBytes(StandardCharsets.UTF_8));
+            mOutput.getFD().sync();
+        }
+
+        synchronized void close() throws IOException {
+            mOutput.close();
+        }
+    }
+
+    /**
+     * file downloader builder.
+     *
+     * <p>Usage:</p>
+     *
+     * {@code
+     *   FileDownloader downloader = FileDownloader.newBuilder()
+     *     .url("https://example.com/ota.zip")
+     *     .offset(offset)
+     *     .size(size)
+     *     .destination(file)
+     *     .build();
+     * }
+     */
+    public static class Builder {
+        private String mUrl;
+        private long mOffset;
+        private long mSize;
+        private File mDestination;
+        private long mDestinationOffset;
+        private boolean mPositional;
+        private long mChunkSize = DEFAULT_CHUNK_SIZE;
+        private int mConnections = DEFAULT_CONNECTIONS;
+        private boolean mResumable = true;
+        private String mSha256;
+        private DownloadScheduler mScheduler;
+        private int mPriority = DownloadScheduler.PRIORITY_NORMAL;
+        private ProgressListener mProgressListener;
+        private long mProgressIntervalMillis = DEFAULT_PROGRESS_INTERVAL_MILLIS;
+
+        public Builder() {
+        }
+
+        /**
+         * set url
+         */
+        public Builder url(String url) {
+            this.mUrl = url;
+            return this;
+        }
+
+        /**
+         * set offset of the data in the source file
+         */
+        public Builder offset(long offset) {
+            this.mOffset = offset;
+            return this;
+        }
+
+        /**
+         * set size of the data
+         */
+        public Builder size(long size) {
+            this.mSize = size;
+            return this;
+        }
+
+        /**
+         * set file to save the data to
+         */
+        public Builder destination(File destination) {
+            this.mDestination = destination;
+            return this;
+        }
+
+        /**
+         * set position in the destination file to write the data to. When set, the
+         * destination file is not truncated, so several ranges can fill one file.
+         */
+        public Builder destinationOffset(long destinationOffset) {
+            if (destinationOffset < 0) {
+                throw new IllegalArgumentException("destinationOffset must not be negative");
+            }
+            this.mDestinationOffset = destinationOffset;
+            this.mPositional = true;
+            return this;
+        }
+
+        /**
+         * set maximum size of a chunk fetched with a single range request
+         */
+        public Builder chunkSize(long chunkSize) {
+            if (chunkSize <= 0) {
+                throw new IllegalArgumentException("chunkSize must be positive");
+            }
+            this.mChunkSize = chunkSize;
+            return this;
+        }
+
+        /**
+         * set maximum number of concurrent connections
+         */
+        public Builder connections(int connections) {
+            if (connections <= 0) {
+                throw new IllegalArgumentException("connections must be positive");
+            }
+            this.mConnections = connections;
+            return this;
+        }
+
+        /**
+         * set whether completed chunks are journaled so the download can be resumed
+         */
+        public Builder resumable(boolean resumable) {
+            this.mResumable = resumable;
+            return this;
+        }
+
+        /**
+         * set expected hex SHA-256 digest of the data; {@code null} disables verification
+         */
+        public Builder sha256(String sha256) {
+            this.mSha256 = sha256;
+            return this;
+        }
+
+        /**
+         * set scheduler that limits bandwidth of the download; defaults to
+         * {@link DownloadScheduler#getDefault()}
+         */
+        public Builder scheduler(DownloadScheduler scheduler) {
+            this.mScheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * set priority of the download, one of {@code DownloadScheduler.PRIORITY_*}
+         */
+        public Builder priority(int priority) {
+            this.mPriority = priority;
+            return this;
+        }
+
+        /**
+         * set listener that receives download progress
+         */
+        public Builder progressListener(ProgressListener progressListener) {
+            this.mProgressListener = progressListener;
+            return this;
+        }
+
+        /**
+         * set minimum time between two progress reports
+         */
+        public Builder progressInterval(long intervalMillis) {
+            if (intervalMillis < 0) {
+                throw new IllegalArgumentException("intervalMillis must not be negative");
+            }
+            this.mProgressIntervalMillis = intervalMillis;
+            return this;
+        }
+
+        /**
+         * build {@link FileDownloader}
+         */
+        public FileDownloader build() {
+            return new FileDownloader(this);
         }
     }
 
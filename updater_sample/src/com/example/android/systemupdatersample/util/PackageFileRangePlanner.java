@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.util;
+
+import android.util.Log;
+
+import com.example.android.systemupdatersample.UpdateConfig;
+import com.google.common.collect.ImmutableList;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Plans downloading of several {@link UpdateConfig.PackageFile}s of the same package with as
+ * few requests as possible.
+ *
+ * <p>Property files generated by {@code tools/gen_update_config.py} are small and lie close
+ * to each other in the package zip. The planner sorts them by offset and merges neighbours
+ * that are at most {@code maxGap} bytes apart into spans. Each span is fetched with a single
+ * range request and then split into the target files. Files with a known SHA-256 digest are
+ * verified while they are split.</p>
+ */
+public final class PackageFileRangePlanner {
+
+    private static final String TAG = "PackageFileRangePlanner";
+
+    /**
+     * Default maximum number of unneeded bytes between two files that are still fetched
+     * with one request. Fetching a few KB more is much cheaper than another round-trip.
+     */
+    public static final long DEFAULT_MAX_GAP = 64 * 1024;
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /** A contiguous range of the package that covers one or more files. */
+    public static final class Span {
+        private final long mOffset;
+        private final long mSize;
+        private final ImmutableList<UpdateConfig.PackageFile> mFiles;
+
+        Span(long offset, long size, List<UpdateConfig.PackageFile> files) {
+            this.mOffset = offset;
+            this.mSize = size;
+            this.mFiles = ImmutableList.copyOf(files);
+        }
+
+        public long getOffset() {
+            return mOffset;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        /** Returns the files covered by the span, sorted by offset. */
+        public ImmutableList<UpdateConfig.PackageFile> getFiles() {
+            return mFiles;
+        }
+    }
+
+    private final long mMaxGap;
+
+    public PackageFileRangePlanner() {
+        this(DEFAULT_MAX_GAP);
+    }
+
+    /**
+     * @param maxGap maximum number of bytes between two files that are fetched together
+     */
+    public PackageFileRangePlanner(long maxGap) {
+        if (maxGap < 0) {
+            throw new IllegalArgumentException("maxGap must not be negative");
+        }
+        this.mMaxGap = maxGap;
+    }
+
+    /**
+     * Groups {@code files} into spans. Files that overlap or are at most {@code maxGap}
+     * bytes apart end up in the same span.
+     */
+    public List<Span> plan(List<UpdateConfig.PackageFile> files) {
+        List<UpdateConfig.PackageFile> sorted = new ArrayList<>(files);
+        sorted.sort(Comparator.comparingLong(UpdateConfig.PackageFile::getOffset));
+
+        List<Span> spans = new ArrayList<>();
+        List<UpdateConfig.PackageFile> current = new ArrayList<>();
+        long start = 0;
+        long end = 0;
+        for (UpdateConfig.PackageFile file : sorted) {
+            long fileEnd = file.getOffset() + file.getSize();
+            if (!current.isEmpty() && file.getOffset() - end > mMaxGap) {
+                spans.add(new Span(start, end - start, current));
+                current = new ArrayList<>();
+            }
+            if (current.isEmpty()) {
+                start = file.getOffset();
+                end = fileEnd;
+            }
+            current.add(file);
+            end = Math.max(end, fileEnd);
+        }
+        if (!current.isEmpty()) {
+            spans.add(new Span(start, end - start, current));
+        }
+        return spans;
+    }
+
+    /**
+     * Downloads all the files of {@code span} from {@code url} with one request, and saves
+     * every file to {@code dir} under its file name.
+     *
+     * @throws ChecksumMismatchException when a file doesn't match its SHA-256 digest
+     * @throws IOException when can't download the span or write the files
+     */
+    public void download(String url, Span span, File dir) throws IOException {
+        download(url, span, dir, DownloadScheduler.PRIORITY_NORMAL, null);
+    }
+
+    /**
+     * Same as {@link #download(String, Span, File)}, taking bandwidth with {@code priority},
+     * one of {@code DownloadScheduler.PRIORITY_*}, and reporting progress of the span
+     * download to {@code progressListener} if it's not null.
+     */
+    public void download(String url, Span span, File dir, int priority,
+            FileDownloader.ProgressListener progressListener) throws IOException {
+        Log.d(TAG, "Downloading " + span.getFiles().size() + " files with one request, "
+                + span.getSize() + " bytes at " + span.getOffset());
+        File spanFile = new File(dir, ".span-" + span.getOffset() + "-" + span.getSize());
+        try {
+            FileDownloader.newBuilder()
+                    .url(url)
+                    .offset(span.getOffset())
+                    .size(span.getSize())
+                    .destination(spanFile)
+                    .priority(priority)
+                    .progressListener(progressListener)
+                    .build()
+                    .download();
+            split(span, spanFile, dir);
+        } finally {
+            Files.deleteIfExists(spanFile.toPath());
+            // The span can't be resumed without its file, so its journal goes too.
+            Files.deleteIfExists(
+                    new File(spanFile.getPath() + FileDownloader.JOURNAL_SUFFIX).toPath());
+        }
+    }
+
+    private static void split(Span span, File spanFile, File dir) throws IOException {
+        try (FileChannel input = FileChannel.open(spanFile.toPath(), StandardOpenOption.READ)) {
+            for (UpdateConfig.PackageFile file : span.getFiles()) {
+                File target = new File(dir, file.getFilename());
+                try (FileChannel output = FileChannel.open(target.toPath(),
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    long position = file.getOffset() - span.getOffset();
+                    if (file.getSha256().isPresent()) {
+                        copyAndVerify(input, position, output, file);
+                    } else {
+                        transfer(input, position, output, file);
+                    }
+                } catch (ChecksumMismatchException e) {
+                    Files.deleteIfExists(target.toPath());
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static void transfer(FileChannel input, long position, FileChannel output,
+            UpdateConfig.PackageFile file) throws IOException {
+        long total = 0;
+        while (total < file.getSize()) {
+            long count = input.transferTo(position + total, file.getSize() - total, output);
+            if (count <= 0) {
+                throw new IOException("Can't extract " + file.getFilename()
+                        + " from downloaded range");
+            }
+            total += count;
+        }
+    }
+
+    private static void copyAndVerify(FileChannel input, long position, FileChannel output,
+            UpdateConfig.PackageFile file) throws IOException {
+        MessageDigest digest = FileDownloader.newSha256Digest();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(COPY_BUFFER_SIZE, file.getSize()));
+        long total = 0;
+        while (total < file.getSize()) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), file.getSize() - total));
+            int count = input.read(buffer, position + total);
+            if (count <= 0) {
+                throw new IOException("Can't extract " + file.getFilename()
+                        + " from downloaded range");
+            }
+            buffer.flip();
+            digest.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                output.write(buffer);
+            }
+            total += count;
+        }
+        FileDownloader.verifyDigest(file.getFilename(), file.getSha256().get(), digest);
+    }
+}
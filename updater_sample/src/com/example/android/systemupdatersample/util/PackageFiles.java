@@ -16,6 +16,8 @@
 
 package com.example.android.systemupdatersample.util;
 
+import com.google.common.collect.ImmutableSet;
+
 /** Utility class for an OTA package. */
 public final class PackageFiles {
 
@@ -55,5 +57,16 @@ public final class PackageFiles {
      */
     public static final String COMPATIBILITY_ZIP_FILE_NAME = "compatibility.zip";
 
+    /**
+     * The files that should be downloaded before streaming.
+     */
+    public static final ImmutableSet<String> PRE_STREAMING_FILES =
+            ImmutableSet.of(
+                    CARE_MAP_FILE_NAME,
+                    COMPATIBILITY_ZIP_FILE_NAME,
+                    METADATA_FILE_NAME,
+                    PAYLOAD_PROPERTIES_FILE_NAME
+            );
+
     private PackageFiles() {}
 }
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.util;
+
+import android.util.Log;
+
+import com.example.android.systemupdatersample.UpdateConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Downloads files of an OTA package into {@link DownloadCache} ahead of time, with
+ * {@link DownloadScheduler#PRIORITY_LOW} so that it doesn't slow down the update that is being
+ * installed. {@code PrepareUpdateService} then takes the files from the cache instead of
+ * downloading them.
+ */
+public final class PackagePrefetcher {
+
+    private static final String TAG = "PackagePrefetcher";
+
+    /** Name of the working directory under {@link PackageFiles#OTA_PACKAGE_DIR}. */
+    public static final String WORK_DIR_NAME = "prefetch";
+
+    private static PackagePrefetcher sDefault;
+
+    /**
+     * Returns the prefetcher that fills {@link DownloadCache#getDefault()}.
+     */
+    public static synchronized PackagePrefetcher getDefault() {
+        if (sDefault == null) {
+            sDefault = new PackagePrefetcher(DownloadCache.getDefault(),
+                    DownloadScheduler.getDefault(), new PackageFileRangePlanner(),
+                    new File(PackageFiles.OTA_PACKAGE_DIR, WORK_DIR_NAME));
+        }
+        return sDefault;
+    }
+
+    private final DownloadCache mCache;
+    private final DownloadScheduler mScheduler;
+    private final PackageFileRangePlanner mRangePlanner;
+    private final File mWorkDir;
+
+    public PackagePrefetcher(DownloadCache cache, DownloadScheduler scheduler,
+            PackageFileRangePlanner rangePlanner, File workDir) {
+        this.mCache = cache;
+        this.mScheduler = scheduler;
+        this.mRangePlanner = rangePlanner;
+        this.mWorkDir = workDir;
+    }
+
+    /**
+     * Downloads {@code fileNames} of the package of streaming {@code config} that aren't
+     * cached yet. Non-streaming packages are local and aren't prefetched.
+     *
+     * @return completes when the files are cached; failures are logged and don't complete it
+     *         exceptionally, prefetching is only an optimization
+     */
+    public CompletableFuture<Void> prefetch(UpdateConfig config, Set<String> fileNames) {
+        if (config.getInstallType() != UpdateConfig.AB_INSTALL_TYPE_STREAMING) {
+            return CompletableFuture.completedFuture(null);
+        }
+        List<UpdateConfig.PackageFile> files = new ArrayList<>();
+        for (UpdateConfig.PackageFile file : config.getAbConfig().getPropertyFiles()) {
+            if (fileNames.contains(file.getFilename())
+                    && !mCache.contains(DownloadCache.key(config, file))) {
+                files.add(file);
+            }
+        }
+        if (files.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        List<PackageFileRangePlanner.Span> spans = mRangePlanner.plan(files);
+        Log.d(TAG, "Prefetching " + files.size() + " files of " + config.getName()
+                + " with " + spans.size() + " requests");
+        CompletableFuture<?>[] downloads = new CompletableFuture<?>[spans.size()];
+        for (int i = 0; i < spans.size(); i++) {
+            PackageFileRangePlanner.Span span = spans.get(i);
+            downloads[i] = mScheduler.submit(DownloadScheduler.PRIORITY_LOW, () -> {
+                download(config, span);
+                return null;
+            }).exceptionally(e -> {
+                Log.w(TAG, "Failed to prefetch files of " + config.getName(), e);
+                return null;
+            });
+        }
+        return CompletableFuture.allOf(downloads);
+    }
+
+    private void download(UpdateConfig config, PackageFileRangePlanner.Span span)
+            throws IOException {
+        // Every span gets its own directory, spans of different packages can have
+        // files with the same names.
+        File dir = new File(mWorkDir, span.getOffset() + "-" + span.getSize() + "-"
+                + Integer.toHexString(config.getUrl().hashCode()));
+        Files.createDirectories(dir.toPath());
+        try {
+            mRangePlanner.download(config.getUrl(), span, dir,
+                    DownloadScheduler.PRIORITY_LOW, null);
+            for (UpdateConfig.PackageFile file : span.getFiles()) {
+                mCache.put(DownloadCache.key(config, file), new File(dir, file.getFilename()));
+            }
+        } finally {
+            deleteDir(dir);
+        }
+    }
+
+    /**
+     * Deletes {@code dir} with everything in it, including files that a failed download
+     * leaves behind. Failures are only logged, so they don't hide the download error.
+     */
+    private static void deleteDir(File dir) {
+        try {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    Files.deleteIfExists(file.toPath());
+                }
+            }
+            Files.deleteIfExists(dir.toPath());
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to delete " + dir, e);
+        }
+    }
+}
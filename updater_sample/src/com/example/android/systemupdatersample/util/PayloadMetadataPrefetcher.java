@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.util;
+
+import android.os.UpdateEngine;
+import android.util.Log;
+
+import com.example.android.systemupdatersample.UpdateConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Downloads and verifies payload metadata of configs before the user applies them, so that
+ * {@code PrepareUpdateService} can use the result instead of downloading
+ * {@link PackageFiles#PAYLOAD_METADATA_FILE_NAME} and calling
+ * {@link UpdateEngine#verifyPayloadMetadata} while the user waits.
+ *
+ * <p>Configs are given most likely first. Only configs with
+ * {@code ab_config.verify_payload_metadata} are prefetched; all the downloads of one
+ * {@link #prefetch} call together stay within a byte budget, and at most a few configs are
+ * fetched at once, with {@link DownloadScheduler#PRIORITY_LOW}. Downloaded metadata is put into
+ * {@link DownloadCache}.</p>
+ *
+ * <p>Verification results are kept in memory only: they depend on the running build, which
+ * doesn't change while the app process is alive. Failed downloads and verifications aren't
+ * remembered, the update is then verified as usual when it's applied.</p>
+ */
+public final class PayloadMetadataPrefetcher {
+
+    private static final String TAG = "PayloadMetadataPrefetch";
+
+    /** Name of the working directory under {@link PackageFiles#OTA_PACKAGE_DIR}. */
+    public static final String WORK_DIR_NAME = "metadata_prefetch";
+
+    /** Default number of configs that are prefetched at once. */
+    public static final int DEFAULT_MAX_CONCURRENT = 2;
+
+    /** Default number of bytes one {@link #prefetch} call may download. */
+    public static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    /**
+     * Verifies downloaded payload metadata, see {@link UpdateEngine#verifyPayloadMetadata}.
+     */
+    public interface Verifier {
+        boolean verify(File metadataFile) throws Exception;
+    }
+
+    private static PayloadMetadataPrefetcher sDefault;
+
+    /**
+     * Returns the prefetcher shared by the app; it verifies metadata with
+     * {@link UpdateEngine}.
+     */
+    public static synchronized PayloadMetadataPrefetcher getDefault() {
+        if (sDefault == null) {
+            UpdateEngine updateEngine = new UpdateEngine();
+            sDefault = new PayloadMetadataPrefetcher(DownloadCache.getDefault(),
+                    DownloadScheduler.getDefault(),
+                    f -> updateEngine.verifyPayloadMetadata(f.getAbsolutePath()),
+                    new File(PackageFiles.OTA_PACKAGE_DIR, WORK_DIR_NAME),
+                    DEFAULT_MAX_CONCURRENT, DEFAULT_MAX_BYTES);
+        }
+        return sDefault;
+    }
+
+    private final DownloadCache mCache;
+    private final DownloadScheduler mScheduler;
+    private final Verifier mVerifier;
+    private final File mWorkDir;
+    private final int mMaxConcurrent;
+    private final long mMaxBytes;
+
+    /** Guarded by {@code this}. Verification results by cache key of the metadata. */
+    private final Map<String, Boolean> mResults = new HashMap<>();
+    /** Guarded by {@code this}. Cache keys of the metadata being prefetched or queued. */
+    private final Set<String> mInFlight = new HashSet<>();
+    /** Guarded by {@code this}. */
+    private final ArrayDeque<Request> mPending = new ArrayDeque<>();
+    /** Guarded by {@code this}. */
+    private int mRunning;
+
+    /**
+     * @param maxConcurrent number of configs that are prefetched at once
+     * @param maxBytes number of bytes one {@link #prefetch} call may download
+     */
+    public PayloadMetadataPrefetcher(DownloadCache cache, DownloadScheduler scheduler,
+            Verifier verifier, File workDir, int maxConcurrent, long maxBytes) {
+        if (maxConcurrent <= 0) {
+            throw new IllegalArgumentException("maxConcurrent must be positive");
+        }
+        this.mCache = cache;
+        this.mScheduler = scheduler;
+        this.mVerifier = verifier;
+        this.mWorkDir = workDir;
+        this.mMaxConcurrent = maxConcurrent;
+        this.mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Prefetches and verifies payload metadata of {@code configs}, most likely first.
+     * Configs of a previous call that haven't started yet are dropped in favour of these.
+     * Metadata found in {@link DownloadCache} doesn't count against the byte budget; a config
+     * whose metadata doesn't fit into what is left of the budget is skipped.
+     *
+     * @return completes when all the accepted configs are done; failures are logged and don't
+     *         complete it exceptionally
+     */
+    public synchronized CompletableFuture<Void> prefetch(List<UpdateConfig> configs) {
+        for (Request request : mPending) {
+            mInFlight.remove(request.mKey);
+            request.mDone.complete(null);
+        }
+        mPending.clear();
+
+        long budget = mMaxBytes;
+        List<CompletableFuture<Void>> accepted = new ArrayList<>();
+        for (UpdateConfig config : configs) {
+            Optional<UpdateConfig.PackageFile> metadata = getMetadataFile(config);
+            if (!metadata.isPresent()) {
+                continue;
+            }
+            String key = DownloadCache.key(config, metadata.get());
+            if (mResults.containsKey(key) || mInFlight.contains(key)) {
+                continue;
+            }
+            if (!mCache.contains(key)) {
+                if (metadata.get().getSize() > budget) {
+                    Log.d(TAG, "Skipping " + config.getName() + ", over the byte budget");
+                    continue;
+                }
+                budget -= metadata.get().getSize();
+            }
+            Request request = new Request(config, metadata.get(), key);
+            mInFlight.add(key);
+            mPending.add(request);
+            accepted.add(request.mDone);
+        }
+        startPending();
+        return CompletableFuture.allOf(accepted.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * @return whether the payload metadata of {@code config} is compatible with the running
+     *         build, if it's been prefetched and verified
+     */
+    public synchronized Optional<Boolean> getVerificationResult(UpdateConfig config) {
+        Optional<UpdateConfig.PackageFile> metadata = getMetadataFile(config);
+        if (!metadata.isPresent()) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(mResults.get(DownloadCache.key(config, metadata.get())));
+    }
+
+    private static Optional<UpdateConfig.PackageFile> getMetadataFile(UpdateConfig config) {
+        if (config.getAbConfig() == null || !config.getAbConfig().getVerifyPayloadMetadata()) {
+            return Optional.empty();
+        }
+        return UpdateConfigs.getPropertyFile(PackageFiles.PAYLOAD_METADATA_FILE_NAME, config);
+    }
+
+    /** Guarded by {@code this}. */
+    private void startPending() {
+        while (mRunning < mMaxConcurrent && !mPending.isEmpty()) {
+            Request request = mPending.poll();
+            mRunning++;
+            mScheduler.submit(DownloadScheduler.PRIORITY_LOW, () -> fetchAndVerify(request))
+                    .whenComplete((verified, error) -> onDone(request, verified, error));
+        }
+    }
+
+    private synchronized void onDone(Request request, Boolean verified, Throwable error) {
+        mRunning--;
+        mInFlight.remove(request.mKey);
+        if (error != null) {
+            Log.w(TAG, "Failed to prefetch payload metadata of " + request.mConfig.getName(),
+                    error);
+        } else {
+            Log.i(TAG, "Payload metadata of " + request.mConfig.getName()
+                    + (verified ? " is verified" : " is not compatible"));
+            mResults.put(request.mKey, verified);
+        }
+        request.mDone.complete(null);
+        startPending();
+    }
+
+    private boolean fetchAndVerify(Request request) throws Exception {
+        Files.createDirectories(mWorkDir.toPath());
+        File metadataFile = new File(mWorkDir, request.mKey);
+        try {
+            if (!mCache.copyTo(request.mKey, metadataFile,
+                    request.mFile.getSha256().orElse(null))) {
+                FileDownloader.newBuilder()
+                        .url(request.mConfig.getUrl())
+                        .offset(request.mFile.getOffset())
+                        .size(request.mFile.getSize())
+                        .destination(metadataFile)
+                        .sha256(request.mFile.getSha256().orElse(null))
+                        .resumable(false)
+                        .scheduler(mScheduler)
+                        .priority(DownloadScheduler.PRIORITY_LOW)
+                        .build()
+                        .download();
+                mCache.put(request.mKey, metadataFile);
+            }
+            return mVerifier.verify(metadataFile);
+        } finally {
+            try {
+                Files.deleteIfExists(metadataFile.toPath());
+            } catch (IOException e) {
+                Log.w(TAG, "Can't delete " + metadataFile, e);
+            }
+        }
+    }
+
+    private static class Request {
+        final UpdateConfig mConfig;
+        final UpdateConfig.PackageFile mFile;
+        final String mKey;
+        final CompletableFuture<Void> mDone = new CompletableFuture<>();
+
+        Request(UpdateConfig config, UpdateConfig.PackageFile file, String key) {
+            this.mConfig = config;
+            this.mFile = file;
+            this.mKey = key;
+        }
+    }
+}
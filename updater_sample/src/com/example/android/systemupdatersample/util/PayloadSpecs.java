@@ -17,19 +17,20 @@
 package com.example.android.systemupdatersample.util;
 
 import com.example.android.systemupdatersample.PayloadSpec;
+import com.google.common.collect.ImmutableSet;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 /** The helper class that creates {@link PayloadSpec}. */
 public class PayloadSpecs {
@@ -41,60 +42,39 @@ public class PayloadSpecs {
      * format. We want to find out the offset of the entry, so that we can pass it over to the A/B
      * updater without making an extra copy of the payload.
      *
-     * <p>According to Android docs, the entries are listed in the order in which they appear in the
-     * zip file. So we enumerate the entries to identify the offset of the payload file.
-     * http://developer.android.com/reference/java/util/zip/ZipFile.html#entries()
+     * <p>The offset is found using {@link ZipLocator}: it reads the central directory and the
+     * local file header of the entry, instead of enumerating all the entries of the package.</p>
      */
     public PayloadSpec forNonStreaming(File packageFile) throws IOException {
-        boolean payloadFound = false;
-        long payloadOffset = 0;
-        long payloadSize = 0;
+        Map<String, ZipLocator.Entry> entries = ZipLocator.locate(packageFile,
+                ImmutableSet.of(PackageFiles.PAYLOAD_BINARY_FILE_NAME,
+                        PackageFiles.PAYLOAD_PROPERTIES_FILE_NAME));
 
-        List<String> properties = new ArrayList<>();
-        try (ZipFile zip = new ZipFile(packageFile)) {
-            Enumeration<? extends ZipEntry> entries = zip.entries();
-            long offset = 0;
-            while (entries.hasMoreElements()) {
-                ZipEntry entry = entries.nextElement();
-                String name = entry.getName();
-                // Zip local file header has 30 bytes + filename + sizeof extra field.
-                // https://en.wikipedia.org/wiki/Zip_(file_format)
-                long extraSize = entry.getExtra() == null ? 0 : entry.getExtra().length;
-                offset += 30 + name.length() + extraSize;
-
-                if (entry.isDirectory()) {
-                    continue;
-                }
+        ZipLocator.Entry payload = entries.get(PackageFiles.PAYLOAD_BINARY_FILE_NAME);
+        if (payload == null) {
+            throw new IOException("Failed to find payload entry in the given package.");
+        }
+        if (payload.getMethod() != ZipEntry.STORED) {
+            throw new IOException("Invalid compression method.");
+        }
 
-                long length = entry.getCompressedSize();
-                if (PackageFiles.PAYLOAD_BINARY_FILE_NAME.equals(name)) {
-                    if (entry.getMethod() != ZipEntry.STORED) {
-                        throw new IOException("Invalid compression method.");
-                    }
-                    payloadFound = true;
-                    payloadOffset = offset;
-                    payloadSize = length;
-                } else if (PackageFiles.PAYLOAD_PROPERTIES_FILE_NAME.equals(name)) {
-                    InputStream inputStream = zip.getInputStream(entry);
-                    if (inputStream != null) {
-                        BufferedReader br = new BufferedReader(new InputStreamReader(inputStream));
-                        String line;
-                        while ((line = br.readLine()) != null) {
-                            properties.add(line);
-                        }
-                    }
-                }
-                offset += length;
+        List<String> properties = new ArrayList<>();
+        ZipLocator.Entry propertiesEntry =
+                entries.get(PackageFiles.PAYLOAD_PROPERTIES_FILE_NAME);
+        if (propertiesEntry != null) {
+            byte[] data = ZipLocator.readEntry(packageFile, propertiesEntry);
+            BufferedReader br = new BufferedReader(new InputStreamReader(
+                    new ByteArrayInputStream(data), StandardCharsets.UTF_8));
+            String line;
+            while ((line = br.readLine()) != null) {
+                properties.add(line);
             }
         }
 
-        if (!payloadFound) {
-            throw new IOException("Failed to find payload entry in the given package.");
-        }
         return PayloadSpec.newBuilder()
                         .url("file://" + packageFile.getAbsolutePath())
-                        .offset(payloadOffset)
-                        .size(payloadSize)
+                        .offset(payload.getDataOffset())
+                        .size(payload.getCompressedSize())
                         .properties(properties)
                         .build();
     }
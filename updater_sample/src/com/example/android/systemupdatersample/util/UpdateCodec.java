@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.util;
+
+import com.example.android.systemupdatersample.PayloadSpec;
+import com.example.android.systemupdatersample.UpdateConfig;
+import com.google.common.collect.ImmutableList;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Compact binary encoding of {@link PayloadSpec} and {@link UpdateConfig.AbConfig}, used
+ * instead of Java serialization to pass them between components and to persist them.
+ *
+ * <p>{@code encode} methods produce a self-describing blob: a format version and a type tag,
+ * followed by the fields. {@code write}/{@code read} methods write only the fields, for
+ * containers that are versioned themselves, e.g. {@code UpdateJournal}. Strings are written
+ * as length-prefixed UTF-8; optional values are prefixed with a presence flag.</p>
+ *
+ * <p>New fields must be appended and {@link #VERSION} increased; readers accept blobs of
+ * their own and older versions.</p>
+ */
+public final class UpdateCodec {
+
+    /** Current format version. */
+    public static final int VERSION = 1;
+
+    /** Longer strings and lists are treated as corrupted data. */
+    private static final int MAX_LENGTH = 1024 * 1024;
+
+    private static final byte TYPE_PAYLOAD_SPEC = 1;
+    private static final byte TYPE_AB_CONFIG = 2;
+
+    /** Encodes {@code spec} to a versioned blob. */
+    public static byte[] encode(PayloadSpec spec) {
+        return encode(TYPE_PAYLOAD_SPEC, out -> writePayloadSpec(out, spec));
+    }
+
+    /** Decodes a blob created by {@link #encode(PayloadSpec)}. */
+    public static PayloadSpec decodePayloadSpec(byte[] data) throws IOException {
+        return readPayloadSpec(openBlob(data, TYPE_PAYLOAD_SPEC));
+    }
+
+    /** Encodes {@code config} to a versioned blob. */
+    public static byte[] encode(UpdateConfig.AbConfig config) {
+        return encode(TYPE_AB_CONFIG, out -> writeAbConfig(out, config));
+    }
+
+    /** Decodes a blob created by {@link #encode(UpdateConfig.AbConfig)}. */
+    public static UpdateConfig.AbConfig decodeAbConfig(byte[] data) throws IOException {
+        return readAbConfig(openBlob(data, TYPE_AB_CONFIG));
+    }
+
+    /** Writes fields of {@code spec}. */
+    public static void writePayloadSpec(DataOutput out, PayloadSpec spec) throws IOException {
+        writeString(out, spec.getUrl());
+        out.writeLong(spec.getOffset());
+        out.writeLong(spec.getSize());
+        writeStrings(out, spec.getProperties());
+    }
+
+    public static PayloadSpec readPayloadSpec(DataInput in) throws IOException {
+        return PayloadSpec.newBuilder()
+                .url(readString(in))
+                .offset(in.readLong())
+                .size(in.readLong())
+                .properties(readStrings(in))
+                .build();
+    }
+
+    /** Writes fields of {@code config} and its property files. */
+    public static void writeAbConfig(DataOutput out, UpdateConfig.AbConfig config)
+            throws IOException {
+        out.writeBoolean(config.getForceSwitchSlot());
+        out.writeBoolean(config.getVerifyPayloadMetadata());
+        UpdateConfig.PackageFile[] files = config.getPropertyFiles();
+        out.writeInt(files.length);
+        for (UpdateConfig.PackageFile file : files) {
+            writeString(out, file.getFilename());
+            out.writeLong(file.getOffset());
+            out.writeLong(file.getSize());
+            writeOptionalString(out, file.getSha256().orElse(null));
+        }
+        writeOptionalString(out, config.getAuthorization().orElse(null));
+    }
+
+    public static UpdateConfig.AbConfig readAbConfig(DataInput in) throws IOException {
+        boolean forceSwitchSlot = in.readBoolean();
+        boolean verifyPayloadMetadata = in.readBoolean();
+        int count = in.readInt();
+        if (count < 0 || count > MAX_LENGTH) {
+            throw new IOException("Invalid number of property files " + count);
+        }
+        UpdateConfig.PackageFile[] files = new UpdateConfig.PackageFile[count];
+        for (int i = 0; i < count; i++) {
+            files[i] = new UpdateConfig.PackageFile(
+                    readString(in), in.readLong(), in.readLong(), readOptionalString(in));
+        }
+        return new UpdateConfig.AbConfig(
+                forceSwitchSlot, verifyPayloadMetadata, files, readOptionalString(in));
+    }
+
+    /** Writes fields of {@code config}, except its raw json. */
+    public static void writeUpdateConfig(DataOutput out, UpdateConfig config)
+            throws IOException {
+        writeString(out, config.getName());
+        writeString(out, config.getUrl());
+        out.writeInt(config.getInstallType());
+        out.writeBoolean(config.getAbConfig() != null);
+        if (config.getAbConfig() != null) {
+            writeAbConfig(out, config.getAbConfig());
+        }
+    }
+
+    public static UpdateConfig readUpdateConfig(DataInput in) throws IOException {
+        String name = readString(in);
+        String url = readString(in);
+        int installType = in.readInt();
+        UpdateConfig.AbConfig abConfig = in.readBoolean() ? readAbConfig(in) : null;
+        return new UpdateConfig(name, url, installType, abConfig);
+    }
+
+    public static void writeString(DataOutput out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static void writeStrings(DataOutput out, List<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (String s : strings) {
+            writeString(out, s);
+        }
+    }
+
+    public static List<String> readStrings(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > MAX_LENGTH) {
+            throw new IOException("Invalid list size " + count);
+        }
+        ImmutableList.Builder<String> strings = ImmutableList.builder();
+        for (int i = 0; i < count; i++) {
+            strings.add(readString(in));
+        }
+        return strings.build();
+    }
+
+    public static void writeOptionalString(DataOutput out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            writeString(out, s);
+        }
+    }
+
+    public static String readOptionalString(DataInput in) throws IOException {
+        return in.readBoolean() ? readString(in) : null;
+    }
+
+    private interface FieldsWriter {
+        void write(DataOutput out) throws IOException;
+    }
+
+    private static byte[] encode(byte type, FieldsWriter writer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(VERSION);
+            out.writeByte(type);
+            writer.write(out);
+        } catch (IOException e) {
+            // ByteArrayOutputStream doesn't throw.
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static DataInput openBlob(byte[] data, byte type) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int version = in.readUnsignedByte();
+        if (version == 0 || version > VERSION) {
+            throw new IOException("Unsupported format version " + version);
+        }
+        byte actualType = in.readByte();
+        if (actualType != type) {
+            throw new IOException("Expected type " + type + ", got " + actualType);
+        }
+        return in;
+    }
+
+    private UpdateCodec() {}
+}
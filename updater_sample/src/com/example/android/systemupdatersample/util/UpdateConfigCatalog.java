@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.util;
+
+import android.util.JsonReader;
+import android.util.Log;
+
+import com.example.android.systemupdatersample.UpdateConfig;
+
+import org.json.JSONException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * Catalog of json update configurations in a directory.
+ *
+ * <p>Only the {@code name} of each config is read when the catalog is reloaded; the full
+ * {@link UpdateConfig} is parsed by {@link #getConfig(Entry)} when it's actually needed.
+ * Names are kept in an index file together with the size and modification time of their
+ * config files, so that a reload reads only the files that have changed since the index was
+ * written. A config file that can't be read or parsed doesn't affect the others, its
+ * {@link Entry} carries the error instead.</p>
+ *
+ * <p>The index is a cache: if it's missing or corrupted, all the files are read again.</p>
+ */
+public class UpdateConfigCatalog {
+
+    private static final String TAG = "UpdateConfigCatalog";
+
+    private static final int MAGIC = 0x55534349;
+    private static final int VERSION = 1;
+
+    private static final String CONFIG_FILE_EXTENSION = ".json";
+
+    private final File mRoot;
+    private final File mIndexFile;
+
+    /** Guarded by {@code this}. Entries sorted by file name. */
+    private final TreeMap<String, Entry> mEntries = new TreeMap<>();
+    /** Guarded by {@code this}. */
+    private boolean mIndexLoaded;
+    /** Guarded by {@code this}. Whether the whole directory was scanned at least once. */
+    private boolean mScanned;
+
+    /**
+     * A config file in the catalog.
+     */
+    public static final class Entry {
+
+        private final String mFileName;
+        private final long mLastModified;
+        private final long mLength;
+        private final String mName;
+        private final String mError;
+
+        /** Guarded by the catalog. */
+        private UpdateConfig mConfig;
+
+        private Entry(String fileName, long lastModified, long length, String name,
+                String error) {
+            this.mFileName = fileName;
+            this.mLastModified = lastModified;
+            this.mLength = length;
+            this.mName = name;
+            this.mError = error;
+        }
+
+        /** @return name of the config file in the catalog directory */
+        public String getFileName() {
+            return mFileName;
+        }
+
+        /** @return {@link UpdateConfig#getName()} of the config, {@code null} if not valid */
+        public String getName() {
+            return mName;
+        }
+
+        /** @return why the config file couldn't be read */
+        public Optional<String> getError() {
+            return mError == null ? Optional.empty() : Optional.of(mError);
+        }
+
+        public boolean isValid() {
+            return mError == null;
+        }
+
+        private boolean isUpToDate(File file) {
+            return file.lastModified() == mLastModified && file.length() == mLength;
+        }
+    }
+
+    /**
+     * Receives changes found by {@link #refresh}.
+     */
+    public interface Listener {
+        void onConfigAdded(Entry entry);
+
+        void onConfigChanged(Entry entry);
+
+        void onConfigRemoved(Entry entry);
+    }
+
+    /**
+     * @param root directory with json configs
+     * @param indexFile where config names are cached between reloads
+     */
+    public UpdateConfigCatalog(File root, File indexFile) {
+        this.mRoot = root;
+        this.mIndexFile = indexFile;
+    }
+
+    /**
+     * Scans the catalog directory, reading names of configs that were added or changed.
+     *
+     * @return all entries, sorted by file name
+     */
+    public synchronized List<Entry> reload() {
+        if (!mIndexLoaded) {
+            mIndexLoaded = true;
+            loadIndex();
+        }
+        mScanned = true;
+        File[] files = mRoot.listFiles();
+        if (files == null) {
+            files = new File[0];
+        }
+        boolean changed = false;
+        TreeMap<String, Entry> previous = new TreeMap<>(mEntries);
+        mEntries.clear();
+        for (File f : files) {
+            if (f.isDirectory() || !f.getName().endsWith(CONFIG_FILE_EXTENSION)) {
+                continue;
+            }
+            Entry entry = previous.remove(f.getName());
+            if (entry == null || !entry.isUpToDate(f)) {
+                entry = readEntry(f);
+                changed = true;
+            }
+            mEntries.put(entry.mFileName, entry);
+        }
+        if (changed || !previous.isEmpty()) {
+            saveIndex();
+        }
+        return getEntries();
+    }
+
+    /**
+     * Updates entries of the given files only, without scanning the directory; e.g. when it's
+     * known which files were written or deleted. Entries of unchanged files are kept.
+     *
+     * @param fileNames names of files in the catalog directory
+     * @param listener notified of every added, changed or removed entry
+     */
+    public synchronized void refresh(Collection<String> fileNames, Listener listener) {
+        if (!mScanned) {
+            for (Entry entry : reload()) {
+                listener.onConfigAdded(entry);
+            }
+            return;
+        }
+        boolean changed = false;
+        for (String fileName : fileNames) {
+            if (!fileName.endsWith(CONFIG_FILE_EXTENSION)) {
+                continue;
+            }
+            File f = new File(mRoot, fileName);
+            Entry previous = mEntries.get(fileName);
+            if (!f.isFile()) {
+                if (previous != null) {
+                    mEntries.remove(fileName);
+                    changed = true;
+                    listener.onConfigRemoved(previous);
+                }
+                continue;
+            }
+            if (previous != null && previous.isUpToDate(f)) {
+                continue;
+            }
+            Entry entry = readEntry(f);
+            mEntries.put(fileName, entry);
+            changed = true;
+            if (previous == null) {
+                listener.onConfigAdded(entry);
+            } else {
+                listener.onConfigChanged(entry);
+            }
+        }
+        if (changed) {
+            saveIndex();
+        }
+    }
+
+    /**
+     * @return entries found by the last {@link #reload()} or {@link #refresh}, sorted by
+     *         file name
+     */
+    public synchronized List<Entry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<>(mEntries.values()));
+    }
+
+    /**
+     * Parses the whole config of {@code entry}; the result is kept until the file changes.
+     *
+     * @throws IOException if the config file can't be read or parsed
+     */
+    public synchronized UpdateConfig getConfig(Entry entry) throws IOException {
+        if (!entry.isValid()) {
+            throw new IOException(entry.mError);
+        }
+        if (entry.mConfig == null) {
+            long start = UpdateMetrics.startTimer();
+            try (Reader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(new File(mRoot, entry.mFileName)),
+                    StandardCharsets.UTF_8))) {
+                entry.mConfig = UpdateConfig.fromJson(reader);
+                UpdateMetrics.getDefault().histogram(UpdateMetrics.PHASE_CONFIG_PARSE)
+                        .recordSince(start);
+            } catch (IOException | JSONException e) {
+                throw new IOException("Can't read/parse config file " + entry.mFileName
+                        + ": " + e.getMessage(), e);
+            }
+        }
+        return entry.mConfig;
+    }
+
+    /**
+     * Reads the json of {@code entry}; the parsed config doesn't keep it.
+     */
+    public String getRawJson(Entry entry) throws IOException {
+        return new String(Files.readAllBytes(new File(mRoot, entry.mFileName).toPath()),
+                StandardCharsets.UTF_8);
+    }
+
+    private static Entry readEntry(File file) {
+        // Size and time are taken before reading, so a concurrent write makes the entry stale.
+        long lastModified = file.lastModified();
+        long length = file.length();
+        try {
+            return new Entry(file.getName(), lastModified, length, readName(file), null);
+        } catch (Exception e) {
+            Log.w(TAG, "Can't read/parse config file " + file.getName(), e);
+            String error = e.getMessage() != null ? e.getMessage() : e.toString();
+            return new Entry(file.getName(), lastModified, length, null, error);
+        }
+    }
+
+    /**
+     * Reads only as much of the config as needed to find its {@code name}.
+     */
+    private static String readName(File file) throws IOException {
+        try (JsonReader reader = new JsonReader(new InputStreamReader(
+                new BufferedInputStream(new FileInputStream(file)), StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("name".equals(reader.nextName())) {
+                    return reader.nextString();
+                }
+                reader.skipValue();
+            }
+        } catch (IllegalStateException e) {
+            // JsonReader reports unexpected tokens this way.
+            throw new IOException(e.getMessage(), e);
+        }
+        throw new IOException("No name in config file " + file.getName());
+    }
+
+    private void loadIndex() {
+        if (!mIndexFile.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mIndexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.w(TAG, "Ignoring index of unknown format " + mIndexFile);
+                return;
+            }
+            int count = in.readInt();
+            List<Entry> entries = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                entries.add(new Entry(UpdateCodec.readString(in), in.readLong(), in.readLong(),
+                        UpdateCodec.readOptionalString(in), UpdateCodec.readOptionalString(in)));
+            }
+            for (Entry entry : entries) {
+                mEntries.put(entry.mFileName, entry);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Ignoring corrupted index " + mIndexFile, e);
+        }
+    }
+
+    private void saveIndex() {
+        File tmpFile = new File(mIndexFile.getPath() + ".tmp");
+        try {
+            File parent = mIndexFile.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(mEntries.size());
+                for (Entry entry : mEntries.values()) {
+                    UpdateCodec.writeString(out, entry.mFileName);
+                    out.writeLong(entry.mLastModified);
+                    out.writeLong(entry.mLength);
+                    UpdateCodec.writeOptionalString(out, entry.mName);
+                    UpdateCodec.writeOptionalString(out, entry.mError);
+                }
+            }
+            Files.move(tmpFile.toPath(), mIndexFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write index " + mIndexFile, e);
+        }
+    }
+}
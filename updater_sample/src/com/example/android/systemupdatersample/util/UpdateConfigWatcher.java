@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.util;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Watches the directory of an {@link UpdateConfigCatalog} and refreshes entries of config files
+ * when they are written, moved or deleted, so that configs dropped into the directory show up
+ * without reloading by hand.
+ *
+ * <p>Events are debounced: files are refreshed on the given {@link Handler} once no new event
+ * arrived for the debounce period, so a burst of writes to a file parses it once.</p>
+ */
+public class UpdateConfigWatcher {
+
+    private static final String TAG = "UpdateConfigWatcher";
+
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 300;
+
+    private static final int EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO
+            | FileObserver.MOVED_FROM | FileObserver.DELETE;
+
+    private final UpdateConfigCatalog mCatalog;
+    private final File mRoot;
+    private final Handler mHandler;
+    private final long mDebounceMillis;
+    private final UpdateConfigCatalog.Listener mListener;
+    private final Runnable mRefresh = this::refreshPending;
+
+    /** Guarded by itself. Files that had events since the last refresh. */
+    private final Set<String> mPending = new LinkedHashSet<>();
+
+    private FileObserver mObserver;
+
+    /**
+     * @param catalog catalog to refresh
+     * @param root directory of {@code catalog}
+     * @param handler handler the catalog is refreshed and {@code listener} is called on
+     * @param listener notified of changed entries
+     */
+    public UpdateConfigWatcher(UpdateConfigCatalog catalog, File root, Handler handler,
+            UpdateConfigCatalog.Listener listener) {
+        this(catalog, root, handler, DEFAULT_DEBOUNCE_MILLIS, listener);
+    }
+
+    public UpdateConfigWatcher(UpdateConfigCatalog catalog, File root, Handler handler,
+            long debounceMillis, UpdateConfigCatalog.Listener listener) {
+        this.mCatalog = catalog;
+        this.mRoot = root;
+        this.mHandler = handler;
+        this.mDebounceMillis = debounceMillis;
+        this.mListener = listener;
+    }
+
+    /**
+     * Starts watching; creates the directory if it doesn't exist, as it can't be watched
+     * otherwise.
+     */
+    public synchronized void start() {
+        if (mObserver != null) {
+            return;
+        }
+        if (!mRoot.isDirectory() && !mRoot.mkdirs()) {
+            Log.w(TAG, "Can't create configs directory " + mRoot);
+        }
+        mObserver = new FileObserver(mRoot.getPath(), EVENTS) {
+            @Override
+            public void onEvent(int event, String path) {
+                onFileEvent(path);
+            }
+        };
+        mObserver.startWatching();
+    }
+
+    /**
+     * Stops watching; events that are already pending are dropped.
+     */
+    public synchronized void stop() {
+        if (mObserver == null) {
+            return;
+        }
+        mObserver.stopWatching();
+        mObserver = null;
+        mHandler.removeCallbacks(mRefresh);
+        synchronized (mPending) {
+            mPending.clear();
+        }
+    }
+
+    /** Called on the FileObserver thread. */
+    private void onFileEvent(String fileName) {
+        if (fileName == null) {
+            return;
+        }
+        synchronized (mPending) {
+            mPending.add(fileName);
+        }
+        mHandler.removeCallbacks(mRefresh);
+        mHandler.postDelayed(mRefresh, mDebounceMillis);
+    }
+
+    private void refreshPending() {
+        synchronized (this) {
+            if (mObserver == null) {
+                return;
+            }
+        }
+        List<String> fileNames;
+        synchronized (mPending) {
+            fileNames = new ArrayList<>(mPending);
+            mPending.clear();
+        }
+        if (!fileNames.isEmpty()) {
+            mCatalog.refresh(fileNames, mListener);
+        }
+    }
+}
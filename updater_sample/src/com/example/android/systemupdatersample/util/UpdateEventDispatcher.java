@@ -0,0 +1,441 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.util;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Delivers {@code UpdateManager} events to its listeners on a dedicated thread, so the
+ * threads that publish events, e.g. the binder thread that runs update_engine callbacks,
+ * never run or wait for listener code.
+ *
+ * <p>Listeners are kept in an immutable snapshot that is replaced atomically when a listener
+ * is added or removed; publishing an event reads it without taking a lock. Every event type
+ * can have several listeners.</p>
+ *
+ * <p>Events are passed through a bounded ring of preallocated slots. When the ring is full,
+ * progress events are dropped, since a later progress event replaces them anyway; other
+ * events are kept in an overflow queue and delivered in order.</p>
+ *
+ * <p>Progress events are coalesced: within {@link #setCoalescingWindow a window} after a
+ * progress event is delivered, later ones only replace the pending value, which is delivered
+ * when the window ends. Other events are delivered right away, after the pending progress,
+ * so listeners see progress and status transitions in the order they were published.</p>
+ *
+ * <p>The dispatcher thread runs until {@link #close()}.</p>
+ */
+public final class UpdateEventDispatcher {
+
+    private static final String TAG = "UpdateEventDispatcher";
+
+    /** {@code UpdaterState} changed; listeners are {@link IntConsumer}. */
+    public static final int EVENT_STATE_CHANGE = 0;
+    /** update_engine status changed; listeners are {@link IntConsumer}. */
+    public static final int EVENT_ENGINE_STATUS = 1;
+    /** update_engine finished applying payload; listeners are {@link IntConsumer}. */
+    public static final int EVENT_ENGINE_COMPLETE = 2;
+    /** update_engine progress; listeners are {@link DoubleConsumer}. */
+    public static final int EVENT_PROGRESS = 3;
+    /** Download progress of preparation; listeners are {@link Consumer}. */
+    public static final int EVENT_PREPARE_PROGRESS = 4;
+
+    private static final int EVENT_COUNT = 5;
+
+    /** Default number of slots in the ring. */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /** Default progress coalescing window, about one frame. */
+    public static final long DEFAULT_COALESCING_WINDOW_MILLIS = 16;
+
+    private final AtomicReference<Object[][]> mListeners =
+            new AtomicReference<>(new Object[EVENT_COUNT][0]);
+
+    private final int mMask;
+    /**
+     * Sequence number of every slot. A slot at ring position {@code p} may be written when its
+     * sequence is {@code p}, and read when it's {@code p + 1}.
+     */
+    private final AtomicLongArray mSequences;
+    private final int[] mTypes;
+    private final long[] mValues;
+    private final Object[] mObjects;
+    /** Next ring position to write. */
+    private final AtomicLong mTail = new AtomicLong();
+    /** Next ring position to read; used only by the dispatcher thread. */
+    private long mHead;
+
+    private final Object mOverflowLock = new Object();
+    /** Guarded by {@code mOverflowLock}. */
+    private final ArrayDeque<Event> mOverflow = new ArrayDeque<>();
+    /** While it's set, events go to the overflow queue to keep their order. */
+    private volatile boolean mOverflowing;
+
+    private final AtomicLong mDroppedEvents = new AtomicLong();
+
+    private volatile long mCoalescingWindowNanos =
+            TimeUnit.MILLISECONDS.toNanos(DEFAULT_COALESCING_WINDOW_MILLIS);
+    // Coalesced progress, by event; used only by the dispatcher thread.
+    private final boolean[] mPending = new boolean[EVENT_COUNT];
+    private final long[] mPendingValues = new long[EVENT_COUNT];
+    private final Object[] mPendingObjects = new Object[EVENT_COUNT];
+    private final long[] mLastDeliveryNanos = new long[EVENT_COUNT];
+
+    private final Thread mThread;
+    private volatile boolean mParked;
+    private volatile boolean mClosed;
+
+    public UpdateEventDispatcher() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of slots in the ring, a power of two
+     */
+    public UpdateEventDispatcher(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two");
+        }
+        mMask = capacity - 1;
+        mSequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            mSequences.set(i, i);
+        }
+        mTypes = new int[capacity];
+        mValues = new long[capacity];
+        mObjects = new Object[capacity];
+        // Far enough in the past that the first progress event is delivered right away.
+        Arrays.fill(mLastDeliveryNanos, System.nanoTime() - Long.MAX_VALUE / 2);
+        mThread = new Thread(this::run, TAG);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /** Replaces all listeners of {@code event}; {@code null} removes them. */
+    public void setListener(int event, Object listener) {
+        checkEvent(event);
+        Object[] listeners = listener == null ? new Object[0] : new Object[] {listener};
+        mListeners.updateAndGet(current -> with(current, event, listeners));
+    }
+
+    /** Adds a listener of {@code event}. */
+    public void addListener(int event, Object listener) {
+        checkEvent(event);
+        if (listener == null) {
+            throw new NullPointerException("listener");
+        }
+        mListeners.updateAndGet(current -> {
+            Object[] listeners = Arrays.copyOf(current[event], current[event].length + 1);
+            listeners[listeners.length - 1] = listener;
+            return with(current, event, listeners);
+        });
+    }
+
+    /** Removes a listener of {@code event} that was added or set before. */
+    public void removeListener(int event, Object listener) {
+        checkEvent(event);
+        mListeners.updateAndGet(current -> {
+            Object[] listeners = Arrays.stream(current[event])
+                    .filter(l -> l != listener)
+                    .toArray();
+            return with(current, event, listeners);
+        });
+    }
+
+    /**
+     * Sets minimum time between two deliveries of the same progress event; {@code 0}
+     * delivers every progress event.
+     */
+    public void setCoalescingWindow(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("coalescing window must not be negative");
+        }
+        mCoalescingWindowNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        if (mParked) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    /** Returns true if {@code event} has at least one listener. */
+    public boolean hasListeners(int event) {
+        return mListeners.get()[event].length > 0;
+    }
+
+    /** Publishes an event with an int value; see {@code EVENT_*} for the value types. */
+    public void publish(int event, int value) {
+        publish(event, value, null);
+    }
+
+    /** Publishes an event with a double value. */
+    public void publish(int event, double value) {
+        publish(event, Double.doubleToRawLongBits(value), null);
+    }
+
+    /** Publishes an event with an object value. */
+    public void publish(int event, Object value) {
+        publish(event, 0, value);
+    }
+
+    /**
+     * Removes all listeners and stops the dispatcher thread. Events that aren't delivered yet
+     * are dropped, and so are events published later.
+     */
+    public void close() {
+        mClosed = true;
+        mListeners.set(new Object[EVENT_COUNT][0]);
+        LockSupport.unpark(mThread);
+    }
+
+    /** Returns number of progress events dropped because the ring was full. */
+    public long getDroppedEvents() {
+        return mDroppedEvents.get();
+    }
+
+    private void publish(int event, long value, Object object) {
+        checkEvent(event);
+        if (mClosed || !hasListeners(event)) {
+            return;
+        }
+        if (mOverflowing || !offer(event, value, object)) {
+            if (isDroppable(event)) {
+                mDroppedEvents.incrementAndGet();
+                return;
+            }
+            synchronized (mOverflowLock) {
+                mOverflow.add(new Event(event, value, object));
+                mOverflowing = true;
+            }
+        }
+        if (mParked) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    /** Writes an event to the ring; returns false if it's full. */
+    private boolean offer(int event, long value, Object object) {
+        long position = mTail.get();
+        while (true) {
+            int index = (int) position & mMask;
+            long diff = mSequences.get(index) - position;
+            if (diff == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    mTypes[index] = event;
+                    mValues[index] = value;
+                    mObjects[index] = object;
+                    mSequences.set(index, position + 1);
+                    return true;
+                }
+                position = mTail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                position = mTail.get();
+            }
+        }
+    }
+
+    /** Reads the next event from the ring and delivers it; returns false if it's empty. */
+    private boolean pollAndDeliver() {
+        int index = (int) mHead & mMask;
+        if (mSequences.get(index) != mHead + 1) {
+            return false;
+        }
+        int event = mTypes[index];
+        long value = mValues[index];
+        Object object = mObjects[index];
+        mObjects[index] = null;
+        mSequences.set(index, mHead + mMask + 1);
+        mHead++;
+        coalesce(event, value, object);
+        return true;
+    }
+
+    private void run() {
+        while (!mClosed) {
+            boolean delivered = false;
+            while (pollAndDeliver()) {
+                delivered = true;
+            }
+            if (mOverflowing) {
+                drainOverflow();
+                delivered = true;
+            }
+            if (delivered) {
+                continue;
+            }
+            long waitNanos = deliverDuePending();
+            // Publishers unpark the thread after they see mParked; check the ring once more
+            // in case an event was published before that.
+            mParked = true;
+            if (mSequences.get((int) mHead & mMask) == mHead + 1 || mOverflowing || mClosed) {
+                mParked = false;
+                continue;
+            }
+            if (waitNanos > 0) {
+                LockSupport.parkNanos(this, waitNanos);
+            } else {
+                LockSupport.park(this);
+            }
+            mParked = false;
+        }
+    }
+
+    /**
+     * Delivers events left in the ring and then the overflow queue. Publishers don't
+     * write to the ring while the overflow queue is used, so this keeps their order.
+     */
+    private void drainOverflow() {
+        ArrayDeque<Event> events = new ArrayDeque<>();
+        synchronized (mOverflowLock) {
+            int index = (int) mHead & mMask;
+            while (mSequences.get(index) == mHead + 1) {
+                events.add(new Event(mTypes[index], mValues[index], mObjects[index]));
+                mObjects[index] = null;
+                mSequences.set(index, mHead + mMask + 1);
+                mHead++;
+                index = (int) mHead & mMask;
+            }
+            events.addAll(mOverflow);
+            mOverflow.clear();
+            mOverflowing = false;
+        }
+        for (Event e : events) {
+            coalesce(e.mType, e.mValue, e.mObject);
+        }
+    }
+
+    /**
+     * Delivers a progress event if its window has passed, otherwise keeps it as pending.
+     * Other events are delivered after all the pending progress.
+     */
+    private void coalesce(int event, long value, Object object) {
+        long window = mCoalescingWindowNanos;
+        if (!isDroppable(event) || window == 0) {
+            deliverAllPending();
+            deliver(event, value, object);
+            return;
+        }
+        long now = System.nanoTime();
+        if (!mPending[event] && now - mLastDeliveryNanos[event] >= window) {
+            mLastDeliveryNanos[event] = now;
+            deliver(event, value, object);
+            return;
+        }
+        mPending[event] = true;
+        mPendingValues[event] = value;
+        mPendingObjects[event] = object;
+    }
+
+    /**
+     * Delivers pending progress whose window has passed. Returns nanoseconds until the next
+     * pending progress is due, or {@code 0} if there's none.
+     */
+    private long deliverDuePending() {
+        long window = mCoalescingWindowNanos;
+        long now = System.nanoTime();
+        long waitNanos = 0;
+        for (int event = 0; event < EVENT_COUNT; event++) {
+            if (!mPending[event]) {
+                continue;
+            }
+            long remaining = mLastDeliveryNanos[event] + window - now;
+            if (remaining <= 0) {
+                deliverPending(event, now);
+            } else if (waitNanos == 0 || remaining < waitNanos) {
+                waitNanos = remaining;
+            }
+        }
+        return waitNanos;
+    }
+
+    private void deliverAllPending() {
+        long now = System.nanoTime();
+        for (int event = 0; event < EVENT_COUNT; event++) {
+            if (mPending[event]) {
+                deliverPending(event, now);
+            }
+        }
+    }
+
+    private void deliverPending(int event, long now) {
+        Object object = mPendingObjects[event];
+        mPending[event] = false;
+        mPendingObjects[event] = null;
+        mLastDeliveryNanos[event] = now;
+        deliver(event, mPendingValues[event], object);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void deliver(int event, long value, Object object) {
+        for (Object listener : mListeners.get()[event]) {
+            try {
+                switch (event) {
+                    case EVENT_PROGRESS:
+                        ((DoubleConsumer) listener).accept(Double.longBitsToDouble(value));
+                        break;
+                    case EVENT_PREPARE_PROGRESS:
+                        ((Consumer<Object>) listener).accept(object);
+                        break;
+                    default:
+                        ((IntConsumer) listener).accept((int) value);
+                        break;
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Listener of event " + event + " failed", e);
+            }
+        }
+    }
+
+    private static boolean isDroppable(int event) {
+        return event == EVENT_PROGRESS || event == EVENT_PREPARE_PROGRESS;
+    }
+
+    private static Object[][] with(Object[][] current, int event, Object[] listeners) {
+        Object[][] next = current.clone();
+        next[event] = listeners;
+        return next;
+    }
+
+    private static void checkEvent(int event) {
+        if (event < 0 || event >= EVENT_COUNT) {
+            throw new IllegalArgumentException("Unknown event " + event);
+        }
+    }
+
+    /** An event waiting in the overflow queue. */
+    private static final class Event {
+        private final int mType;
+        private final long mValue;
+        private final Object mObject;
+
+        Event(int type, long value, Object object) {
+            this.mType = type;
+            this.mValue = value;
+            this.mObject = object;
+        }
+    }
+}
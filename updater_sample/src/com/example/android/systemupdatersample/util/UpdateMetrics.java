@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.util;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of counters, gauges and histograms that describe what happens during an update,
+ * e.g. how long every phase of it took. Metrics are created on first use and live until
+ * {@link #reset()}; {@link #dump()} and {@link #toJson()} show them all, sorted by name, so
+ * runs on different devices and builds can be compared.
+ *
+ * <p>Recording a value doesn't allocate: counters and gauges are single {@code long}s and a
+ * histogram keeps counts of values in buckets whose bounds are powers of two.</p>
+ *
+ * <p>Phase durations are recorded in microseconds into histograms named {@code PHASE_*}.</p>
+ */
+public final class UpdateMetrics {
+
+    /** Parsing a json config. */
+    public static final String PHASE_CONFIG_PARSE = "phase.config_parse_us";
+    /** Downloading {@link PackageFiles#PAYLOAD_METADATA_FILE_NAME}. */
+    public static final String PHASE_METADATA_DOWNLOAD = "phase.metadata_download_us";
+    /** Verifying payload metadata with update_engine. */
+    public static final String PHASE_METADATA_VERIFICATION = "phase.metadata_verification_us";
+    /** Downloading all of {@link PackageFiles#PRE_STREAMING_FILES} of a package. */
+    public static final String PHASE_PRE_STREAMING_DOWNLOAD =
+            "phase.pre_streaming_download_us";
+    /** Checking compatibility of the package with the device. */
+    public static final String PHASE_COMPATIBILITY_CHECK = "phase.compatibility_check_us";
+    /** The call to {@code UpdateEngine#applyPayload}. */
+    public static final String PHASE_APPLY_PAYLOAD = "phase.apply_payload_us";
+    /** From {@code UpdateEngine#applyPayload} until update_engine reports progress. */
+    public static final String PHASE_FIRST_ENGINE_PROGRESS = "phase.first_engine_progress_us";
+    /** From the start of an update until update_engine successfully applied it. */
+    public static final String PHASE_INSTALL = "phase.install_us";
+
+    /** Pre-streaming files and payload metadata found in {@link DownloadCache}. */
+    public static final String DOWNLOAD_CACHE_HITS = "download_cache.hits";
+    /** Pre-streaming files and payload metadata that had to be downloaded. */
+    public static final String DOWNLOAD_CACHE_MISSES = "download_cache.misses";
+    /** Updates whose metadata was verified by {@link PayloadMetadataPrefetcher}. */
+    public static final String METADATA_VERIFIED_IN_ADVANCE = "metadata.verified_in_advance";
+    /** Updates that update_engine successfully applied. */
+    public static final String UPDATES_SUCCEEDED = "updates.succeeded";
+    /** Updates that failed to be prepared or applied. */
+    public static final String UPDATES_FAILED = "updates.failed";
+    /** The last status of update_engine, see {@code UpdateEngine.UpdateStatusConstants}. */
+    public static final String ENGINE_STATUS = "engine.status";
+    /** The last error code of update_engine, see {@code UpdateEngine.ErrorCodeConstants}. */
+    public static final String ENGINE_ERROR_CODE = "engine.error_code";
+
+    private static UpdateMetrics sDefault;
+
+    /** Returns the registry shared by the app. */
+    public static synchronized UpdateMetrics getDefault() {
+        if (sDefault == null) {
+            sDefault = new UpdateMetrics();
+        }
+        return sDefault;
+    }
+
+    /** Returns a start time for {@link Histogram#recordSince(long)}. */
+    public static long startTimer() {
+        return System.nanoTime();
+    }
+
+    /**
+     * A value that only goes up, e.g. number of cache hits.
+     */
+    public static final class Counter {
+        private final AtomicLong mValue = new AtomicLong();
+
+        public void increment() {
+            mValue.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+    }
+
+    /**
+     * The last value of something, e.g. update_engine status.
+     */
+    public static final class Gauge {
+        private final AtomicLong mValue = new AtomicLong();
+
+        public void set(long value) {
+            mValue.set(value);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+    }
+
+    /**
+     * Distribution of non-negative values. Bucket {@code i > 0} counts values in
+     * {@code [2^(i-1), 2^i)}, bucket 0 counts zeros; percentiles are estimated by the upper
+     * bound of the bucket they fall into, capped by the maximum.
+     */
+    public static final class Histogram {
+
+        private static final int BUCKETS = 64;
+
+        /** Guarded by {@code this}. */
+        private final long[] mBuckets = new long[BUCKETS];
+        private long mCount;
+        private long mSum;
+        private long mMin = Long.MAX_VALUE;
+        private long mMax;
+
+        /** Records {@code value}; negative values are recorded as zero. */
+        public synchronized void record(long value) {
+            value = Math.max(0, value);
+            mBuckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value))]++;
+            mCount++;
+            mSum += value;
+            mMin = Math.min(mMin, value);
+            mMax = Math.max(mMax, value);
+        }
+
+        /** Records microseconds since {@code startNanos}, see {@link #startTimer()}. */
+        public void recordSince(long startNanos) {
+            record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+        }
+
+        public synchronized long getCount() {
+            return mCount;
+        }
+
+        public synchronized long getSum() {
+            return mSum;
+        }
+
+        /** Returns the smallest value, {@code 0} if nothing was recorded. */
+        public synchronized long getMin() {
+            return mCount == 0 ? 0 : mMin;
+        }
+
+        public synchronized long getMax() {
+            return mMax;
+        }
+
+        public synchronized double getMean() {
+            return mCount == 0 ? 0 : (double) mSum / mCount;
+        }
+
+        /**
+         * @param percentile from 0 to 100
+         * @return estimated value below which {@code percentile} percent of values fall
+         */
+        public synchronized long getPercentile(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(mCount * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    long upperBound = i == 0 ? 0 : (1L << i) - 1;
+                    return Math.max(mMin, Math.min(mMax, upperBound));
+                }
+            }
+            return mMax;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Counter> mCounters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Gauge> mGauges = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> mHistograms = new ConcurrentHashMap<>();
+
+    public Counter counter(String name) {
+        return mCounters.computeIfAbsent(name, n -> new Counter());
+    }
+
+    public Gauge gauge(String name) {
+        return mGauges.computeIfAbsent(name, n -> new Gauge());
+    }
+
+    public Histogram histogram(String name) {
+        return mHistograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /** Removes all the metrics. */
+    public void reset() {
+        mCounters.clear();
+        mGauges.clear();
+        mHistograms.clear();
+    }
+
+    /**
+     * Returns all the metrics as text, one metric per line.
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Counter> e : new TreeMap<>(mCounters).entrySet()) {
+            sb.append(e.getKey()).append(' ').append(e.getValue().get()).append('\n');
+        }
+        for (Map.Entry<String, Gauge> e : new TreeMap<>(mGauges).entrySet()) {
+            sb.append(e.getKey()).append(' ').append(e.getValue().get()).append('\n');
+        }
+        for (Map.Entry<String, Histogram> e : new TreeMap<>(mHistograms).entrySet()) {
+            Histogram h = e.getValue();
+            synchronized (h) {
+                sb.append(e.getKey())
+                        .append(" count=").append(h.getCount())
+                        .append(" min=").append(h.getMin())
+                        .append(" mean=").append(Math.round(h.getMean()))
+                        .append(" p50=").append(h.getPercentile(50))
+                        .append(" p90=").append(h.getPercentile(90))
+                        .append(" max=").append(h.getMax())
+                        .append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns all the metrics as json:
+     * {@code {"counters": {name: value}, "gauges": {name: value},
+     * "histograms": {name: {"count": .., "sum": .., "min": .., "max": .., "p50": ..,
+     * "p90": .., "p99": ..}}}}.
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject counters = new JSONObject();
+        for (Map.Entry<String, Counter> e : new TreeMap<>(mCounters).entrySet()) {
+            counters.put(e.getKey(), e.getValue().get());
+        }
+        JSONObject gauges = new JSONObject();
+        for (Map.Entry<String, Gauge> e : new TreeMap<>(mGauges).entrySet()) {
+            gauges.put(e.getKey(), e.getValue().get());
+        }
+        JSONObject histograms = new JSONObject();
+        for (Map.Entry<String, Histogram> e : new TreeMap<>(mHistograms).entrySet()) {
+            Histogram h = e.getValue();
+            JSONObject json = new JSONObject();
+            synchronized (h) {
+                json.put("count", h.getCount());
+                json.put("sum", h.getSum());
+                json.put("min", h.getMin());
+                json.put("max", h.getMax());
+                json.put("p50", h.getPercentile(50));
+                json.put("p90", h.getPercentile(90));
+                json.put("p99", h.getPercentile(99));
+            }
+            histograms.put(e.getKey(), json);
+        }
+        return new JSONObject()
+                .put("counters", counters)
+                .put("gauges", gauges)
+                .put("histograms", histograms);
+    }
+}
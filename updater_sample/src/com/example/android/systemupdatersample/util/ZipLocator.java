@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Finds the exact data offsets of zip entries by reading the zip structures directly.
+ *
+ * <p>The end of central directory record is looked up in the memory-mapped tail of the file,
+ * the central directory is memory-mapped and scanned for the requested names, and the local
+ * file header of every found entry is read to get the real length of its name and extra
+ * field. Only the bytes of these structures are touched, no matter how large the entries
+ * are. ZIP64 archives are supported.</p>
+ *
+ * <p>https://pkware.cachefly.net/webdocs/casestudies/APPNOTE.TXT</p>
+ */
+public final class ZipLocator {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    private static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EOCD_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_EOCD_SIZE = 56;
+    private static final int ZIP64_EXTRA_FIELD_ID = 0x0001;
+
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+
+    private static final long UINT32_MAX = 0xffffffffL;
+
+    /** Location of a zip entry data in the archive. */
+    public static final class Entry {
+        private final String mName;
+        private final int mMethod;
+        private final long mDataOffset;
+        private final long mCompressedSize;
+        private final long mSize;
+
+        Entry(String name, int method, long dataOffset, long compressedSize, long size) {
+            this.mName = name;
+            this.mMethod = method;
+            this.mDataOffset = dataOffset;
+            this.mCompressedSize = compressedSize;
+            this.mSize = size;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /** Returns {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}. */
+        public int getMethod() {
+            return mMethod;
+        }
+
+        /** Returns offset of the first byte of the entry data in the archive. */
+        public long getDataOffset() {
+            return mDataOffset;
+        }
+
+        /** Returns number of bytes the entry data takes in the archive. */
+        public long getCompressedSize() {
+            return mCompressedSize;
+        }
+
+        /** Returns uncompressed size of the entry. */
+        public long getSize() {
+            return mSize;
+        }
+    }
+
+    private final FileChannel mChannel;
+
+    private ZipLocator(FileChannel channel) {
+        this.mChannel = channel;
+    }
+
+    /**
+     * Finds the entries with given names in {@code zipFile}. Names that are not present in
+     * the archive are missing in the returned map.
+     *
+     * @throws IOException if the file can't be read or is not a valid zip archive
+     */
+    public static Map<String, Entry> locate(File zipFile, Set<String> names) throws IOException {
+        try (FileChannel channel = FileChannel.open(zipFile.toPath(), StandardOpenOption.READ)) {
+            return new ZipLocator(channel).locate(names);
+        }
+    }
+
+    /**
+     * Reads the uncompressed contents of a small entry located by {@link #locate}.
+     *
+     * @throws IOException if the entry can't be read or inflated
+     */
+    public static byte[] readEntry(File zipFile, Entry entry) throws IOException {
+        if (entry.getCompressedSize() > Integer.MAX_VALUE
+                || entry.getSize() > Integer.MAX_VALUE) {
+            throw new IOException("Entry " + entry.getName() + " is too large to read");
+        }
+        byte[] data = new byte[(int) entry.getCompressedSize()];
+        try (FileChannel channel = FileChannel.open(zipFile.toPath(), StandardOpenOption.READ)) {
+            readFully(channel, ByteBuffer.wrap(data), entry.getDataOffset());
+        }
+        if (entry.getMethod() == ZipEntry.STORED) {
+            return data;
+        }
+        if (entry.getMethod() != ZipEntry.DEFLATED) {
+            throw new IOException("Unsupported compression method " + entry.getMethod()
+                    + " of " + entry.getName());
+        }
+        Inflater inflater = new Inflater(/* nowrap= */ true);
+        try {
+            inflater.setInput(data);
+            byte[] result = new byte[(int) entry.getSize()];
+            int inflated = 0;
+            while (inflated < result.length && !inflater.finished()) {
+                int count = inflater.inflate(result, inflated, result.length - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (inflated != result.length) {
+                throw new IOException("Can't inflate " + entry.getName());
+            }
+            return result;
+        } catch (DataFormatException e) {
+            throw new IOException("Can't inflate " + entry.getName(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private Map<String, Entry> locate(Set<String> names) throws IOException {
+        Map<String, byte[]> wanted = new HashMap<>();
+        for (String name : names) {
+            wanted.put(name, name.getBytes(StandardCharsets.UTF_8));
+        }
+
+        long fileSize = mChannel.size();
+        long tailSize = Math.min(fileSize, EOCD_SIZE + MAX_COMMENT_SIZE);
+        long tailStart = fileSize - tailSize;
+        ByteBuffer tail = map(tailStart, tailSize);
+        int eocd = findEocd(tail);
+        if (eocd < 0) {
+            throw new IOException("End of central directory record is not found");
+        }
+
+        long entryCount = tail.getShort(eocd + 10) & 0xffff;
+        long cdSize = tail.getInt(eocd + 12) & UINT32_MAX;
+        long cdOffset = tail.getInt(eocd + 16) & UINT32_MAX;
+
+        long locatorPosition = tailStart + eocd - ZIP64_EOCD_LOCATOR_SIZE;
+        if (locatorPosition >= 0) {
+            ByteBuffer locator = read(locatorPosition, ZIP64_EOCD_LOCATOR_SIZE);
+            if (locator.getInt(0) == ZIP64_EOCD_LOCATOR_SIGNATURE) {
+                ByteBuffer zip64Eocd = read(locator.getLong(8), ZIP64_EOCD_SIZE);
+                if (zip64Eocd.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                    throw new IOException("Invalid ZIP64 end of central directory record");
+                }
+                entryCount = zip64Eocd.getLong(32);
+                cdSize = zip64Eocd.getLong(40);
+                cdOffset = zip64Eocd.getLong(48);
+            }
+        }
+        if (cdOffset + cdSize > fileSize || cdSize > Integer.MAX_VALUE) {
+            throw new IOException("Invalid central directory location");
+        }
+
+        Map<String, Entry> result = new HashMap<>();
+        ByteBuffer cd = map(cdOffset, cdSize);
+        int position = 0;
+        for (long i = 0; i < entryCount && result.size() < wanted.size(); i++) {
+            if (position + CENTRAL_HEADER_SIZE > cd.limit()
+                    || cd.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("Invalid central directory file header");
+            }
+            int method = cd.getShort(position + 10) & 0xffff;
+            long compressedSize = cd.getInt(position + 20) & UINT32_MAX;
+            long size = cd.getInt(position + 24) & UINT32_MAX;
+            int nameLength = cd.getShort(position + 28) & 0xffff;
+            int extraLength = cd.getShort(position + 30) & 0xffff;
+            int commentLength = cd.getShort(position + 32) & 0xffff;
+            long localHeaderOffset = cd.getInt(position + 42) & UINT32_MAX;
+            int namePosition = position + CENTRAL_HEADER_SIZE;
+
+            String name = findName(cd, namePosition, nameLength, wanted);
+            if (name != null) {
+                int extraPosition = namePosition + nameLength;
+                // ZIP64 extra field contains only the values that don't fit into the header,
+                // in this order.
+                int zip64 = findExtraField(cd, extraPosition, extraLength, ZIP64_EXTRA_FIELD_ID);
+                if (zip64 >= 0) {
+                    if (size == UINT32_MAX) {
+                        size = cd.getLong(zip64);
+                        zip64 += 8;
+                    }
+                    if (compressedSize == UINT32_MAX) {
+                        compressedSize = cd.getLong(zip64);
+                        zip64 += 8;
+                    }
+                    if (localHeaderOffset == UINT32_MAX) {
+                        localHeaderOffset = cd.getLong(zip64);
+                    }
+                }
+                long dataOffset = readDataOffset(localHeaderOffset);
+                if (dataOffset + compressedSize > cdOffset) {
+                    throw new IOException("Entry " + name + " overlaps central directory");
+                }
+                result.put(name, new Entry(name, method, dataOffset, compressedSize, size));
+            }
+            position = namePosition + nameLength + extraLength + commentLength;
+        }
+        return result;
+    }
+
+    /**
+     * The local extra field might differ from the central one (e.g. alignment padding added
+     * by zipalign), so the actual lengths are taken from the local file header.
+     */
+    private long readDataOffset(long localHeaderOffset) throws IOException {
+        ByteBuffer header = read(localHeaderOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Invalid local file header at " + localHeaderOffset);
+        }
+        int nameLength = header.getShort(26) & 0xffff;
+        int extraLength = header.getShort(28) & 0xffff;
+        return localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    private static int findEocd(ByteBuffer tail) {
+        // The comment is the only variable length part of EOCD; scan backwards.
+        for (int i = tail.limit() - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE
+                    && i + EOCD_SIZE + (tail.getShort(i + 20) & 0xffff) == tail.limit()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String findName(ByteBuffer cd, int position, int length,
+            Map<String, byte[]> wanted) {
+        for (Map.Entry<String, byte[]> e : wanted.entrySet()) {
+            byte[] name = e.getValue();
+            if (name.length != length) {
+                continue;
+            }
+            boolean equal = true;
+            for (int i = 0; i < length && equal; i++) {
+                equal = cd.get(position + i) == name[i];
+            }
+            if (equal) {
+                return e.getKey();
+            }
+        }
+        return null;
+    }
+
+    private static int findExtraField(ByteBuffer cd, int position, int length, int id) {
+        int end = position + length;
+        while (position + 4 <= end) {
+            int fieldId = cd.getShort(position) & 0xffff;
+            int fieldSize = cd.getShort(position + 2) & 0xffff;
+            if (fieldId == id) {
+                return position + 4;
+            }
+            position += 4 + fieldSize;
+        }
+        return -1;
+    }
+
+    private MappedByteBuffer map(long position, long size) throws IOException {
+        MappedByteBuffer buffer = mChannel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    private ByteBuffer read(long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(mChannel, buffer, position);
+        return buffer;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position + buffer.position());
+            if (count < 0) {
+                throw new IOException("Unexpected end of zip file");
+            }
+        }
+    }
+}
@@ -17,6 +17,8 @@
 package com.example.android.systemupdatersample;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
@@ -29,6 +31,7 @@ import androidx.test.runner.AndroidJUnit4;
 import com.example.android.systemupdatersample.tests.R;
 import com.google.common.io.CharStreams;
 
+import org.json.JSONException;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -37,6 +40,7 @@ import org.junit.runner.RunWith;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.StringReader;
 
 /**
  * Tests for {@link UpdateConfig}
@@ -90,6 +94,57 @@ public class UpdateConfigTest {
         assertTrue(config.getAbConfig().getForceSwitchSlot());
     }
 
+    @Test
+    public void fromJson_parsesOptionalSha256() throws Exception {
+        String json = "{"
+                + " \"name\": \"upd\", \"url\": \"http://foo.bar\","
+                + " \"ab_install_type\": \"STREAMING\","
+                + " \"ab_config\": {"
+                + "     \"force_switch_slot\": false,"
+                + "     \"verify_payload_metadata\": false,"
+                + "     \"property_files\": ["
+                + "         { \"filename\": \"care_map.txt\", \"offset\": 1, \"size\": 2,"
+                + "           \"sha256\": \"ab01\" },"
+                + "         { \"filename\": \"metadata\", \"offset\": 3, \"size\": 4 } ] } }";
+        UpdateConfig config = UpdateConfig.fromJson(json);
+        assertEquals("ab01", config.getAbConfig().getPropertyFiles()[0].getSha256().get());
+        assertFalse(config.getAbConfig().getPropertyFiles()[1].getSha256().isPresent());
+    }
+
+    @Test
+    public void fromJson_parsesStreamWithoutKeepingRawJson() throws Exception {
+        UpdateConfig config = UpdateConfig.fromJson(new StringReader(mJsonStreaming001));
+        assertEquals("streaming-001", config.getName());
+        assertEquals(1, config.getAbConfig().getPropertyFiles().length);
+        assertEquals(195, config.getAbConfig().getPropertyFiles()[0].getOffset());
+        assertNull(config.getRawJson());
+    }
+
+    @Test
+    public void fromJson_skipsUnknownFields() throws Exception {
+        String json = "{ \"__\": [\"generated\", {\"by\": null}],"
+                + " \"name\": \"upd\", \"url\": \"http://foo.bar\","
+                + " \"ab_install_type\": \"STREAMING\","
+                + " \"ab_config\": {"
+                + "     \"force_switch_slot\": true,"
+                + "     \"extra\": {\"nested\": [1, 2.5, false]},"
+                + "     \"verify_payload_metadata\": false } }";
+        UpdateConfig config = UpdateConfig.fromJson(json);
+        assertEquals("upd", config.getName());
+        assertTrue(config.getAbConfig().getForceSwitchSlot());
+        assertEquals(0, config.getAbConfig().getPropertyFiles().length);
+    }
+
+    @Test
+    public void fromJson_throwsIfFieldIsMissing() throws Exception {
+        String json = "{"
+                + " \"name\": \"upd\", \"url\": \"http://foo.bar\","
+                + " \"ab_install_type\": \"STREAMING\","
+                + " \"ab_config\": { \"force_switch_slot\": false } }";
+        thrown.expect(JSONException.class);
+        UpdateConfig.fromJson(json);
+    }
+
     @Test
     public void getUpdatePackageFile_throwsErrorIfStreaming() throws Exception {
         UpdateConfig config = UpdateConfig.fromJson(mJsonStreaming001);
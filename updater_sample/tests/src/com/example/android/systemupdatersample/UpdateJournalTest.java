@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Tests for {@link UpdateJournal}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class UpdateJournalTest {
+
+    private File mJournalFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mJournalFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "update_manager.journal");
+        Files.deleteIfExists(mJournalFile.toPath());
+    }
+
+    @Test
+    public void load_restoresRecordedState() {
+        UpdateJournal journal = new UpdateJournal(mJournalFile);
+        UpdateJournal.Snapshot initial = journal.load();
+        assertEquals(UpdaterState.IDLE, initial.getUpdaterState());
+        assertNull(initial.getPayload());
+
+        journal.recordState(UpdaterState.RUNNING);
+        journal.recordManualSwitchSlotRequired(false);
+        journal.recordUpdateData(PayloadSpec.newBuilder()
+                        .url("file:///data/ota_package/update.zip")
+                        .offset(120)
+                        .size(340)
+                        .properties(ImmutableList.of("FILE_HASH=abc", "FILE_SIZE=340"))
+                        .build(),
+                ImmutableList.of("SWITCH_SLOT_ON_REBOOT=0"));
+        journal.sync();
+
+        UpdateJournal.Snapshot restored = new UpdateJournal(mJournalFile).load();
+        assertEquals(UpdaterState.RUNNING, restored.getUpdaterState());
+        assertFalse(restored.isManualSwitchSlotRequired());
+        assertEquals("file:///data/ota_package/update.zip", restored.getPayload().getUrl());
+        assertEquals(120, restored.getPayload().getOffset());
+        assertEquals(340, restored.getPayload().getSize());
+        assertEquals(ImmutableList.of("FILE_HASH=abc", "FILE_SIZE=340"),
+                restored.getPayload().getProperties());
+        assertEquals(ImmutableList.of("SWITCH_SLOT_ON_REBOOT=0"),
+                restored.getExtraProperties());
+    }
+
+    @Test
+    public void load_restoresQueue() {
+        UpdateJournal journal = new UpdateJournal(mJournalFile);
+        journal.load();
+        UpdateConfig delta = new UpdateConfig("delta", "https://example.com/delta.zip",
+                UpdateConfig.AB_INSTALL_TYPE_STREAMING,
+                new UpdateConfig.AbConfig(false, true, new UpdateConfig.PackageFile[] {
+                        new UpdateConfig.PackageFile("payload.bin", 10, 20, "abcd"),
+                }, "token"));
+        journal.recordQueue(UpdateManager.QUEUE_POLICY_SWITCH_SLOT, ImmutableList.of(delta));
+        journal.sync();
+
+        UpdateJournal.Snapshot restored = new UpdateJournal(mJournalFile).load();
+        assertEquals(UpdateManager.QUEUE_POLICY_SWITCH_SLOT, restored.getQueuePolicy());
+        assertEquals(1, restored.getQueue().size());
+        UpdateConfig config = restored.getQueue().get(0);
+        assertEquals("delta", config.getName());
+        assertEquals("https://example.com/delta.zip", config.getUrl());
+        assertEquals(UpdateConfig.AB_INSTALL_TYPE_STREAMING, config.getInstallType());
+        assertTrue(config.getAbConfig().getVerifyPayloadMetadata());
+        assertEquals("token", config.getAbConfig().getAuthorization().get());
+        assertEquals(20, config.getAbConfig().getPropertyFiles()[0].getSize());
+    }
+
+    @Test
+    public void load_dropsTornRecord() throws Exception {
+        UpdateJournal journal = new UpdateJournal(mJournalFile);
+        journal.load();
+        journal.recordState(UpdaterState.RUNNING);
+        journal.sync();
+        // A record whose write was interrupted: length and checksum, but only part of data.
+        Files.write(mJournalFile.toPath(), new byte[] {0, 0, 0, 5, 1, 2, 3, 4, 1, 0},
+                StandardOpenOption.APPEND);
+
+        UpdateJournal reopened = new UpdateJournal(mJournalFile);
+        assertEquals(UpdaterState.RUNNING, reopened.load().getUpdaterState());
+        reopened.recordState(UpdaterState.PAUSED);
+        reopened.sync();
+
+        assertEquals(UpdaterState.PAUSED, new UpdateJournal(mJournalFile).load().getUpdaterState());
+    }
+
+    @Test
+    public void recordState_beforeLoadKeepsPersistedState() {
+        UpdateJournal journal = new UpdateJournal(mJournalFile);
+        journal.load();
+        journal.recordManualSwitchSlotRequired(false);
+        journal.sync();
+
+        UpdateJournal reopened = new UpdateJournal(mJournalFile);
+        reopened.recordState(UpdaterState.PAUSED);
+        reopened.sync();
+
+        UpdateJournal.Snapshot restored = new UpdateJournal(mJournalFile).load();
+        assertEquals(UpdaterState.PAUSED, restored.getUpdaterState());
+        assertFalse(restored.isManualSwitchSlotRequired());
+    }
+
+    @Test
+    public void close_dropsLaterRecords() {
+        UpdateJournal journal = new UpdateJournal(mJournalFile);
+        journal.load();
+        journal.recordState(UpdaterState.RUNNING);
+        journal.close();
+        journal.recordState(UpdaterState.PAUSED);
+        journal.close();
+
+        assertEquals(UpdaterState.RUNNING,
+                new UpdateJournal(mJournalFile).load().getUpdaterState());
+    }
+
+    @Test
+    public void recordState_compactsJournal() {
+        UpdateJournal journal = new UpdateJournal(mJournalFile);
+        journal.load();
+        journal.recordState(UpdaterState.RUNNING);
+        long sizeAfterOneRecord = mJournalFile.length();
+        for (int i = 0; i < UpdateJournal.COMPACT_THRESHOLD * 3; i++) {
+            journal.recordState(i % 2 == 0 ? UpdaterState.PAUSED : UpdaterState.RUNNING);
+        }
+        journal.sync();
+
+        assertTrue(mJournalFile.length() < sizeAfterOneRecord
+                + 13L * UpdateJournal.COMPACT_THRESHOLD);
+        assertEquals(UpdaterState.RUNNING,
+                new UpdateJournal(mJournalFile).load().getUpdaterState());
+    }
+}
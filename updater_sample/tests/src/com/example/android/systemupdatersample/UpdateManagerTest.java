@@ -17,9 +17,13 @@
 package com.example.android.systemupdatersample;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -49,8 +53,10 @@ import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
 
 /**
  * Tests for {@link UpdateManager}
@@ -93,6 +99,27 @@ public class UpdateManagerTest {
                 });
     }
 
+    @Test
+    public void applyUpdates_appliesFirstUpdateAndQueuesTheRest() throws Exception {
+        mockContextStartServiceAnswer(buildMockPayloadSpec());
+        UpdateConfig delta = UpdateConfig.fromJson(readResource(R.raw.update_config_001_stream));
+        mSubject.applyUpdates(mMockContext, ImmutableList.of(mStreamingUpdate002, delta),
+                UpdateManager.QUEUE_POLICY_SWITCH_SLOT);
+
+        // The policy switches slot even though ab_config.force_switch_slot = false.
+        verify(mUpdateEngine).applyPayload(
+                "file://blah",
+                120,
+                340,
+                new String[]{
+                        "USER_AGENT=" + UpdateManager.HTTP_USER_AGENT
+                });
+        assertEquals(ImmutableList.of(delta), mSubject.getQueuedUpdates());
+
+        mSubject.cancelRunningUpdate();
+        assertTrue(mSubject.getQueuedUpdates().isEmpty());
+    }
+
     @Test
     @UiThreadTest
     public void stateIsRunningAndEngineStatusIsIdle_reApplyLastUpdate() throws Throwable {
@@ -124,13 +151,42 @@ public class UpdateManagerTest {
                 });
     }
 
+    @Test
+    @UiThreadTest
+    public void bind_journalWrittenWhilePreparing_doesNotReApplyUpdate() throws Throwable {
+        File journalFile = new File(mTestContext.getCacheDir(), "update_manager_test.journal");
+        Files.deleteIfExists(journalFile.toPath());
+        // What startUpdate() persists before PrepareUpdateService returns the payload.
+        UpdateJournal journal = new UpdateJournal(journalFile);
+        journal.load();
+        journal.recordState(UpdaterState.RUNNING);
+        journal.recordUpdateData(null, null);
+        journal.sync();
+        when(mUpdateEngine.bind(any(UpdateEngineCallback.class))).thenAnswer(answer -> {
+            UpdateEngineCallback callback = answer.getArgument(0);
+            callback.onStatusUpdate(
+                    UpdateEngine.UpdateStatusConstants.IDLE,
+                    /*engineProgress*/ 0.0f);
+            return null;
+        });
+
+        UpdateManager restarted = new UpdateManager(mUpdateEngine, null, journalFile);
+        restarted.bind();
+
+        assertEquals(UpdaterState.ERROR, restarted.getUpdaterState());
+        verify(mUpdateEngine, never()).applyPayload(
+                anyString(), anyLong(), anyLong(), any(String[].class));
+        assertEquals(UpdaterState.ERROR,
+                new UpdateJournal(journalFile).load().getUpdaterState());
+    }
+
     private void mockContextStartServiceAnswer(PayloadSpec payloadSpec) {
         doAnswer(args -> {
             Intent intent = args.getArgument(0);
             ResultReceiver resultReceiver = intent.getParcelableExtra(
                     PrepareUpdateService.EXTRA_PARAM_RESULT_RECEIVER);
             Bundle b = new Bundle();
-            b.putSerializable(
+            b.putParcelable(
                     /* PrepareUpdateService.CallbackResultReceiver.BUNDLE_PARAM_PAYLOAD_SPEC */
                     "payload-spec",
                     payloadSpec);
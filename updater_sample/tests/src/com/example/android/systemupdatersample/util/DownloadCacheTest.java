@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.google.common.hash.Hashing;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.nio.file.Files;
+
+/**
+ * Tests for {@link DownloadCache}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class DownloadCacheTest {
+
+    private File mTestDir;
+    private File mCacheDir;
+
+    @Before
+    public void setUp() throws Exception {
+        Context targetContext = InstrumentationRegistry.getTargetContext();
+        mTestDir = new File(targetContext.getCacheDir(), "download_cache_test");
+        mCacheDir = new File(mTestDir, "cache");
+        mTestDir.mkdirs();
+        File[] cached = mCacheDir.listFiles();
+        if (cached != null) {
+            for (File file : cached) {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void key_dependsOnEveryPart() {
+        String key = DownloadCache.key("http://a/ota.zip", 10, 20, null);
+        assertEquals(key, DownloadCache.key("http://a/ota.zip", 10, 20, null));
+        assertNotEquals(key, DownloadCache.key("http://b/ota.zip", 10, 20, null));
+        assertNotEquals(key, DownloadCache.key("http://a/ota.zip", 11, 20, null));
+        assertNotEquals(key, DownloadCache.key("http://a/ota.zip", 10, 21, null));
+        assertNotEquals(key, DownloadCache.key("http://a/ota.zip", 10, 20, "abcd"));
+    }
+
+    @Test
+    public void copyTo_returnsStoredFile() throws Exception {
+        DownloadCache cache = new DownloadCache(mCacheDir, 1000);
+        byte[] content = "care map".getBytes();
+        cache.put("k", writeFile("source", content));
+
+        File target = new File(mTestDir, "target");
+        assertTrue(cache.copyTo("k", target));
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        assertFalse(cache.copyTo("missing", target));
+    }
+
+    @Test
+    public void copyTo_evictsFileThatDoesNotMatchSha256() throws Exception {
+        DownloadCache cache = new DownloadCache(mCacheDir, 1000);
+        byte[] content = "care map".getBytes();
+        String sha256 = Hashing.sha256().hashBytes(content).toString();
+        cache.put("k", writeFile("source", content));
+        File target = new File(mTestDir, "target");
+        assertTrue(cache.copyTo("k", target, sha256));
+
+        // The cached file is truncated on disk.
+        Files.write(new File(mCacheDir, "k").toPath(), "care".getBytes());
+
+        assertFalse(cache.copyTo("k", target, sha256));
+        assertFalse(target.exists());
+        assertFalse(cache.contains("k"));
+        assertEquals(0, cache.getTotalBytes());
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsed() throws Exception {
+        DownloadCache cache = new DownloadCache(mCacheDir, 250);
+        cache.put("a", writeFile("a", new byte[100]));
+        cache.put("b", writeFile("b", new byte[100]));
+        assertTrue(cache.copyTo("a", new File(mTestDir, "target")));
+        cache.put("c", writeFile("c", new byte[100]));
+
+        assertEquals(200, cache.getTotalBytes());
+        assertTrue(cache.copyTo("a", new File(mTestDir, "target")));
+        assertFalse(cache.copyTo("b", new File(mTestDir, "target")));
+        assertTrue(cache.copyTo("c", new File(mTestDir, "target")));
+    }
+
+    @Test
+    public void constructor_restoresCachedFiles() throws Exception {
+        new DownloadCache(mCacheDir, 1000).put("k", writeFile("source", new byte[10]));
+
+        DownloadCache reopened = new DownloadCache(mCacheDir, 1000);
+        assertEquals(10, reopened.getTotalBytes());
+        assertTrue(reopened.copyTo("k", new File(mTestDir, "target")));
+    }
+
+    private File writeFile(String name, byte[] content) throws Exception {
+        File file = new File(mTestDir, name);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+}
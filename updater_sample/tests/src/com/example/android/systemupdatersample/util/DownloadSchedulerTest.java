@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link DownloadScheduler}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class DownloadSchedulerTest {
+
+    @Test
+    public void submit_runsHigherPriorityFirst() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler(1, 0);
+        CountDownLatch blocker = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        scheduler.submit(DownloadScheduler.PRIORITY_LOW, () -> {
+            blocker.await();
+            return null;
+        });
+
+        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        tasks.add(scheduler.submit(DownloadScheduler.PRIORITY_LOW, () -> record(order, "low")));
+        tasks.add(scheduler.submit(DownloadScheduler.PRIORITY_NORMAL,
+                () -> record(order, "normal")));
+        tasks.add(scheduler.submit(DownloadScheduler.PRIORITY_HIGH, () -> record(order, "high")));
+        tasks.add(scheduler.submit(DownloadScheduler.PRIORITY_HIGH,
+                () -> record(order, "high2")));
+        blocker.countDown();
+        CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0]))
+                .get(5, TimeUnit.SECONDS);
+
+        assertEquals(Arrays.asList("high", "high2", "normal", "low"), order);
+    }
+
+    @Test
+    public void cancel_interruptsRunningTask() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler(1, 0);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        CompletableFuture<Void> task = scheduler.submit(DownloadScheduler.PRIORITY_NORMAL, () -> {
+            started.countDown();
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+            return null;
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        task.cancel(true);
+
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        // The thread isn't left interrupted for the next task.
+        assertFalse(scheduler.submit(DownloadScheduler.PRIORITY_NORMAL,
+                () -> Thread.currentThread().isInterrupted()).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void acquire_limitsRate() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler(1, 1_000_000);
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            scheduler.acquire(DownloadScheduler.PRIORITY_NORMAL, 100_000);
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // The first block is taken on credit, the other four wait 100 ms each.
+        assertTrue("took " + elapsedMillis + " ms", elapsedMillis >= 350);
+    }
+
+    @Test
+    public void setRateLimit_releasesWaitingDownloads() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler(1, 1000);
+        scheduler.acquire(DownloadScheduler.PRIORITY_NORMAL, 100_000);
+        CompletableFuture<Void> waiting = CompletableFuture.runAsync(() -> {
+            try {
+                scheduler.acquire(DownloadScheduler.PRIORITY_NORMAL, 1000);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        scheduler.setRateLimit(0);
+        waiting.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void record_updatesMetrics() {
+        DownloadScheduler scheduler = new DownloadScheduler(1, 0);
+        scheduler.record(1000);
+        scheduler.record(500);
+
+        assertEquals(1500, scheduler.getTotalBytes());
+        assertTrue(scheduler.getThroughput() > 0);
+    }
+
+    private static Void record(List<String> order, String name) {
+        order.add(name);
+        return null;
+    }
+}
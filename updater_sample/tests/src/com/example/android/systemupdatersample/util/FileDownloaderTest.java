@@ -16,7 +16,11 @@
 
 package com.example.android.systemupdatersample.util;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import android.content.Context;
 
@@ -25,6 +29,7 @@ import androidx.test.filters.SmallTest;
 import androidx.test.runner.AndroidJUnit4;
 
 import com.example.android.systemupdatersample.tests.R;
+import com.google.common.hash.Hashing;
 
 import org.junit.Before;
 import org.junit.Rule;
@@ -33,8 +38,15 @@ import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Tests for {@link FileDownloader}
@@ -78,4 +90,330 @@ public class FileDownloaderTest {
         assertEquals("CARE_MAP-TXT", downloadedContent);
     }
 
+    @Test
+    public void download_decodesEscapesOfFileUrl() throws Exception {
+        byte[] content = randomBytes(3000);
+        File dir = new File(mTargetContext.getCacheDir(), "my builds");
+        dir.mkdirs();
+        File packageFile = new File(dir, "ota.zip");
+        Files.write(packageFile.toPath(), content);
+        File outFile = prepareOutFile("escaped.bin");
+
+        // "file:/.../my%20builds/ota.zip"
+        new FileDownloader(packageFile.toURI().toString(), 1000, 500, outFile).download();
+
+        assertArrayEquals(Arrays.copyOfRange(content, 1000, 1500),
+                Files.readAllBytes(outFile.toPath()));
+    }
+
+    @Test
+    public void download_usesRangeRequests() throws Exception {
+        byte[] content = randomBytes(10000);
+        File outFile = prepareOutFile("range.bin");
+        try (RangeHttpServer server = new RangeHttpServer(content)) {
+            new FileDownloader(server.getUrl(), 7000, 100, outFile).download();
+
+            assertArrayEquals(Arrays.copyOfRange(content, 7000, 7100),
+                    Files.readAllBytes(outFile.toPath()));
+            List<long[]> ranges = server.getRequestedRanges();
+            assertEquals(1, ranges.size());
+            assertArrayEquals(new long[] {7000, 7099}, ranges.get(0));
+        }
+    }
+
+    @Test
+    public void download_splitsLargeRangeIntoChunks() throws Exception {
+        byte[] content = randomBytes(10000);
+        File outFile = prepareOutFile("chunks.bin");
+        try (RangeHttpServer server = new RangeHttpServer(content)) {
+            FileDownloader.newBuilder()
+                    .url(server.getUrl())
+                    .offset(1000)
+                    .size(8500)
+                    .destination(outFile)
+                    .chunkSize(1000)
+                    .connections(3)
+                    .build()
+                    .download();
+
+            assertArrayEquals(Arrays.copyOfRange(content, 1000, 9500),
+                    Files.readAllBytes(outFile.toPath()));
+            assertEquals(9, server.getRequestedRanges().size());
+            assertFalse(journalFile(outFile).exists());
+        }
+    }
+
+    @Test
+    public void download_connectionsRunOnSchedulerWithoutDeadlock() throws Exception {
+        byte[] content = randomBytes(10000);
+        File outFile = prepareOutFile("busy_scheduler.bin");
+        // The only thread of the scheduler runs the download, so the other connections can't
+        // start; the download finishes on the calling thread.
+        DownloadScheduler scheduler = new DownloadScheduler(1, 0);
+        try (RangeHttpServer server = new RangeHttpServer(content)) {
+            scheduler.submit(DownloadScheduler.PRIORITY_NORMAL, () -> {
+                FileDownloader.newBuilder()
+                        .url(server.getUrl())
+                        .offset(0)
+                        .size(10000)
+                        .destination(outFile)
+                        .chunkSize(1000)
+                        .connections(3)
+                        .scheduler(scheduler)
+                        .build()
+                        .download();
+                return null;
+            }).get(30, TimeUnit.SECONDS);
+
+            assertArrayEquals(content, Files.readAllBytes(outFile.toPath()));
+        }
+    }
+
+    @Test
+    public void download_resumesFromJournal() throws Exception {
+        byte[] content = randomBytes(4000);
+        File outFile = prepareOutFile("resume.bin");
+        try (RangeHttpServer server = new RangeHttpServer(content)) {
+            // Pretend chunks 0 and 2 were downloaded before the download was interrupted.
+            byte[] partial = new byte[4000];
+            System.arraycopy(content, 0, partial, 0, 1000);
+            System.arraycopy(content, 2000, partial, 2000, 1000);
+            Files.write(outFile.toPath(), partial);
+            Files.write(journalFile(outFile).toPath(),
+                    (server.getUrl() + " 0 4000 1000\n0\n2\n")
+                            .getBytes(StandardCharsets.UTF_8));
+
+            FileDownloader.newBuilder()
+                    .url(server.getUrl())
+                    .offset(0)
+                    .size(4000)
+                    .destination(outFile)
+                    .chunkSize(1000)
+                    .connections(1)
+                    .build()
+                    .download();
+
+            assertArrayEquals(content, Files.readAllBytes(outFile.toPath()));
+            List<long[]> ranges = server.getRequestedRanges();
+            assertEquals(2, ranges.size());
+            assertArrayEquals(new long[] {1000, 1999}, ranges.get(0));
+            assertArrayEquals(new long[] {3000, 3999}, ranges.get(1));
+            assertFalse(journalFile(outFile).exists());
+        }
+    }
+
+    @Test
+    public void download_ignoresTornJournalEntry() throws Exception {
+        byte[] content = randomBytes(4000);
+        File outFile = prepareOutFile("torn.bin");
+        try (RangeHttpServer server = new RangeHttpServer(content)) {
+            // Only chunk 0 is on disk; the write of the entry of chunk 2 was torn.
+            byte[] partial = new byte[4000];
+            System.arraycopy(content, 0, partial, 0, 1000);
+            Files.write(outFile.toPath(), partial);
+            Files.write(journalFile(outFile).toPath(),
+                    (server.getUrl() + " 0 4000 1000\n0\n2")
+                            .getBytes(StandardCharsets.UTF_8));
+
+            FileDownloader.newBuilder()
+                    .url(server.getUrl())
+                    .offset(0)
+                    .size(4000)
+                    .destination(outFile)
+                    .chunkSize(1000)
+                    .connections(1)
+                    .build()
+                    .download();
+
+            assertArrayEquals(content, Files.readAllBytes(outFile.toPath()));
+            assertEquals(3, server.getRequestedRanges().size());
+        }
+    }
+
+    @Test
+    public void download_worksWhenServerIgnoresRange() throws Exception {
+        byte[] content = randomBytes(5000);
+        File outFile = prepareOutFile("norange.bin");
+        try (RangeHttpServer server = new RangeHttpServer(content)) {
+            server.setSupportsRange(false);
+            new FileDownloader(server.getUrl(), 4000, 1000, outFile).download();
+
+            assertArrayEquals(Arrays.copyOfRange(content, 4000, 5000),
+                    Files.readAllBytes(outFile.toPath()));
+        }
+    }
+
+    @Test
+    public void download_throwsWhenServerReturnsOtherRange() throws Exception {
+        byte[] content = randomBytes(5000);
+        File outFile = prepareOutFile("otherrange.bin");
+        try (RangeHttpServer server = new RangeHttpServer(content)) {
+            server.setRangeShift(100);
+
+            thrown.expect(IOException.class);
+            new FileDownloader(server.getUrl(), 1000, 1000, outFile).download();
+        }
+    }
+
+    @Test
+    public void download_throwsWhenServerReturnsShorterRange() throws Exception {
+        byte[] content = randomBytes(5000);
+        File outFile = prepareOutFile("shortrange.bin");
+        try (RangeHttpServer server = new RangeHttpServer(content)) {
+            thrown.expect(IOException.class);
+            new FileDownloader(server.getUrl(), 4500, 1000, outFile).download();
+        }
+    }
+
+    @Test
+    public void download_fillsOneFileFromSeveralRanges() throws Exception {
+        byte[] content = randomBytes(6000);
+        File outFile = prepareOutFile("positional.bin");
+        try (RangeHttpServer server = new RangeHttpServer(content)) {
+            // Ranges are downloaded out of order into their positions of the same file.
+            FileDownloader.newBuilder()
+                    .url(server.getUrl())
+                    .offset(4000)
+                    .size(2000)
+                    .destination(outFile)
+                    .destinationOffset(4000)
+                    .build()
+                    .download();
+            FileDownloader.newBuilder()
+                    .url(server.getUrl())
+                    .offset(0)
+                    .size(4000)
+                    .destination(outFile)
+                    .destinationOffset(0)
+                    .build()
+                    .download();
+
+            assertArrayEquals(content, Files.readAllBytes(outFile.toPath()));
+        }
+    }
+
+    @Test
+    public void download_verifiesSha256() throws Exception {
+        byte[] content = randomBytes(4000);
+        File outFile = prepareOutFile("sha256.bin");
+        try (RangeHttpServer server = new RangeHttpServer(content)) {
+            FileDownloader.newBuilder()
+                    .url(server.getUrl())
+                    .offset(500)
+                    .size(3000)
+                    .destination(outFile)
+                    .chunkSize(1000)
+                    .sha256(sha256(Arrays.copyOfRange(content, 500, 3500)))
+                    .build()
+                    .download();
+        }
+        assertArrayEquals(Arrays.copyOfRange(content, 500, 3500),
+                Files.readAllBytes(outFile.toPath()));
+    }
+
+    @Test
+    public void download_verifiesSha256OfResumedDownload() throws Exception {
+        byte[] content = randomBytes(3000);
+        String sha256 = sha256(content);
+        File outFile = prepareOutFile("sha256-resume.bin");
+        try (RangeHttpServer server = new RangeHttpServer(content)) {
+            byte[] partial = new byte[3000];
+            System.arraycopy(content, 1000, partial, 1000, 1000);
+            Files.write(outFile.toPath(), partial);
+            Files.write(journalFile(outFile).toPath(),
+                    (server.getUrl() + " 0 3000 1000 " + sha256 + "\n1\n")
+                            .getBytes(StandardCharsets.UTF_8));
+
+            FileDownloader.newBuilder()
+                    .url(server.getUrl())
+                    .offset(0)
+                    .size(3000)
+                    .destination(outFile)
+                    .chunkSize(1000)
+                    .sha256(sha256)
+                    .build()
+                    .download();
+
+            assertEquals(2, server.getRequestedRanges().size());
+        }
+        assertArrayEquals(content, Files.readAllBytes(outFile.toPath()));
+    }
+
+    @Test
+    public void download_throwsChecksumMismatchException() throws Exception {
+        byte[] content = randomBytes(2000);
+        File outFile = prepareOutFile("sha256-mismatch.bin");
+        try (RangeHttpServer server = new RangeHttpServer(content)) {
+            FileDownloader downloader = FileDownloader.newBuilder()
+                    .url(server.getUrl())
+                    .offset(0)
+                    .size(2000)
+                    .destination(outFile)
+                    .sha256(sha256(new byte[2000]))
+                    .build();
+            try {
+                downloader.download();
+                fail("Expected ChecksumMismatchException");
+            } catch (ChecksumMismatchException e) {
+                assertEquals(sha256(content), e.getActual());
+            }
+        }
+        assertFalse(outFile.exists());
+        assertFalse(journalFile(outFile).exists());
+    }
+
+    @Test
+    public void download_reportsProgress() throws Exception {
+        byte[] content = randomBytes(4000);
+        File outFile = prepareOutFile("progress.bin");
+        List<DownloadProgress> reports = new ArrayList<>();
+        try (RangeHttpServer server = new RangeHttpServer(content)) {
+            FileDownloader.newBuilder()
+                    .url(server.getUrl())
+                    .offset(0)
+                    .size(4000)
+                    .destination(outFile)
+                    .chunkSize(1000)
+                    .connections(1)
+                    .progressListener(reports::add)
+                    .progressInterval(0)
+                    .build()
+                    .download();
+        }
+
+        assertFalse(reports.isEmpty());
+        long bytesDone = 0;
+        for (DownloadProgress progress : reports) {
+            assertTrue(progress.getBytesDone() >= bytesDone);
+            assertEquals(4000, progress.getTotalBytes());
+            bytesDone = progress.getBytesDone();
+        }
+        DownloadProgress last = reports.get(reports.size() - 1);
+        assertEquals(4000, last.getBytesDone());
+        assertEquals(0, last.getEtaMillis());
+    }
+
+    private File prepareOutFile(String name) throws IOException {
+        File outFile = Paths
+                .get(mTargetContext.getCacheDir().getAbsolutePath(), name)
+                .toFile();
+        Files.deleteIfExists(outFile.toPath());
+        Files.deleteIfExists(journalFile(outFile).toPath());
+        return outFile;
+    }
+
+    private static File journalFile(File outFile) {
+        return new File(outFile.getPath() + FileDownloader.JOURNAL_SUFFIX);
+    }
+
+    private static String sha256(byte[] data) {
+        return Hashing.sha256().hashBytes(data).toString();
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
 }
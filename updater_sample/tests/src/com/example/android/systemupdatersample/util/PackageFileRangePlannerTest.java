@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import android.content.Context;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.example.android.systemupdatersample.UpdateConfig;
+import com.google.common.hash.Hashing;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for {@link PackageFileRangePlanner}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class PackageFileRangePlannerTest {
+
+    private File mTestDir;
+
+    @Before
+    public void setUp() throws Exception {
+        Context targetContext = InstrumentationRegistry.getTargetContext();
+        mTestDir = new File(targetContext.getCacheDir(), "range_planner");
+        mTestDir.mkdirs();
+    }
+
+    @Test
+    public void plan_mergesNeighboursWithinGap() {
+        PackageFileRangePlanner planner = new PackageFileRangePlanner(200);
+        List<PackageFileRangePlanner.Span> spans = planner.plan(Arrays.asList(
+                new UpdateConfig.PackageFile("metadata", 1809, 29),
+                new UpdateConfig.PackageFile("care_map.txt", 1674, 12),
+                new UpdateConfig.PackageFile("payload_properties.txt", 1485, 147),
+                new UpdateConfig.PackageFile("far.txt", 5000, 10)));
+
+        assertEquals(2, spans.size());
+        assertEquals(1485, spans.get(0).getOffset());
+        assertEquals(1809 + 29 - 1485, spans.get(0).getSize());
+        assertEquals(3, spans.get(0).getFiles().size());
+        assertEquals("payload_properties.txt", spans.get(0).getFiles().get(0).getFilename());
+        assertEquals(5000, spans.get(1).getOffset());
+        assertEquals(10, spans.get(1).getSize());
+    }
+
+    @Test
+    public void plan_mergesOverlappingFiles() {
+        PackageFileRangePlanner planner = new PackageFileRangePlanner(0);
+        List<PackageFileRangePlanner.Span> spans = planner.plan(Arrays.asList(
+                new UpdateConfig.PackageFile("payload.bin", 41, 1392),
+                new UpdateConfig.PackageFile("payload_metadata.bin", 41, 827)));
+
+        assertEquals(1, spans.size());
+        assertEquals(41, spans.get(0).getOffset());
+        assertEquals(1392, spans.get(0).getSize());
+    }
+
+    @Test
+    public void download_fetchesSpanWithOneRequestAndSplitsFiles() throws Exception {
+        byte[] content = new byte[3000];
+        new Random(3000).nextBytes(content);
+        PackageFileRangePlanner planner = new PackageFileRangePlanner();
+        List<PackageFileRangePlanner.Span> spans = planner.plan(Arrays.asList(
+                new UpdateConfig.PackageFile("a.txt", 100, 50),
+                new UpdateConfig.PackageFile("b.txt", 400, 200),
+                new UpdateConfig.PackageFile("c.txt", 420, 10)));
+        assertEquals(1, spans.size());
+
+        try (RangeHttpServer server = new RangeHttpServer(content)) {
+            planner.download(server.getUrl(), spans.get(0), mTestDir);
+
+            assertEquals(1, server.getRequestedRanges().size());
+            assertArrayEquals(new long[] {100, 599}, server.getRequestedRanges().get(0));
+        }
+        assertArrayEquals(Arrays.copyOfRange(content, 100, 150),
+                Files.readAllBytes(new File(mTestDir, "a.txt").toPath()));
+        assertArrayEquals(Arrays.copyOfRange(content, 400, 600),
+                Files.readAllBytes(new File(mTestDir, "b.txt").toPath()));
+        assertArrayEquals(Arrays.copyOfRange(content, 420, 430),
+                Files.readAllBytes(new File(mTestDir, "c.txt").toPath()));
+    }
+
+    @Test
+    public void download_verifiesSha256OfEveryFile() throws Exception {
+        byte[] content = new byte[1000];
+        new Random(1000).nextBytes(content);
+        String goodSha256 = Hashing.sha256()
+                .hashBytes(Arrays.copyOfRange(content, 100, 200)).toString();
+        String badSha256 = Hashing.sha256().hashBytes(new byte[50]).toString();
+        PackageFileRangePlanner planner = new PackageFileRangePlanner();
+        List<PackageFileRangePlanner.Span> spans = planner.plan(Arrays.asList(
+                new UpdateConfig.PackageFile("good.txt", 100, 100, goodSha256),
+                new UpdateConfig.PackageFile("bad.txt", 300, 50, badSha256)));
+
+        try (RangeHttpServer server = new RangeHttpServer(content)) {
+            planner.download(server.getUrl(), spans.get(0), mTestDir);
+            fail("Expected ChecksumMismatchException");
+        } catch (ChecksumMismatchException e) {
+            // expected
+        }
+        assertArrayEquals(Arrays.copyOfRange(content, 100, 200),
+                Files.readAllBytes(new File(mTestDir, "good.txt").toPath()));
+        assertFalse(new File(mTestDir, "bad.txt").exists());
+    }
+
+    @Test
+    public void download_failureLeavesNoSpanFiles() throws Exception {
+        PackageFileRangePlanner planner = new PackageFileRangePlanner();
+        List<PackageFileRangePlanner.Span> spans = planner.plan(Arrays.asList(
+                new UpdateConfig.PackageFile("truncated.txt", 900, 200, null)));
+
+        try (RangeHttpServer server = new RangeHttpServer(new byte[1000])) {
+            planner.download(server.getUrl(), spans.get(0), mTestDir);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // expected, the package is shorter than the span
+        }
+        assertArrayEquals(new String[0], mTestDir.list((dir, name) -> name.startsWith(".span-")));
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.example.android.systemupdatersample.UpdateConfig;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link PackagePrefetcher}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class PackagePrefetcherTest {
+
+    private File mTestDir;
+    private DownloadCache mCache;
+    private PackagePrefetcher mPrefetcher;
+
+    @Before
+    public void setUp() throws Exception {
+        Context targetContext = InstrumentationRegistry.getTargetContext();
+        mTestDir = new File(targetContext.getCacheDir(), "package_prefetcher");
+        File cacheDir = new File(mTestDir, "cache");
+        if (cacheDir.exists()) {
+            for (File f : cacheDir.listFiles()) {
+                f.delete();
+            }
+        }
+        mCache = new DownloadCache(cacheDir, 100_000);
+        mPrefetcher = new PackagePrefetcher(mCache, new DownloadScheduler(2, 0),
+                new PackageFileRangePlanner(), new File(mTestDir, "work"));
+    }
+
+    @Test
+    public void prefetch_cachesRequestedFilesOnce() throws Exception {
+        byte[] content = new byte[3000];
+        new Random(3000).nextBytes(content);
+        UpdateConfig.PackageFile properties =
+                new UpdateConfig.PackageFile(PackageFiles.PAYLOAD_PROPERTIES_FILE_NAME, 100, 50);
+        UpdateConfig.PackageFile metadata =
+                new UpdateConfig.PackageFile(PackageFiles.METADATA_FILE_NAME, 200, 30);
+        UpdateConfig.PackageFile payload =
+                new UpdateConfig.PackageFile(PackageFiles.PAYLOAD_BINARY_FILE_NAME, 1000, 2000);
+
+        try (RangeHttpServer server = new RangeHttpServer(content)) {
+            UpdateConfig config = new UpdateConfig("delta", server.getUrl(),
+                    UpdateConfig.AB_INSTALL_TYPE_STREAMING,
+                    new UpdateConfig.AbConfig(false, false,
+                            new UpdateConfig.PackageFile[] {properties, metadata, payload},
+                            null));
+
+            mPrefetcher.prefetch(config, PackageFiles.PRE_STREAMING_FILES)
+                    .get(10, TimeUnit.SECONDS);
+            assertEquals(1, server.getRequestedRanges().size());
+
+            assertTrue(mCache.contains(DownloadCache.key(config, properties)));
+            assertTrue(mCache.contains(DownloadCache.key(config, metadata)));
+            assertFalse(mCache.contains(DownloadCache.key(config, payload)));
+            File copy = new File(mTestDir, "copy");
+            mCache.copyTo(DownloadCache.key(config, metadata), copy);
+            assertArrayEquals(Arrays.copyOfRange(content, 200, 230),
+                    Files.readAllBytes(copy.toPath()));
+
+            // Everything is cached now.
+            mPrefetcher.prefetch(config, PackageFiles.PRE_STREAMING_FILES)
+                    .get(10, TimeUnit.SECONDS);
+            assertEquals(1, server.getRequestedRanges().size());
+        }
+    }
+
+    @Test
+    public void prefetch_failureCleansUpWorkDir() throws Exception {
+        UpdateConfig.PackageFile metadata =
+                new UpdateConfig.PackageFile(PackageFiles.METADATA_FILE_NAME, 900, 200);
+
+        try (RangeHttpServer server = new RangeHttpServer(new byte[1000])) {
+            UpdateConfig config = new UpdateConfig("truncated", server.getUrl(),
+                    UpdateConfig.AB_INSTALL_TYPE_STREAMING,
+                    new UpdateConfig.AbConfig(false, false,
+                            new UpdateConfig.PackageFile[] {metadata}, null));
+            // Left in the span directory by an earlier run that was killed.
+            File spanDir = new File(mTestDir, "work/900-200-"
+                    + Integer.toHexString(server.getUrl().hashCode()));
+            spanDir.mkdirs();
+            Files.write(new File(spanDir, "stale.journal").toPath(), new byte[1]);
+
+            mPrefetcher.prefetch(config, PackageFiles.PRE_STREAMING_FILES)
+                    .get(10, TimeUnit.SECONDS);
+
+            assertFalse(mCache.contains(DownloadCache.key(config, metadata)));
+            assertFalse(spanDir.exists());
+        }
+    }
+
+    @Test
+    public void prefetch_skipsNonStreamingPackages() throws Exception {
+        UpdateConfig config = new UpdateConfig("local", "file:///data/ota_package/update.zip",
+                UpdateConfig.AB_INSTALL_TYPE_NON_STREAMING,
+                new UpdateConfig.AbConfig(false, false, new UpdateConfig.PackageFile[] {
+                        new UpdateConfig.PackageFile(PackageFiles.METADATA_FILE_NAME, 10, 20),
+                }, null));
+
+        assertTrue(mPrefetcher.prefetch(config, ImmutableSet.of(PackageFiles.METADATA_FILE_NAME))
+                .isDone());
+        assertEquals(0, mCache.getTotalBytes());
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.example.android.systemupdatersample.UpdateConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link PayloadMetadataPrefetcher}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class PayloadMetadataPrefetcherTest {
+
+    private byte[] mContent;
+    private File mTestDir;
+    private DownloadCache mCache;
+    private final AtomicInteger mVerifications = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        mContent = new byte[1000];
+        new Random(1000).nextBytes(mContent);
+        mTestDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "metadata_prefetcher");
+        File cacheDir = new File(mTestDir, "cache");
+        if (cacheDir.exists()) {
+            for (File f : cacheDir.listFiles()) {
+                f.delete();
+            }
+        }
+        mCache = new DownloadCache(cacheDir, 100_000);
+    }
+
+    @Test
+    public void prefetch_verifiesMetadataOnce() throws Exception {
+        PayloadMetadataPrefetcher prefetcher = newPrefetcher(1000);
+        try (RangeHttpServer server = new RangeHttpServer(mContent)) {
+            UpdateConfig compatible = newConfig("compatible", server.getUrl(), 100, 50, true);
+            UpdateConfig incompatible = newConfig("incompatible", server.getUrl(), 300, 60, true);
+
+            prefetcher.prefetch(Arrays.asList(compatible, incompatible))
+                    .get(10, TimeUnit.SECONDS);
+
+            assertEquals(Optional.of(true), prefetcher.getVerificationResult(compatible));
+            assertEquals(Optional.of(false), prefetcher.getVerificationResult(incompatible));
+            assertEquals(2, mVerifications.get());
+            assertEquals(2, server.getRequestedRanges().size());
+            assertEquals(110, mCache.getTotalBytes());
+
+            prefetcher.prefetch(Arrays.asList(compatible, incompatible))
+                    .get(10, TimeUnit.SECONDS);
+            assertEquals(2, mVerifications.get());
+            assertEquals(2, server.getRequestedRanges().size());
+        }
+    }
+
+    @Test
+    public void prefetch_staysWithinByteBudget() throws Exception {
+        PayloadMetadataPrefetcher prefetcher = newPrefetcher(100);
+        try (RangeHttpServer server = new RangeHttpServer(mContent)) {
+            UpdateConfig first = newConfig("first", server.getUrl(), 100, 80, true);
+            UpdateConfig second = newConfig("second", server.getUrl(), 300, 80, true);
+            UpdateConfig third = newConfig("third", server.getUrl(), 500, 20, true);
+            UpdateConfig notVerified = newConfig("not-verified", server.getUrl(), 700, 10, false);
+
+            prefetcher.prefetch(Arrays.asList(first, second, third, notVerified))
+                    .get(10, TimeUnit.SECONDS);
+
+            assertTrue(prefetcher.getVerificationResult(first).isPresent());
+            assertFalse(prefetcher.getVerificationResult(second).isPresent());
+            assertTrue(prefetcher.getVerificationResult(third).isPresent());
+            assertFalse(prefetcher.getVerificationResult(notVerified).isPresent());
+            assertEquals(2, server.getRequestedRanges().size());
+        }
+    }
+
+    private PayloadMetadataPrefetcher newPrefetcher(long maxBytes) {
+        // Only the 60 bytes long metadata is incompatible.
+        return new PayloadMetadataPrefetcher(mCache, new DownloadScheduler(2, 0),
+                f -> {
+                    mVerifications.incrementAndGet();
+                    return f.length() != 60;
+                },
+                new File(mTestDir, "work"), 2, maxBytes);
+    }
+
+    private static UpdateConfig newConfig(String name, String url, long offset, long size,
+            boolean verifyPayloadMetadata) {
+        return new UpdateConfig(name, url, UpdateConfig.AB_INSTALL_TYPE_STREAMING,
+                new UpdateConfig.AbConfig(false, verifyPayloadMetadata,
+                        new UpdateConfig.PackageFile[] {
+                                new UpdateConfig.PackageFile(
+                                        PackageFiles.PAYLOAD_METADATA_FILE_NAME, offset, size),
+                        },
+                        null));
+    }
+}
@@ -39,8 +39,14 @@ import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 /**
  * Tests if PayloadSpecs parses update package zip file correctly.
@@ -91,6 +97,38 @@ public class PayloadSpecsTest {
                 spec.getProperties().get(0));
     }
 
+    @Test
+    public void forNonStreaming_findsExactOffsetAfterNonAsciiNamesAndExtraFields()
+            throws Exception {
+        byte[] payload = "PAYLOAD-BIN".getBytes(StandardCharsets.UTF_8);
+        File packageFile = new File(mTestDir, "ota_non_ascii.zip");
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(packageFile))) {
+            // The name takes more bytes than characters in UTF-8.
+            ZipEntry unicode = new ZipEntry("\u00fcber-\u65e5\u672c.txt");
+            unicode.setExtra(new byte[] {(byte) 0xfe, (byte) 0xca, 4, 0, 1, 2, 3, 4});
+            zip.putNextEntry(unicode);
+            zip.write("unicode".getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+
+            zip.putNextEntry(storedEntry(PAYLOAD_BINARY_FILE_NAME, payload));
+            zip.write(payload);
+            zip.closeEntry();
+
+            zip.putNextEntry(new ZipEntry(PackageFiles.PAYLOAD_PROPERTIES_FILE_NAME));
+            zip.write(PROPERTIES_CONTENTS.getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+        }
+
+        PayloadSpec spec = mPayloadSpecs.forNonStreaming(packageFile);
+
+        byte[] content = java.nio.file.Files.readAllBytes(packageFile.toPath());
+        assertArrayEquals("offset points to payload data", payload,
+                Arrays.copyOfRange(content, (int) spec.getOffset(),
+                        (int) (spec.getOffset() + spec.getSize())));
+        assertArrayEquals("deflated properties are read",
+                new String[]{"k1=val1", "key2=val2"}, spec.getProperties().toArray(new String[0]));
+    }
+
     @Test
     public void forNonStreaming_IOException() throws Exception {
         thrown.expect(IOException.class);
@@ -112,6 +150,17 @@ public class PayloadSpecsTest {
                 new String[]{"k1=val1", "key2=val2"}, spec.getProperties().toArray(new String[0]));
     }
 
+    private static ZipEntry storedEntry(String name, byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        entry.setCompressedSize(data.length);
+        entry.setCrc(crc.getValue());
+        return entry;
+    }
+
     private File createMockPropertiesFile() throws IOException {
         File propertiesFile = new File(mTestDir, PackageFiles.PAYLOAD_PROPERTIES_FILE_NAME);
         Files.asCharSink(propertiesFile, Charsets.UTF_8).write(PROPERTIES_CONTENTS);
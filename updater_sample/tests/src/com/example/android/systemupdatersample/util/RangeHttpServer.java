@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A minimal local HTTP server for tests. It serves a single in-memory file and supports
+ * {@code Range: bytes=start-end} requests. Every requested range is recorded.
+ */
+class RangeHttpServer implements AutoCloseable {
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+    private final byte[] mContent;
+    private final ServerSocket mServerSocket;
+    private final Thread mThread;
+    private final List<long[]> mRequestedRanges =
+            Collections.synchronizedList(new ArrayList<>());
+
+    private volatile boolean mSupportsRange = true;
+    private volatile int mRangeShift;
+
+    RangeHttpServer(byte[] content) throws IOException {
+        mContent = content;
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        mThread = new Thread(this::serve, "RangeHttpServer");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /** Returns url of the served file. */
+    String getUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/ota.zip";
+    }
+
+    /** If set false, the server ignores the Range header and returns the whole file. */
+    void setSupportsRange(boolean supportsRange) {
+        mSupportsRange = supportsRange;
+    }
+
+    /**
+     * Makes the server answer range requests with the range that starts {@code shift} bytes
+     * later, as a misbehaving server would.
+     */
+    void setRangeShift(int shift) {
+        mRangeShift = shift;
+    }
+
+    /** Returns ranges {@code {start, end}} requested so far; end is inclusive. */
+    List<long[]> getRequestedRanges() {
+        synchronized (mRequestedRanges) {
+            return new ArrayList<>(mRequestedRanges);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mServerSocket.close();
+    }
+
+    private void serve() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                Socket socket = mServerSocket.accept();
+                Thread handler = new Thread(() -> handle(socket));
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (Socket s = socket) {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+            String range = null;
+            String line = reader.readLine();
+            while (line != null && !line.isEmpty()) {
+                if (line.toLowerCase().startsWith("range:")) {
+                    range = line.substring("range:".length()).trim();
+                }
+                line = reader.readLine();
+            }
+
+            long start = 0;
+            long end = mContent.length - 1;
+            String status = "200 OK";
+            Matcher m = range == null ? null : RANGE_PATTERN.matcher(range);
+            if (mSupportsRange && m != null && m.matches()) {
+                start = Math.min(Long.parseLong(m.group(1)) + mRangeShift, mContent.length - 1);
+                end = Math.min(Long.parseLong(m.group(2)) + mRangeShift, mContent.length - 1);
+                status = "206 Partial Content";
+            }
+            mRequestedRanges.add(new long[] {start, end});
+
+            int length = (int) (end - start + 1);
+            OutputStream out = s.getOutputStream();
+            StringBuilder headers = new StringBuilder()
+                    .append("HTTP/1.1 ").append(status).append("\r\n")
+                    .append("Content-Length: ").append(length).append("\r\n")
+                    .append("Connection: close\r\n");
+            if (status.startsWith("206")) {
+                headers.append("Content-Range: bytes ").append(start).append("-").append(end)
+                        .append("/").append(mContent.length).append("\r\n");
+            }
+            headers.append("\r\n");
+            out.write(headers.toString().getBytes(StandardCharsets.US_ASCII));
+            out.write(mContent, (int) start, length);
+            out.flush();
+        } catch (IOException e) {
+            // The client went away; nothing to do.
+        }
+    }
+}
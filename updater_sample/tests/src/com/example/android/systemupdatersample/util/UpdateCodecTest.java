@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.example.android.systemupdatersample.PayloadSpec;
+import com.example.android.systemupdatersample.UpdateConfig;
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+
+/**
+ * Tests for {@link UpdateCodec}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class UpdateCodecTest {
+
+    @Rule
+    public final ExpectedException thrown = ExpectedException.none();
+
+    @Test
+    public void decodePayloadSpec_returnsEncodedSpec() throws Exception {
+        PayloadSpec spec = PayloadSpec.newBuilder()
+                .url("https://example.com/ota-build-\u00f1.zip")
+                .offset(1234)
+                .size(567890123456L)
+                .properties(ImmutableList.of("FILE_HASH=abc", "METADATA_SIZE=42"))
+                .build();
+
+        PayloadSpec decoded = UpdateCodec.decodePayloadSpec(UpdateCodec.encode(spec));
+
+        assertEquals(spec.getUrl(), decoded.getUrl());
+        assertEquals(spec.getOffset(), decoded.getOffset());
+        assertEquals(spec.getSize(), decoded.getSize());
+        assertEquals(spec.getProperties(), decoded.getProperties());
+    }
+
+    @Test
+    public void decodeAbConfig_returnsEncodedConfig() throws Exception {
+        UpdateConfig.AbConfig config = new UpdateConfig.AbConfig(true, false,
+                new UpdateConfig.PackageFile[] {
+                        new UpdateConfig.PackageFile("payload.bin", 10, 20, "abcd"),
+                        new UpdateConfig.PackageFile("care_map.txt", 30, 40),
+                },
+                null);
+
+        UpdateConfig.AbConfig decoded =
+                UpdateCodec.decodeAbConfig(UpdateCodec.encode(config));
+
+        assertTrue(decoded.getForceSwitchSlot());
+        assertFalse(decoded.getVerifyPayloadMetadata());
+        assertFalse(decoded.getAuthorization().isPresent());
+        assertEquals(2, decoded.getPropertyFiles().length);
+        UpdateConfig.PackageFile payload = decoded.getPropertyFiles()[0];
+        assertEquals("payload.bin", payload.getFilename());
+        assertEquals(10, payload.getOffset());
+        assertEquals(20, payload.getSize());
+        assertEquals("abcd", payload.getSha256().get());
+        assertFalse(decoded.getPropertyFiles()[1].getSha256().isPresent());
+    }
+
+    @Test
+    public void decodePayloadSpec_throwsOnNewerVersion() throws Exception {
+        byte[] data = UpdateCodec.encode(PayloadSpec.newBuilder()
+                .url("file:///data/ota_package/update.zip")
+                .properties(ImmutableList.of())
+                .build());
+        data[0] = (byte) (UpdateCodec.VERSION + 1);
+
+        thrown.expect(IOException.class);
+        UpdateCodec.decodePayloadSpec(data);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.example.android.systemupdatersample.UpdateConfig;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link UpdateConfigCatalog}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class UpdateConfigCatalogTest {
+
+    private static final String CONFIG_JSON_TEMPLATE = "{\"name\": \"%s\", "
+            + "\"url\": \"file:///data/ota_package/update.zip\", "
+            + "\"ab_install_type\": \"NON_STREAMING\", "
+            + "\"ab_config\": {\"force_switch_slot\": false, \"verify_payload_metadata\": true}}";
+
+    @Rule
+    public final ExpectedException thrown = ExpectedException.none();
+
+    private File mRoot;
+    private File mIndexFile;
+
+    @Before
+    public void setUp() throws Exception {
+        File cacheDir = InstrumentationRegistry.getTargetContext().getCacheDir();
+        mRoot = new File(cacheDir, "catalog_configs");
+        mIndexFile = new File(cacheDir, "catalog.index");
+        if (mRoot.exists()) {
+            for (File f : mRoot.listFiles()) {
+                f.delete();
+            }
+        }
+        mRoot.mkdirs();
+        Files.deleteIfExists(mIndexFile.toPath());
+    }
+
+    @Test
+    public void reload_reportsInvalidFilesSeparately() throws Exception {
+        writeConfig("a.json", String.format(CONFIG_JSON_TEMPLATE, "config-a"));
+        writeConfig("b.json", "{\"url\": ");
+        writeConfig("c.json", String.format(CONFIG_JSON_TEMPLATE, "config-c"));
+        writeConfig("notes.txt", "not a config");
+
+        List<UpdateConfigCatalog.Entry> entries =
+                new UpdateConfigCatalog(mRoot, mIndexFile).reload();
+
+        assertEquals(3, entries.size());
+        assertEquals("config-a", entries.get(0).getName());
+        assertFalse(entries.get(1).isValid());
+        assertEquals("b.json", entries.get(1).getFileName());
+        assertTrue(entries.get(1).getError().isPresent());
+        assertEquals("config-c", entries.get(2).getName());
+    }
+
+    @Test
+    public void reload_readsOnlyChangedFiles() throws Exception {
+        File a = writeConfig("a.json", String.format(CONFIG_JSON_TEMPLATE, "config-1"));
+        new UpdateConfigCatalog(mRoot, mIndexFile).reload();
+
+        // Same size and time: the name is taken from the index, not from the file.
+        long lastModified = a.lastModified();
+        writeConfig("a.json", String.format(CONFIG_JSON_TEMPLATE, "config-2"));
+        a.setLastModified(lastModified);
+        assertEquals("config-1",
+                new UpdateConfigCatalog(mRoot, mIndexFile).reload().get(0).getName());
+
+        a.setLastModified(lastModified + 2000);
+        assertEquals("config-2",
+                new UpdateConfigCatalog(mRoot, mIndexFile).reload().get(0).getName());
+    }
+
+    @Test
+    public void refresh_reportsAddedChangedAndRemovedFiles() throws Exception {
+        File a = writeConfig("a.json", String.format(CONFIG_JSON_TEMPLATE, "config-a"));
+        writeConfig("b.json", String.format(CONFIG_JSON_TEMPLATE, "config-b"));
+        UpdateConfigCatalog catalog = new UpdateConfigCatalog(mRoot, mIndexFile);
+        catalog.reload();
+
+        long lastModified = a.lastModified();
+        writeConfig("a.json", String.format(CONFIG_JSON_TEMPLATE, "config-a2"));
+        a.setLastModified(lastModified + 2000);
+        new File(mRoot, "b.json").delete();
+        writeConfig("c.json", String.format(CONFIG_JSON_TEMPLATE, "config-c"));
+        // Not refreshed, so it must not be picked up.
+        writeConfig("d.json", String.format(CONFIG_JSON_TEMPLATE, "config-d"));
+        List<String> events = new ArrayList<>();
+        catalog.refresh(Arrays.asList("a.json", "b.json", "c.json", "notes.txt"),
+                new UpdateConfigCatalog.Listener() {
+                    @Override
+                    public void onConfigAdded(UpdateConfigCatalog.Entry entry) {
+                        events.add("added " + entry.getName());
+                    }
+
+                    @Override
+                    public void onConfigChanged(UpdateConfigCatalog.Entry entry) {
+                        events.add("changed " + entry.getName());
+                    }
+
+                    @Override
+                    public void onConfigRemoved(UpdateConfigCatalog.Entry entry) {
+                        events.add("removed " + entry.getName());
+                    }
+                });
+
+        assertEquals(Arrays.asList("changed config-a2", "removed config-b", "added config-c"),
+                events);
+        List<UpdateConfigCatalog.Entry> entries = catalog.getEntries();
+        assertEquals(2, entries.size());
+        assertEquals("config-a2", entries.get(0).getName());
+        assertEquals("c.json", entries.get(1).getFileName());
+    }
+
+    @Test
+    public void getConfig_parsesWholeConfigOnce() throws Exception {
+        writeConfig("a.json", String.format(CONFIG_JSON_TEMPLATE, "config-a"));
+        UpdateConfigCatalog catalog = new UpdateConfigCatalog(mRoot, mIndexFile);
+        UpdateConfigCatalog.Entry entry = catalog.reload().get(0);
+
+        UpdateConfig config = catalog.getConfig(entry);
+
+        assertEquals("config-a", config.getName());
+        assertEquals(UpdateConfig.AB_INSTALL_TYPE_NON_STREAMING, config.getInstallType());
+        assertTrue(config.getAbConfig().getVerifyPayloadMetadata());
+        assertSame(config, catalog.getConfig(entry));
+    }
+
+    @Test
+    public void getConfig_throwsForInvalidEntry() throws Exception {
+        writeConfig("a.json", "[]");
+        UpdateConfigCatalog catalog = new UpdateConfigCatalog(mRoot, mIndexFile);
+
+        thrown.expect(IOException.class);
+        catalog.getConfig(catalog.reload().get(0));
+    }
+
+    private File writeConfig(String fileName, String json) throws IOException {
+        File file = new File(mRoot, fileName);
+        Files.write(file.toPath(), json.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleConsumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Tests for {@link UpdateEventDispatcher}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class UpdateEventDispatcherTest {
+
+    @Test
+    public void publish_deliversToEveryListenerInOrder() throws Exception {
+        UpdateEventDispatcher dispatcher = new UpdateEventDispatcher();
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(2);
+        dispatcher.addListener(UpdateEventDispatcher.EVENT_ENGINE_STATUS,
+                (IntConsumer) status -> events.add("a" + status));
+        dispatcher.addListener(UpdateEventDispatcher.EVENT_ENGINE_STATUS,
+                (IntConsumer) status -> {
+                    events.add("b" + status);
+                    done.countDown();
+                });
+
+        dispatcher.publish(UpdateEventDispatcher.EVENT_ENGINE_STATUS, 1);
+        dispatcher.publish(UpdateEventDispatcher.EVENT_ENGINE_STATUS, 2);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("a1", "b1", "a2", "b2"), events);
+    }
+
+    @Test
+    public void publish_keepsNonProgressEventsWhenRingIsFull() throws Exception {
+        UpdateEventDispatcher dispatcher = new UpdateEventDispatcher(4);
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        List<Integer> statuses = Collections.synchronizedList(new ArrayList<>());
+        dispatcher.setListener(UpdateEventDispatcher.EVENT_ENGINE_STATUS,
+                (IntConsumer) status -> {
+                    try {
+                        blocker.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    statuses.add(status);
+                    if (status == 19) {
+                        done.countDown();
+                    }
+                });
+        dispatcher.setListener(UpdateEventDispatcher.EVENT_PROGRESS,
+                (DoubleConsumer) progress -> { });
+
+        for (int i = 0; i < 20; i++) {
+            dispatcher.publish(UpdateEventDispatcher.EVENT_ENGINE_STATUS, i);
+            dispatcher.publish(UpdateEventDispatcher.EVENT_PROGRESS, i / 20.0);
+        }
+        blocker.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(20, statuses.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, (int) statuses.get(i));
+        }
+        assertTrue(dispatcher.getDroppedEvents() > 0);
+    }
+
+    @Test
+    public void publish_coalescesProgressWithinWindow() throws Exception {
+        UpdateEventDispatcher dispatcher = new UpdateEventDispatcher();
+        dispatcher.setCoalescingWindow(200);
+        List<Double> progress = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1);
+        dispatcher.setListener(UpdateEventDispatcher.EVENT_PROGRESS, (DoubleConsumer) p -> {
+            progress.add(p);
+            if (p == 1.0) {
+                done.countDown();
+            }
+        });
+
+        for (int i = 0; i <= 100; i++) {
+            dispatcher.publish(UpdateEventDispatcher.EVENT_PROGRESS, i / 100.0);
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue("delivered " + progress, progress.size() < 10);
+        assertEquals(1.0, progress.get(progress.size() - 1), 0);
+    }
+
+    @Test
+    public void publish_deliversPendingProgressBeforeStatus() throws Exception {
+        UpdateEventDispatcher dispatcher = new UpdateEventDispatcher();
+        dispatcher.setCoalescingWindow(TimeUnit.MINUTES.toMillis(1));
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1);
+        dispatcher.setListener(UpdateEventDispatcher.EVENT_PROGRESS,
+                (DoubleConsumer) p -> events.add("progress " + p));
+        dispatcher.setListener(UpdateEventDispatcher.EVENT_ENGINE_STATUS,
+                (IntConsumer) status -> {
+                    events.add("status " + status);
+                    done.countDown();
+                });
+
+        dispatcher.publish(UpdateEventDispatcher.EVENT_PROGRESS, 0.25);
+        dispatcher.publish(UpdateEventDispatcher.EVENT_PROGRESS, 0.5);
+        dispatcher.publish(UpdateEventDispatcher.EVENT_PROGRESS, 0.75);
+        dispatcher.publish(UpdateEventDispatcher.EVENT_ENGINE_STATUS, 3);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("progress 0.25", "progress 0.75", "status 3"), events);
+    }
+
+    @Test
+    public void removeListener_stopsDelivery() throws Exception {
+        UpdateEventDispatcher dispatcher = new UpdateEventDispatcher();
+        IntConsumer listener = state -> { };
+        dispatcher.addListener(UpdateEventDispatcher.EVENT_STATE_CHANGE, listener);
+        assertTrue(dispatcher.hasListeners(UpdateEventDispatcher.EVENT_STATE_CHANGE));
+
+        dispatcher.removeListener(UpdateEventDispatcher.EVENT_STATE_CHANGE, listener);
+        assertFalse(dispatcher.hasListeners(UpdateEventDispatcher.EVENT_STATE_CHANGE));
+    }
+
+    @Test
+    public void close_stopsDeliveringEvents() throws Exception {
+        UpdateEventDispatcher dispatcher = new UpdateEventDispatcher();
+        List<Integer> statuses = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch delivered = new CountDownLatch(1);
+        dispatcher.setListener(UpdateEventDispatcher.EVENT_ENGINE_STATUS,
+                (IntConsumer) status -> {
+                    statuses.add(status);
+                    delivered.countDown();
+                });
+        dispatcher.publish(UpdateEventDispatcher.EVENT_ENGINE_STATUS, 1);
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+
+        dispatcher.close();
+        dispatcher.publish(UpdateEventDispatcher.EVENT_ENGINE_STATUS, 2);
+
+        assertFalse(dispatcher.hasListeners(UpdateEventDispatcher.EVENT_ENGINE_STATUS));
+        Thread.sleep(100);
+        assertEquals(Arrays.asList(1), statuses);
+    }
+}
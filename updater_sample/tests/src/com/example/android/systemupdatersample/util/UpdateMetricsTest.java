@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for {@link UpdateMetrics}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class UpdateMetricsTest {
+
+    @Test
+    public void histogram_summarizesValues() {
+        UpdateMetrics.Histogram histogram = new UpdateMetrics().histogram("h");
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(5050, histogram.getSum());
+        assertEquals(1, histogram.getMin());
+        assertEquals(100, histogram.getMax());
+        assertEquals(50.5, histogram.getMean(), 1e-9);
+        // 50 falls into bucket [32, 64), 90 into [64, 128) which is capped by the maximum.
+        assertEquals(63, histogram.getPercentile(50));
+        assertEquals(100, histogram.getPercentile(90));
+        assertEquals(1, histogram.getPercentile(0));
+    }
+
+    @Test
+    public void dump_listsAllMetricsSortedByName() throws Exception {
+        UpdateMetrics metrics = new UpdateMetrics();
+        metrics.counter("b.counter").add(3);
+        metrics.counter("a.counter").increment();
+        metrics.gauge("engine.status").set(1);
+        metrics.histogram(UpdateMetrics.PHASE_INSTALL).record(0);
+
+        assertEquals("a.counter 1\n"
+                        + "b.counter 3\n"
+                        + "engine.status 1\n"
+                        + "phase.install_us count=1 min=0 mean=0 p50=0 p90=0 max=0\n",
+                metrics.dump());
+
+        JSONObject json = metrics.toJson();
+        assertEquals(3, json.getJSONObject("counters").getLong("b.counter"));
+        assertEquals(1, json.getJSONObject("gauges").getLong("engine.status"));
+        assertEquals(1, json.getJSONObject("histograms")
+                .getJSONObject(UpdateMetrics.PHASE_INSTALL).getLong("count"));
+
+        metrics.reset();
+        assertTrue(metrics.dump().isEmpty());
+    }
+}
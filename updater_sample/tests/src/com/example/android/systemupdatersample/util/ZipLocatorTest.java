@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.systemupdatersample.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+/**
+ * Tests for {@link ZipLocator}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ZipLocatorTest {
+
+    private static final int UINT32_MAX = 0xffffffff;
+
+    @Rule
+    public final ExpectedException thrown = ExpectedException.none();
+
+    private File mZipFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mZipFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "zip_locator.zip");
+        Files.deleteIfExists(mZipFile.toPath());
+    }
+
+    @Test
+    public void locate_readsZip64Records() throws Exception {
+        byte[] properties = "FILE_HASH=abc\n".getBytes(StandardCharsets.UTF_8);
+        byte[] payload = "PAYLOAD-BIN".getBytes(StandardCharsets.UTF_8);
+        Zip64Writer zip = new Zip64Writer();
+        // Local extra fields don't have to match the central ones, e.g. zipalign padding.
+        zip.addEntry("payload_properties.txt", properties, new byte[3], false);
+        zip.addEntry("payload.bin", payload, new byte[7], true);
+        Files.write(mZipFile.toPath(), zip.finish(true));
+
+        Map<String, ZipLocator.Entry> entries = ZipLocator.locate(mZipFile,
+                ImmutableSet.of("payload.bin", "payload_properties.txt", "missing.txt"));
+
+        assertEquals(2, entries.size());
+        assertFalse(entries.containsKey("missing.txt"));
+        ZipLocator.Entry entry = entries.get("payload.bin");
+        assertEquals(ZipEntry.STORED, entry.getMethod());
+        assertEquals(payload.length, entry.getSize());
+        assertEquals(payload.length, entry.getCompressedSize());
+        assertEquals(30 + 22 + 3 + properties.length + 30 + 11 + 7, entry.getDataOffset());
+        assertArrayEquals(payload, ZipLocator.readEntry(mZipFile, entry));
+        assertArrayEquals(properties,
+                ZipLocator.readEntry(mZipFile, entries.get("payload_properties.txt")));
+    }
+
+    @Test
+    public void locate_throwsOnInvalidZip64EndOfCentralDirectory() throws Exception {
+        Zip64Writer zip = new Zip64Writer();
+        zip.addEntry("payload.bin", new byte[16], new byte[0], true);
+        Files.write(mZipFile.toPath(), zip.finish(false));
+
+        thrown.expect(IOException.class);
+        ZipLocator.locate(mZipFile, ImmutableSet.of("payload.bin"));
+    }
+
+    /**
+     * Writes a stored archive the way it's written for packages over 4 GiB: the end of central
+     * directory record only points to the ZIP64 one, and ZIP64 entries keep their sizes and
+     * local header offset in the ZIP64 extra field.
+     */
+    private static final class Zip64Writer {
+        private final ByteArrayOutputStream mData = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream mCentralDirectory = new ByteArrayOutputStream();
+        private int mEntries;
+
+        void addEntry(String name, byte[] data, byte[] localExtra, boolean zip64) {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            int offset = mData.size();
+            ByteBuffer local = buffer(30 + nameBytes.length + localExtra.length)
+                    .putInt(0x04034b50).putShort((short) 45).putShort((short) 0)
+                    .putShort((short) ZipEntry.STORED).putInt(0).putInt(0)
+                    .putInt(data.length).putInt(data.length)
+                    .putShort((short) nameBytes.length).putShort((short) localExtra.length)
+                    .put(nameBytes).put(localExtra);
+            write(mData, local);
+            mData.write(data, 0, data.length);
+
+            // Some other extra field comes first and has to be skipped.
+            ByteBuffer extra = buffer(zip64 ? 8 + 28 : 8)
+                    .putShort((short) 0xcafe).putShort((short) 4).putInt(0);
+            if (zip64) {
+                extra.putShort((short) 0x0001).putShort((short) 24)
+                        .putLong(data.length).putLong(data.length).putLong(offset);
+            }
+            ByteBuffer central = buffer(46 + nameBytes.length + extra.capacity())
+                    .putInt(0x02014b50).putShort((short) 45).putShort((short) 45)
+                    .putShort((short) 0).putShort((short) ZipEntry.STORED).putInt(0).putInt(0)
+                    .putInt(zip64 ? UINT32_MAX : data.length)
+                    .putInt(zip64 ? UINT32_MAX : data.length)
+                    .putShort((short) nameBytes.length).putShort((short) extra.capacity())
+                    .putShort((short) 0).putShort((short) 0).putShort((short) 0).putInt(0)
+                    .putInt(zip64 ? UINT32_MAX : offset)
+                    .put(nameBytes).put(extra.array());
+            write(mCentralDirectory, central);
+            mEntries++;
+        }
+
+        byte[] finish(boolean validZip64Record) {
+            long cdOffset = mData.size();
+            long cdSize = mCentralDirectory.size();
+            write(mData, ByteBuffer.wrap(mCentralDirectory.toByteArray()));
+
+            long zip64EocdOffset = mData.size();
+            write(mData, buffer(56)
+                    .putInt(validZip64Record ? 0x06064b50 : 0x06054b50).putLong(44)
+                    .putShort((short) 45).putShort((short) 45).putInt(0).putInt(0)
+                    .putLong(mEntries).putLong(mEntries).putLong(cdSize).putLong(cdOffset));
+            write(mData, buffer(20)
+                    .putInt(0x07064b50).putInt(0).putLong(zip64EocdOffset).putInt(1));
+            write(mData, buffer(22)
+                    .putInt(0x06054b50).putShort((short) 0).putShort((short) 0)
+                    .putShort((short) 0xffff).putShort((short) 0xffff)
+                    .putInt(UINT32_MAX).putInt(UINT32_MAX).putShort((short) 0));
+            return mData.toByteArray();
+        }
+
+        private static ByteBuffer buffer(int size) {
+            return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private static void write(ByteArrayOutputStream out, ByteBuffer record) {
+            out.write(record.array(), 0, record.capacity());
+        }
+    }
+}
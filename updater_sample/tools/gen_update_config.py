@@ -27,6 +27,7 @@ Example:
 """
 
 import argparse
+import hashlib
 import json
 import os.path
 import sys
@@ -45,6 +46,8 @@ class GenUpdateConfig(object):
 
     AB_INSTALL_TYPE_STREAMING = 'STREAMING'
     AB_INSTALL_TYPE_NON_STREAMING = 'NON_STREAMING'
+    # Property files are hashed in blocks of this many bytes.
+    HASH_BLOCK_SIZE = 1024 * 1024
 
     def __init__(self,
                  package,
@@ -103,17 +106,35 @@ class GenUpdateConfig(object):
         ab_ota = ota_from_target_files.AbOtaPropertyFiles()
         property_str = ab_ota.GetPropertyFilesString(package_zip, False)
         property_files = []
-        for file in property_str.split(','):
-            filename, offset, size = file.split(':')
-            inner_file = {
-                'filename': filename,
-                'offset': int(offset),
-                'size': int(size)
-            }
-            property_files.append(inner_file)
+        with open(package_zip.filename, 'rb') as package_file:
+            for file in property_str.split(','):
+                filename, offset, size = file.split(':')
+                package_file.seek(int(offset))
+                inner_file = {
+                    'filename': filename,
+                    'offset': int(offset),
+                    'size': int(size),
+                    'sha256': GenUpdateConfig._sha256(package_file, int(size)),
+                }
+                property_files.append(inner_file)
 
         return property_files
 
+    @staticmethod
+    def _sha256(package_file, size, block_size=HASH_BLOCK_SIZE):
+        """Hashes the next size bytes of package_file, reading block_size bytes at a time.
+
+        Property files include payload.bin, which can be several GB; it's never read whole.
+        """
+        digest = hashlib.sha256()
+        while size > 0:
+            block = package_file.read(min(size, block_size))
+            if not block:
+                raise EOFError('Property file goes past the end of the package')
+            digest.update(block)
+            size -= len(block)
+        return digest.hexdigest()
+
     def write(self, out):
         """Writes config to the output file."""
         with open(out, 'w') as out_file:
@@ -22,6 +22,8 @@ Example:
         python3 -m unittest test_gen_update_config
 """
 
+import hashlib
+import io
 import os.path
 import unittest
 from gen_update_config import GenUpdateConfig
@@ -39,6 +41,7 @@ class GenUpdateConfigTest(unittest.TestCase): # pylint: disable=missing-docstrin
                 filename, offset, size = prop['filename'], prop['offset'], prop['size']
                 pkg_file.seek(offset)
                 raw_data = pkg_file.read(size)
+                self.assertEqual(prop['sha256'], hashlib.sha256(raw_data).hexdigest())
                 if filename in ['payload.bin', 'payload_metadata.bin']:
                     pass
                 elif filename == 'payload_properties.txt':
@@ -49,6 +52,16 @@ class GenUpdateConfigTest(unittest.TestCase): # pylint: disable=missing-docstrin
                     expected_data = filename.replace('.', '-').upper()
                     self.assertEqual(raw_data.decode('ascii'), expected_data)
 
+    def test_sha256_reads_in_blocks(self):
+        """tests if a range hashed block by block has the digest of the whole range"""
+        data = bytes(range(256)) * 40
+        package_file = io.BytesIO(data)
+        package_file.seek(100)
+        # pylint: disable=protected-access
+        digest = GenUpdateConfig._sha256(package_file, 9000, block_size=1000)
+        self.assertEqual(digest, hashlib.sha256(data[100:9100]).hexdigest())
+        self.assertEqual(package_file.tell(), 9100)
+
     @staticmethod
     def _generate_config():
         """Generates JSON config from ota_002_package.zip."""